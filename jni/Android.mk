@@ -3,7 +3,8 @@ include $(CLEAR_VARS)
 
 LOCAL_SRC_FILES := \
 	com_gilbertl_s9_BinaryDictionary.cpp \
-	dictionary.cpp
+	dictionary.cpp \
+	search_context.cpp
 
 LOCAL_LDLIBS := -llog
 
@@ -24,8 +24,10 @@
 #include <assert.h>
 #include <unistd.h>
 #include <fcntl.h>
+#include <sys/mman.h>
 
 #include "dictionary.h"
+#include "search_context.h"
 
 // ----------------------------------------------------------------------------
 
@@ -46,49 +48,116 @@ static void throwException(JNIEnv *env, const char* ex, const char* fmt, int dat
     }
 }
 
-static jint s9_BinaryDictionary_open
-        (JNIEnv *env, jobject object, jobject fileDescriptor,
-         jlong offset, jlong length,
-         jint typedLetterMultiplier, jint fullWordMultiplier)
+static unsigned char *mapDictionary(int fd, jlong offset, jlong length, int *adjust)
 {
-    jint fd = env->GetIntField(fileDescriptor, sDescriptorField);
+    // The asset may start anywhere inside the apk, but mmap wants a page aligned offset. Map
+    // from the start of the enclosing page and remember how far in the dictionary begins.
+    int pageSize = getpagesize();
+    *adjust = offset % pageSize;
+    void *map = mmap(NULL, length + *adjust, PROT_READ, MAP_PRIVATE, fd, offset - *adjust);
+    if (map == MAP_FAILED) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG,
+            "DICT: Failed to mmap dictionary, falling back to read");
+        *adjust = 0;
+        return NULL;
+    }
+    return (unsigned char*) map + *adjust;
+}
 
+static unsigned char *readDictionary(int fd, jlong offset, jlong length)
+{
     unsigned char *dict = new unsigned char[length];
     if (dict == NULL) {
         __android_log_print(ANDROID_LOG_ERROR, TAG,
             "DICT: Failed to allocate dictionary buffer");
-        return 0;
+        return NULL;
     }
 
     lseek(fd, offset, SEEK_SET);
     size_t bytesLeft = length;
     unsigned char *p = dict;
     while (bytesLeft > 0) {
-        size_t bytesRead = read(fd, p, bytesLeft);
+        ssize_t bytesRead = read(fd, p, bytesLeft);
+        if (bytesRead <= 0) {
+            __android_log_print(ANDROID_LOG_ERROR, TAG,
+                "DICT: Failed to read dictionary");
+            delete[] dict;
+            return NULL;
+        }
         p += bytesRead;
         bytesLeft -= bytesRead;
     }
+    return dict;
+}
+
+static void s9_BinaryDictionary_close(JNIEnv *env, jobject object, jint dict);
 
-    Dictionary *dictionary = new Dictionary(dict, typedLetterMultiplier, fullWordMultiplier);
+static jint s9_BinaryDictionary_open
+        (JNIEnv *env, jobject object, jobject fileDescriptor,
+         jlong offset, jlong length,
+         jint typedLetterMultiplier, jint fullWordMultiplier, jboolean useMmap)
+{
+    jint fd = env->GetIntField(fileDescriptor, sDescriptorField);
+
+    unsigned char *dict = NULL;
+    int dictBufAdjust = 0;
+    if (useMmap) {
+        dict = mapDictionary(fd, offset, length, &dictBufAdjust);
+    }
+    bool mmapped = dict != NULL;
+    if (!mmapped) {
+        dict = readDictionary(fd, offset, length);
+        if (dict == NULL) return 0;
+    }
+
+    Dictionary *dictionary = new Dictionary(dict, length, dictBufAdjust, mmapped,
+            typedLetterMultiplier, fullWordMultiplier);
+    if (!dictionary->isFormatSupported()) {
+        __android_log_print(ANDROID_LOG_ERROR, TAG,
+            "DICT: Unsupported dictionary format version %d, or a damaged dictionary",
+            dict[2]);
+        s9_BinaryDictionary_close(env, object, (jint) dictionary);
+        return 0;
+    }
 
     return (jint) dictionary;
 }
 
+static jboolean s9_BinaryDictionary_isMmapped(JNIEnv *env, jobject object, jint dict)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return (jboolean) false;
+    return (jboolean) dictionary->isMmapped();
+}
+
+static jint s9_BinaryDictionary_openSearch(JNIEnv *env, jobject object, jint dict)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return 0;
+    return (jint) new SearchContext(dictionary);
+}
+
+static void s9_BinaryDictionary_closeSearch(JNIEnv *env, jobject object, jint context)
+{
+    delete (SearchContext*) context;
+}
+
 static int s9_BinaryDictionary_getSuggestions(
-        JNIEnv *env, jobject object, jint dict, jintArray inputArray, jint arraySize,
+        JNIEnv *env, jobject object, jint context, jintArray inputArray, jint arraySize,
         jcharArray outputArray, jintArray frequencyArray, jint maxWordLength, jint maxWords,
         jint maxAlternatives, jint skipPos)
 {
-    Dictionary *dictionary = (Dictionary*) dict;
-    if (dictionary == NULL)
+    SearchContext *searchContext = (SearchContext*) context;
+    if (searchContext == NULL)
         return 0;
 
     int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
     int *inputCodes = env->GetIntArrayElements(inputArray, NULL);
     jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
 
-    int count = dictionary->getSuggestions(inputCodes, arraySize, (unsigned short*) outputChars, frequencies,
-            maxWordLength, maxWords, maxAlternatives, skipPos);
+    int count = searchContext->getSuggestions(inputCodes, arraySize,
+            (unsigned short*) outputChars, frequencies, maxWordLength, maxWords, maxAlternatives,
+            skipPos);
     
     env->ReleaseIntArrayElements(frequencyArray, frequencies, JNI_COMMIT);
     env->ReleaseIntArrayElements(inputArray, inputCodes, JNI_ABORT);
@@ -97,6 +166,13 @@ static int s9_BinaryDictionary_getSuggestions(
     return count;
 }
 
+static jint s9_BinaryDictionary_getPlacedWords(JNIEnv *env, jobject object, jint context)
+{
+    SearchContext *searchContext = (SearchContext*) context;
+    if (searchContext == NULL) return 0;
+    return searchContext->getPlacedWords();
+}
+
 static jboolean s9_BinaryDictionary_isValidWord
         (JNIEnv *env, jobject object, jint dict, jcharArray wordArray, jint wordLength)
 {
@@ -110,22 +186,45 @@ static jboolean s9_BinaryDictionary_isValidWord
     return result;
 }
 
+static jobject s9_BinaryDictionary_getBloomFilter
+        (JNIEnv *env, jobject object, jint dict)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL || dictionary->getBloomFilter() == NULL) return NULL;
+    // The buffer reads the dictionary in place, it is only valid until the dictionary is closed
+    return env->NewDirectByteBuffer(dictionary->getBloomFilter(),
+            dictionary->getBloomFilterSize());
+}
+
 static void s9_BinaryDictionary_close
         (JNIEnv *env, jobject object, jint dict)
 {
     Dictionary *dictionary = (Dictionary*) dict;
-    delete dictionary->getDictBuffer();
-    delete (Dictionary*) dict;
+    if (dictionary == NULL) return;
+    unsigned char *dictBuf = dictionary->getDictBuffer();
+    if (dictionary->isMmapped()) {
+        int adjust = dictionary->getDictBufAdjust();
+        munmap(dictBuf - adjust, dictionary->getDictSize() + adjust);
+    } else {
+        delete[] dictBuf;
+    }
+    delete dictionary;
 }
 
 // ----------------------------------------------------------------------------
 
 static JNINativeMethod gMethods[] = {
-    {"openNative",           "(Ljava/io/FileDescriptor;JJII)I",
+    {"openNative",           "(Ljava/io/FileDescriptor;JJIIZ)I",
                                           (void*)s9_BinaryDictionary_open},
     {"closeNative",          "(I)V",            (void*)s9_BinaryDictionary_close},
+    {"isMmappedNative",      "(I)Z",            (void*)s9_BinaryDictionary_isMmapped},
+    {"openSearchNative",     "(I)I",            (void*)s9_BinaryDictionary_openSearch},
+    {"closeSearchNative",    "(I)V",            (void*)s9_BinaryDictionary_closeSearch},
     {"getSuggestionsNative", "(I[II[C[IIIII)I",  (void*)s9_BinaryDictionary_getSuggestions},
-    {"isValidWordNative",    "(I[CI)Z",         (void*)s9_BinaryDictionary_isValidWord}
+    {"getPlacedWordsNative", "(I)I",            (void*)s9_BinaryDictionary_getPlacedWords},
+    {"isValidWordNative",    "(I[CI)Z",         (void*)s9_BinaryDictionary_isValidWord},
+    {"getBloomFilterNative", "(I)Ljava/nio/ByteBuffer;",
+                                          (void*)s9_BinaryDictionary_getBloomFilter}
 };
 
 static int registerNativeMethods(JNIEnv* env, const char* className,
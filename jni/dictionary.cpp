@@ -21,46 +21,58 @@
 #include <string.h>
 
 #include "dictionary.h"
-#include "basechars.h"
-#include "lowerchars.h"
 
 #define DEBUG_DICT 0
 
 namespace s9 {
 
-Dictionary::Dictionary(void *dict, int typedLetterMultiplier, int fullWordMultiplier)
+Dictionary::Dictionary(void *dict, int dictSize, int dictBufAdjust, bool isMmapped,
+        int typedLetterMultiplier, int fullWordMultiplier)
 {
     mDict = (unsigned char*) dict;
+    mDictSize = dictSize;
+    mDictBufAdjust = dictBufAdjust;
+    mIsMmapped = isMmapped;
     mTypedLetterMultiplier = typedLetterMultiplier;
     mFullWordMultiplier = fullWordMultiplier;
+    mRoot = 0;
+    mHasMaxFreq = false;
+    mBloomBits = NULL;
+    mBloomBitCount = 0;
+    mBloomHashCount = 0;
+    if (dictSize >= HEADER_SIZE && mDict[0] == HEADER_MAGIC_1 && mDict[1] == HEADER_MAGIC_2) {
+        if (mDict[2] == FORMAT_VERSION) {
+            mRoot = HEADER_SIZE;
+            mHasMaxFreq = (mDict[3] & FLAG_HAS_MAX_FREQ) != 0;
+            if (mDict[3] & FLAG_HAS_BLOOM_FILTER) {
+                unsigned char *filter = mDict + HEADER_SIZE;
+                int byteCount = -1;
+                if (dictSize >= HEADER_SIZE + BLOOM_FILTER_HEADER_SIZE) {
+                    byteCount = (filter[1] << 16) | (filter[2] << 8) | filter[3];
+                }
+                if (byteCount < 0
+                        || byteCount > dictSize - HEADER_SIZE - BLOOM_FILTER_HEADER_SIZE) {
+                    // The filter runs past the end, so the nodes can't be found either
+                    mRoot = -1;
+                    return;
+                }
+                mBloomHashCount = filter[0];
+                mBloomBitCount = byteCount * 8;
+                mBloomBits = filter + BLOOM_FILTER_HEADER_SIZE;
+                mRoot += BLOOM_FILTER_HEADER_SIZE + byteCount;
+            }
+        } else {
+            mRoot = -1;
+        }
+    }
 }
 
 Dictionary::~Dictionary()
 {
 }
 
-int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives, int skipPos)
-{
-    mFrequencies = frequencies;
-    mOutputChars = outWords;
-    mInputCodes = codes;
-    mInputLength = codesSize;
-    mMaxAlternatives = maxAlternatives;
-    mMaxWordLength = maxWordLength;
-    mMaxWords = maxWords;
-    mWords = 0;
-    mSkipPos = skipPos;
-    mMaxEditDistance = mInputLength < 5 ? 2 : mInputLength / 2;
-
-    getWordsRec(0, 0, mInputLength * 3, false, 1, 0, 0);
-
-    //if (DEBUG_DICT) LOGI("Returning %d words", mWords);
-    return mWords;
-}
-
 unsigned short
-Dictionary::getChar(int *pos)
+Dictionary::getChar(int *pos) const
 {
     unsigned short ch = (unsigned short) (mDict[(*pos)++] & 0xFF);
     // If the code is 255, then actual 16 bit code follows (in big endian)
@@ -72,7 +84,7 @@ Dictionary::getChar(int *pos)
 }
 
 int
-Dictionary::getAddress(int *pos)
+Dictionary::getAddress(int *pos) const
 {
     int address = 0;
     if ((mDict[*pos] & FLAG_ADDRESS_MASK) == 0) {
@@ -86,175 +98,40 @@ Dictionary::getAddress(int *pos)
     return address;
 }
 
-int
-Dictionary::wideStrLen(unsigned short *str)
-{
-    if (!str) return 0;
-    unsigned short *end = str;
-    while (*end)
-        end++;
-    return end - str;
-}
-
 bool
-Dictionary::addWord(unsigned short *word, int length, int frequency)
+Dictionary::isValidWord(unsigned short *word, int length) const
 {
-    word[length] = 0;
-    /*
-    if (DEBUG_DICT) {
-        char s[length + 1];
-        for (int i = 0; i <= length; i++) s[i] = word[i];
-        LOGI("Found word = %s, freq = %d : \n", s, frequency);
-    }
-    */
-
-    // Find the right insertion point
-    int insertAt = 0;
-    while (insertAt < mMaxWords) {
-        if (frequency > mFrequencies[insertAt]
-                 || (mFrequencies[insertAt] == frequency
-                     && length < wideStrLen(mOutputChars + insertAt * mMaxWordLength))) {
-            break;
-        }
-        insertAt++;
-    }
-    if (insertAt < mMaxWords) {
-        memmove((char*) mFrequencies + (insertAt + 1) * sizeof(mFrequencies[0]),
-               (char*) mFrequencies + insertAt * sizeof(mFrequencies[0]),
-               (mMaxWords - insertAt - 1) * sizeof(mFrequencies[0]));
-        mFrequencies[insertAt] = frequency;
-        memmove((char*) mOutputChars + (insertAt + 1) * mMaxWordLength * sizeof(short),
-               (char*) mOutputChars + (insertAt    ) * mMaxWordLength * sizeof(short),
-               (mMaxWords - insertAt - 1) * sizeof(short) * mMaxWordLength);
-        unsigned short *dest = mOutputChars + (insertAt    ) * mMaxWordLength;
-        while (length--) {
-            *dest++ = *word++;
-        }
-        *dest = 0; // NULL terminate
-        // Update the word count
-        if (insertAt + 1 > mWords) mWords = insertAt + 1;
-        //if (DEBUG_DICT) LOGI("Added word at %d\n", insertAt);
-        return true;
-    }
-    return false;
-}
-
-unsigned short
-Dictionary::toLowerCase(unsigned short c, const int depth) {
-    if (c < sizeof(BASE_CHARS) / sizeof(BASE_CHARS[0])) {
-        c = BASE_CHARS[c];
-    }
-    if (depth == 0) {
-        if (c >='A' && c <= 'Z') {
-            c |= 32;
-        } else if (c > 127 && c < sizeof(LOWER_CHARS) / sizeof(LOWER_CHARS[0])) {
-            c = LOWER_CHARS[c];
-        }
-    }
-    return c;
+    if (mRoot < 0 || length <= 0) return false;
+    if (!mightContain(word, length)) return false;
+    return isValidWordRec(mRoot, word, 0, length);
 }
 
+/**
+ * Returns false if the word is surely not in the dictionary, according to the bloom filter.
+ * Hashing has to match BloomFilter.java: FNV-1a over the UTF-16 code units, with the bit
+ * positions at hash + i * hash2.
+ */
 bool
-Dictionary::sameAsTyped(unsigned short *word, int length)
+Dictionary::mightContain(unsigned short *word, int length) const
 {
-    if (length != mInputLength) {
-        return false;
+    if (mBloomBits == NULL || mBloomBitCount == 0) return true;
+    unsigned int hash = 0x811C9DC5;
+    for (int i = 0; i < length; i++) {
+        hash ^= word[i];
+        hash *= 0x01000193;
     }
-    int *inputCodes = mInputCodes;
-    while (length--) {
-        if ((unsigned int) *inputCodes != (unsigned int) *word) {
+    unsigned int hash2 = (hash >> 17) | (hash << 15);
+    for (int i = 0; i < mBloomHashCount; i++) {
+        unsigned int bit = ((hash + i * hash2) & 0x7FFFFFFF) % mBloomBitCount;
+        if ((mBloomBits[bit >> 3] & (1 << (bit & 7))) == 0) {
             return false;
         }
-        inputCodes += mMaxAlternatives;
-        word++;
     }
     return true;
 }
 
-static char QUOTE = '\'';
-
-void
-Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int snr, int inputIndex,
-                        int diffs)
-{
-    // Optimization: Prune out words that are too long compared to how much was typed.
-    if (depth > maxDepth) {
-        return;
-    }
-    if (diffs > mMaxEditDistance) {
-        return;
-    }
-    int count = getCount(&pos);
-    int *currentChars = NULL;
-    if (mInputLength <= inputIndex) {
-        completion = true;
-    } else {
-        currentChars = mInputCodes + (inputIndex * mMaxAlternatives);
-    }
-
-    for (int i = 0; i < count; i++) {
-        unsigned short c = getChar(&pos);
-        unsigned short lowerC = toLowerCase(c, depth);
-        bool terminal = getTerminal(&pos);
-        int childrenAddress = getAddress(&pos);
-        int freq = 1;
-        if (terminal) freq = getFreq(&pos);
-        // If we are only doing completions, no need to look at the typed characters.
-        if (completion) {
-            mWord[depth] = c;
-            if (terminal) {
-                addWord(mWord, depth + 1, freq * snr);
-            }
-            if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth,
-                            completion, snr, inputIndex, diffs);
-            }
-        } else if (c == QUOTE && currentChars[0] != QUOTE || mSkipPos == depth) {
-            // Skip the ' or other letter and continue deeper
-            mWord[depth] = c;
-            if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs);
-            }
-        } else {
-            int j = 0;
-            while (currentChars[j] > 0) {
-                if (currentChars[j] == lowerC || currentChars[j] == c) {
-                    int addedWeight = j == 0 ? mTypedLetterMultiplier : 1;
-                    mWord[depth] = c;
-                    if (mInputLength == inputIndex + 1) {
-                        if (terminal) {
-                            if (//INCLUDE_TYPED_WORD_IF_VALID ||
-                                !sameAsTyped(mWord, depth + 1)) {
-                                int finalFreq = freq * snr * addedWeight;
-                                if (mSkipPos < 0) finalFreq *= mFullWordMultiplier;
-                                addWord(mWord, depth + 1, finalFreq);
-                            }
-                        }
-                        if (childrenAddress != 0) {
-                            getWordsRec(childrenAddress, depth + 1,
-                                    maxDepth, true, snr * addedWeight, inputIndex + 1,
-                                    diffs + (j > 0));
-                        }
-                    } else if (childrenAddress != 0) {
-                        getWordsRec(childrenAddress, depth + 1, maxDepth,
-                                false, snr * addedWeight, inputIndex + 1, diffs + (j > 0));
-                    }
-                }
-                j++;
-                if (mSkipPos >= 0) break;
-            }
-        }
-    }
-}
-
 bool
-Dictionary::isValidWord(unsigned short *word, int length)
-{
-    return isValidWordRec(0, word, 0, length);
-}
-
-bool
-Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length) {
+Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length) const {
     int count = getCount(&pos);
     unsigned short currentChar = (unsigned short) word[offset];
     for (int j = 0; j < count; j++) {
@@ -277,6 +154,9 @@ Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length
         if (terminal) {
             getFreq(&pos);
         }
+        if (mHasMaxFreq && childPos != 0) {
+            getFreq(&pos);
+        }
         // There could be two instances of each alphabet - upper and lower case. So continue
         // looking ...
     }
@@ -28,47 +28,74 @@ namespace s9 {
 // if the word has other endings.
 #define FLAG_TERMINAL_MASK 0x80
 
+// Dictionaries can start with a header: a two byte magic number, the format version and flags.
+// Dictionaries without a header start with the root node group.
+#define HEADER_MAGIC_1 0x78
+#define HEADER_MAGIC_2 0xB1
+#define HEADER_SIZE 4
+#define FORMAT_VERSION 1
+// Header flag: nodes with children store the highest frequency below them, after the node's
+// own frequency
+#define FLAG_HAS_MAX_FREQ 0x01
+// Header flag: a bloom filter of the words follows the header, made of the number of hashes, the
+// size of the bits in three bytes and the bits. The root node group comes after it.
+#define FLAG_HAS_BLOOM_FILTER 0x02
+#define BLOOM_FILTER_HEADER_SIZE 4
+
+// Highest frequency a word can have in the dictionary
+#define MAX_FREQ 255
+
 class Dictionary {
 public:
-    Dictionary(void *dict, int typedLetterMultipler, int fullWordMultiplier);
-    int getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
-    bool isValidWord(unsigned short *word, int length);
+    Dictionary(void *dict, int dictSize, int dictBufAdjust, bool isMmapped,
+            int typedLetterMultipler, int fullWordMultiplier);
+    bool isValidWord(unsigned short *word, int length) const;
     void setAsset(void *asset) { mAsset = asset; }
     void *getAsset() { return mAsset; }
     unsigned char *getDictBuffer() { return mDict; }
+    int getDictSize() { return mDictSize; }
+    int getDictBufAdjust() { return mDictBufAdjust; }
+    bool isMmapped() { return mIsMmapped; }
+    bool isFormatSupported() const { return mRoot >= 0; }
     ~Dictionary();
 
-private:
+    // Position of the root node group, -1 if the format isn't supported
+    int getRoot() const { return mRoot; }
+    bool hasMaxFreq() const { return mHasMaxFreq; }
+    // The bloom filter as stored, from the number of hashes, NULL if there isn't one
+    unsigned char *getBloomFilter() const {
+        return mBloomBits != NULL ? mBloomBits - BLOOM_FILTER_HEADER_SIZE : NULL;
+    }
+    int getBloomFilterSize() const { return BLOOM_FILTER_HEADER_SIZE + mBloomBitCount / 8; }
+    int getTypedLetterMultiplier() const { return mTypedLetterMultiplier; }
+    int getFullWordMultiplier() const { return mFullWordMultiplier; }
 
-    int getAddress(int *pos);
-    bool getTerminal(int *pos) { return (mDict[*pos] & FLAG_TERMINAL_MASK) > 0; }
-    int getFreq(int *pos) { return mDict[(*pos)++] & 0xFF; }
-    int getCount(int *pos) { return mDict[(*pos)++] & 0xFF; }
-    unsigned short getChar(int *pos);
-    int wideStrLen(unsigned short *str);
+    // Node readers, each one advances pos past what it read
+    int getAddress(int *pos) const;
+    bool getTerminal(int *pos) const { return (mDict[*pos] & FLAG_TERMINAL_MASK) > 0; }
+    int getFreq(int *pos) const { return mDict[(*pos)++] & 0xFF; }
+    int getCount(int *pos) const { return mDict[(*pos)++] & 0xFF; }
+    unsigned short getChar(int *pos) const;
 
-    bool sameAsTyped(unsigned short *word, int length);
-    bool addWord(unsigned short *word, int length, int frequency);
-    unsigned short toLowerCase(unsigned short c, const int depth);
-    void getWordsRec(int pos, int depth, int maxDepth, bool completion, int frequency,
-            int inputIndex, int diffs);
-    bool isValidWordRec(int pos, unsigned short *word, int offset, int length);
+private:
+
+    bool isValidWordRec(int pos, unsigned short *word, int offset, int length) const;
+    bool mightContain(unsigned short *word, int length) const;
 
+    // The dictionary isn't modified after it is opened, so any number of searches can read it
+    // at the same time. Their state is kept in a SearchContext each.
     unsigned char *mDict;
+    int mRoot;
+    bool mHasMaxFreq;
+    // The bloom filter bits, NULL if the dictionary doesn't have a filter
+    unsigned char *mBloomBits;
+    unsigned int mBloomBitCount;
+    int mBloomHashCount;
     void *mAsset;
-
-    int *mFrequencies;
-    int mMaxWords;
-    int mMaxWordLength;
-    int mWords;
-    unsigned short *mOutputChars;
-    int *mInputCodes;
-    int mInputLength;
-    int mMaxAlternatives;
-    unsigned short mWord[128];
-    int mSkipPos;
-    int mMaxEditDistance;
+    int mDictSize;
+    // Distance from the page aligned start of the mapping to mDict, when mmapped
+    int mDictBufAdjust;
+    bool mIsMmapped;
 
     int mFullWordMultiplier;
     int mTypedLetterMultiplier;
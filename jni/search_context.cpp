@@ -0,0 +1,575 @@
+/*
+**
+** Copyright 2009, The Android Open Source Project
+**
+** Licensed under the Apache License, Version 2.0 (the "License");
+** you may not use this file except in compliance with the License.
+** You may obtain a copy of the License at
+**
+**     http://www.apache.org/licenses/LICENSE-2.0
+**
+** Unless required by applicable law or agreed to in writing, software
+** distributed under the License is distributed on an "AS IS" BASIS,
+** WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+** See the License for the specific language governing permissions and
+** limitations under the License.
+*/
+
+#include <stdio.h>
+#include <string.h>
+
+#include "search_context.h"
+#include "basechars.h"
+#include "lowerchars.h"
+
+#define DEBUG_DICT 0
+
+namespace s9 {
+
+static char QUOTE = '\'';
+
+SearchContext::SearchContext(const Dictionary *dictionary)
+{
+    mDictionary = dictionary;
+    mHasMaxFreq = dictionary->hasMaxFreq();
+    mTypedLetterMultiplier = dictionary->getTypedLetterMultiplier();
+    mFullWordMultiplier = dictionary->getFullWordMultiplier();
+    mLevelCount = 0;
+    mOverflowLevel = 0;
+    mPlacedWords = 0;
+}
+
+SearchContext::~SearchContext()
+{
+}
+
+int
+SearchContext::getSuggestions(int *codes, int codesSize, unsigned short *outWords,
+        int *frequencies, int maxWordLength, int maxWords, int maxAlternatives, int skipPos)
+{
+    mFrequencies = frequencies;
+    mOutputChars = outWords;
+    mInputCodes = codes;
+    mInputLength = codesSize;
+    mMaxAlternatives = maxAlternatives;
+    mMaxWordLength = maxWordLength;
+    mMaxWords = maxWords < MAX_WORDS ? maxWords : MAX_WORDS;
+    mSkipPos = skipPos;
+    mMaxEditDistance = mInputLength < 5 ? 2 : mInputLength / 2;
+    mMinSkipDepth = mInputLength - 1;
+
+    initWords();
+    if (mSkipPos == SKIP_NONE) mPlacedWords = 0;
+    const int maxDepth = mInputLength * 3;
+    if (mDictionary->getRoot() < 0) {
+        // Unsupported format, nothing to search
+    } else if (mSkipPos == SKIP_NONE && mInputLength > 0 && updateFrontier(mInputLength - 1)) {
+        // The nodes above the frontier don't prune anything the states themselves don't
+        const int end = mLevelStarts[mInputLength];
+        for (int s = mLevelStarts[mInputLength - 1]; s < end; s++) {
+            memcpy(mWord, mStateWords + mStateWordStarts[s], mStateDepths[s] * sizeof(short));
+            getWordsRec(mStatePos[s], mStateDepths[s], maxDepth, false, mStateSnrs[s],
+                    mInputLength - 1, mStateDiffs[s], -1, mStateMaxFreqs[s]);
+        }
+    } else {
+        getWordsRec(mDictionary->getRoot(), 0, maxDepth, false, 1, 0, 0, -1, MAX_FREQ);
+    }
+
+    //if (DEBUG_DICT) LOGI("Returning %d words", mHeapSize);
+    return flushWords();
+}
+
+/**
+ * Fills the heap with the words already in the output, which came from a search without
+ * skipping. They are in order, so they keep their ranking between themselves.
+ */
+void
+SearchContext::initWords()
+{
+    mHeapSize = 0;
+    mStashCount = 0;
+    mNextOrder = 0;
+    mFreeSlotCount = 0;
+    for (int i = MAX_SLOTS - 1; i >= 0; i--) {
+        mFreeSlots[mFreeSlotCount++] = i;
+    }
+    for (int i = 0; i < mMaxWords && mFrequencies[i] > 0; i++) {
+        unsigned short *word = mOutputChars + i * mMaxWordLength;
+        int length = 0;
+        while (length < mMaxWordLength && word[length]) {
+            length++;
+        }
+        addWord(word, length, mFrequencies[i], SKIP_NONE);
+    }
+}
+
+/**
+ * Sorts the heap in place, best word first, and copies the words to the output. Returns the
+ * number of words.
+ */
+int
+SearchContext::flushWords()
+{
+    const int count = mHeapSize;
+    for (int end = count - 1; end > 0; end--) {
+        int weakest = mHeap[0];
+        mHeap[0] = mHeap[end];
+        mHeap[end] = weakest;
+        siftDown(0, end);
+    }
+    for (int i = 0; i < count; i++) {
+        int slot = mHeap[i];
+        mFrequencies[i] = mSlotFreqs[slot];
+        memcpy(mOutputChars + i * mMaxWordLength, mSlotChars + slot * MAX_WORD_LENGTH,
+                mSlotLengths[slot] * sizeof(short));
+        mOutputChars[i * mMaxWordLength + mSlotLengths[slot]] = 0; // NULL terminate
+    }
+    for (int i = count; i < mMaxWords; i++) {
+        mFrequencies[i] = 0;
+        mOutputChars[i * mMaxWordLength] = 0;
+    }
+    mHeapSize = 0;
+    return count;
+}
+
+bool
+SearchContext::addWord(unsigned short *word, int length, int frequency, int skipped)
+{
+    /*
+    if (DEBUG_DICT) {
+        char s[length + 1];
+        for (int i = 0; i < length; i++) s[i] = word[i];
+        s[length] = 0;
+        LOGI("Found word = %s, freq = %d : \n", s, frequency);
+    }
+    */
+    if (frequency <= 0 || length >= mMaxWordLength || length >= MAX_WORD_LENGTH) {
+        return false;
+    }
+
+    int slot;
+    if (mHeapSize < mMaxWords) {
+        slot = mFreeSlots[--mFreeSlotCount];
+    } else {
+        // Full, the new word has to beat the weakest one. It was found last, so it loses ties.
+        int weakest = mHeap[0];
+        if (frequency < mSlotFreqs[weakest]
+                || (frequency == mSlotFreqs[weakest] && length >= mSlotLengths[weakest])) {
+            return false;
+        }
+        if (mSkipPos == SKIP_ANY && mSlotSkipDepths[weakest] < 0) {
+            // Hold on to the unskipped word falling off, in case the words pushing it out are
+            // dropped for an earlier skip position.
+            mStash[mStashCount++] = weakest;
+            slot = mFreeSlots[--mFreeSlotCount];
+        } else {
+            slot = weakest;
+        }
+    }
+
+    if (mSkipPos == SKIP_NONE) {
+        // The place the word takes among the words so far, ahead of the words it beats and
+        // behind those it ties with
+        int place = 1;
+        for (int i = 0; i < mHeapSize; i++) {
+            int other = mHeap[i];
+            if (mSlotFreqs[other] > frequency
+                    || (mSlotFreqs[other] == frequency && mSlotLengths[other] <= length)) {
+                place++;
+            }
+        }
+        if (place > mPlacedWords) mPlacedWords = place;
+    }
+
+    memcpy(mSlotChars + slot * MAX_WORD_LENGTH, word, length * sizeof(short));
+    mSlotLengths[slot] = length;
+    mSlotFreqs[slot] = frequency;
+    mSlotOrders[slot] = mNextOrder++;
+    mSlotSkipDepths[slot] = skipped;
+    if (mHeapSize < mMaxWords) {
+        mHeap[mHeapSize] = slot;
+        siftUp(mHeapSize++);
+    } else {
+        mHeap[0] = slot;
+        siftDown(0, mHeapSize);
+    }
+    //if (DEBUG_DICT) LOGI("Added word in slot %d\n", slot);
+    return true;
+}
+
+/**
+ * Returns true if the word in slot1 ranks below the word in slot2: it is less frequent, or
+ * longer at the same frequency, or was found later.
+ */
+bool
+SearchContext::isWorse(int slot1, int slot2)
+{
+    if (mSlotFreqs[slot1] != mSlotFreqs[slot2]) {
+        return mSlotFreqs[slot1] < mSlotFreqs[slot2];
+    }
+    if (mSlotLengths[slot1] != mSlotLengths[slot2]) {
+        return mSlotLengths[slot1] > mSlotLengths[slot2];
+    }
+    return mSlotOrders[slot1] > mSlotOrders[slot2];
+}
+
+void
+SearchContext::siftUp(int index)
+{
+    while (index > 0) {
+        int parent = (index - 1) / 2;
+        if (!isWorse(mHeap[index], mHeap[parent])) break;
+        int slot = mHeap[index];
+        mHeap[index] = mHeap[parent];
+        mHeap[parent] = slot;
+        index = parent;
+    }
+}
+
+void
+SearchContext::siftDown(int index, int size)
+{
+    while (true) {
+        int weakest = index;
+        int left = index * 2 + 1;
+        int right = left + 1;
+        if (left < size && isWorse(mHeap[left], mHeap[weakest])) weakest = left;
+        if (right < size && isWorse(mHeap[right], mHeap[weakest])) weakest = right;
+        if (weakest == index) break;
+        int slot = mHeap[index];
+        mHeap[index] = mHeap[weakest];
+        mHeap[weakest] = slot;
+        index = weakest;
+    }
+}
+
+/**
+ * Returns false if no word below the current node can make it into a full heap. A word's
+ * frequency is at most the highest frequency below the node, multiplied by the weight of the
+ * remaining typed characters and the full word multiplier. Words can be dropped from the heap
+ * in a SKIP_ANY search, so nothing is pruned there. A word only has to reach the weakest one,
+ * not exceed it like a callback's threshold, since it still gets in if it is shorter.
+ */
+bool
+SearchContext::canReachTopWords(int maxFreq, int snr, int inputIndex)
+{
+    if (mSkipPos == SKIP_ANY || mHeapSize < mMaxWords) return true;
+    const long long weakest = mSlotFreqs[mHeap[0]];
+    long long reachable = (long long) maxFreq * snr * mFullWordMultiplier;
+    for (int i = inputIndex; i < mInputLength && reachable < weakest; i++) {
+        reachable *= mTypedLetterMultiplier;
+    }
+    return reachable >= weakest;
+}
+
+/**
+ * In a SKIP_ANY search, only the words that skip the earliest position are returned, which is
+ * what trying each skip position in turn and stopping at the first one with results gives.
+ * Returns false if a word that skipped the character at the given depth can't be kept. Finding
+ * an earlier skip position drops the words found for later ones.
+ */
+bool
+SearchContext::checkSkipDepth(int skipped)
+{
+    if (mSkipPos != SKIP_ANY) return true;
+    if (skipped > mMinSkipDepth) return false;
+    if (skipped < mMinSkipDepth) {
+        removeWordsSkippedAfter(skipped);
+        mMinSkipDepth = skipped;
+    }
+    return true;
+}
+
+void
+SearchContext::removeWordsSkippedAfter(int depth)
+{
+    int kept = 0;
+    for (int i = 0; i < mHeapSize; i++) {
+        int slot = mHeap[i];
+        if (mSlotSkipDepths[slot] > depth) {
+            mFreeSlots[mFreeSlotCount++] = slot;
+        } else {
+            mHeap[kept++] = slot;
+        }
+    }
+    // Put back the unskipped words that were pushed out
+    while (mStashCount > 0) {
+        int slot = mStash[--mStashCount];
+        if (kept < mMaxWords) {
+            mHeap[kept++] = slot;
+        } else {
+            mFreeSlots[mFreeSlotCount++] = slot;
+        }
+    }
+    mHeapSize = kept;
+    for (int i = kept / 2 - 1; i >= 0; i--) {
+        siftDown(i, kept);
+    }
+}
+
+unsigned short
+SearchContext::toLowerCase(unsigned short c, const int depth) {
+    if (c < sizeof(BASE_CHARS) / sizeof(BASE_CHARS[0])) {
+        c = BASE_CHARS[c];
+    }
+    if (depth == 0) {
+        if (c >='A' && c <= 'Z') {
+            c |= 32;
+        } else if (c > 127 && c < sizeof(LOWER_CHARS) / sizeof(LOWER_CHARS[0])) {
+            c = LOWER_CHARS[c];
+        }
+    }
+    return c;
+}
+
+/**
+ * Makes sure the frontier holds the given level for the current input, keeping the levels built
+ * from the same codes and extending from there. Returns false if the level can't be kept, in
+ * which case the caller has to search from the root.
+ */
+bool
+SearchContext::updateFrontier(int level)
+{
+    if (level >= MAX_WORD_LENGTH || mMaxAlternatives > MAX_FRONTIER_ALTERNATIVES) {
+        return false;
+    }
+    if (mLevelCount == 0 || mLevelAlternatives != mMaxAlternatives) {
+        mStatePos[0] = mDictionary->getRoot();
+        mStateDepths[0] = 0;
+        mStateSnrs[0] = 1;
+        mStateDiffs[0] = 0;
+        mStateMaxFreqs[0] = MAX_FREQ;
+        mStateWordStarts[0] = 0;
+        mStateCount = 1;
+        mLevelStarts[0] = 0;
+        mLevelStarts[1] = 1;
+        mLevelCount = 1;
+        mLevelAlternatives = mMaxAlternatives;
+        mOverflowLevel = 0;
+    }
+    // Drop the levels built from codes that changed
+    for (int k = 1; k < mLevelCount && k <= level; k++) {
+        if (memcmp(mLevelCodes + (k - 1) * mMaxAlternatives,
+                mInputCodes + (k - 1) * mMaxAlternatives, mMaxAlternatives * sizeof(int))) {
+            mLevelCount = k;
+            break;
+        }
+    }
+    // A level that overflowed would overflow again from the same codes, so it isn't tried
+    // again until they change
+    if (mOverflowLevel > 0 && level >= mOverflowLevel) {
+        if (mLevelCount == mOverflowLevel
+                && !memcmp(mLevelCodes + (mOverflowLevel - 1) * mMaxAlternatives,
+                        mInputCodes + (mOverflowLevel - 1) * mMaxAlternatives,
+                        mMaxAlternatives * sizeof(int))) {
+            return false;
+        }
+        mOverflowLevel = 0;
+    }
+    while (mLevelCount <= level) {
+        const int k = mLevelCount;
+        int *codes = mInputCodes + (k - 1) * mMaxAlternatives;
+        memcpy(mLevelCodes + (k - 1) * mMaxAlternatives, codes, mMaxAlternatives * sizeof(int));
+        mStateCount = mLevelStarts[k];
+        const int end = mStateCount;
+        for (int s = mLevelStarts[k - 1]; s < end; s++) {
+            memcpy(mWord, mStateWords + mStateWordStarts[s], mStateDepths[s] * sizeof(short));
+            if (!expandState(mStatePos[s], mStateDepths[s], mStateSnrs[s], mStateDiffs[s],
+                    codes)) {
+                mOverflowLevel = k;
+                return false;
+            }
+        }
+        mLevelStarts[k + 1] = mStateCount;
+        mLevelCount = k + 1;
+    }
+    return true;
+}
+
+/**
+ * Adds the states reached from the node group at pos by matching one typed character, the way
+ * getWordsRec() descends in a search without skips. Returns false if the frontier is full.
+ */
+bool
+SearchContext::expandState(int pos, int depth, int snr, int diffs, int *currentChars)
+{
+    if (depth >= (int) (sizeof(mWord) / sizeof(mWord[0]))) {
+        return false;
+    }
+    int count = mDictionary->getCount(&pos);
+    for (int i = 0; i < count; i++) {
+        unsigned short c = mDictionary->getChar(&pos);
+        unsigned short lowerC = toLowerCase(c, depth);
+        bool terminal = mDictionary->getTerminal(&pos);
+        int childrenAddress = mDictionary->getAddress(&pos);
+        if (terminal) mDictionary->getFreq(&pos);
+        int childMaxFreq = MAX_FREQ;
+        if (mHasMaxFreq && childrenAddress != 0) childMaxFreq = mDictionary->getFreq(&pos);
+        if (childrenAddress == 0) continue;
+        mWord[depth] = c;
+        if (c == QUOTE && currentChars[0] != QUOTE) {
+            if (!expandState(childrenAddress, depth + 1, snr, diffs, currentChars)) {
+                return false;
+            }
+            continue;
+        }
+        for (int j = 0; currentChars[j] > 0; j++) {
+            if (currentChars[j] == lowerC || currentChars[j] == c) {
+                if (!addState(childrenAddress, depth + 1,
+                        snr * (j == 0 ? mTypedLetterMultiplier : 1), diffs + (j > 0),
+                        childMaxFreq)) {
+                    return false;
+                }
+            }
+        }
+    }
+    return true;
+}
+
+/**
+ * Adds a state reached with the characters in mWord. Returns false if the frontier is full.
+ */
+bool
+SearchContext::addState(int pos, int depth, int snr, int diffs, int maxFreq)
+{
+    if (mStateCount >= MAX_FRONTIER_STATES) {
+        return false;
+    }
+    const int s = mStateCount;
+    // The states of a level are stored after those of the previous levels, and so are their
+    // characters
+    const int wordStart = mStateWordStarts[s - 1] + mStateDepths[s - 1];
+    if (wordStart + depth > MAX_FRONTIER_CHARS) {
+        return false;
+    }
+    memcpy(mStateWords + wordStart, mWord, depth * sizeof(short));
+    mStateWordStarts[s] = wordStart;
+    mStatePos[s] = pos;
+    mStateDepths[s] = depth;
+    mStateSnrs[s] = snr;
+    mStateDiffs[s] = diffs;
+    mStateMaxFreqs[s] = maxFreq;
+    mStateCount++;
+    return true;
+}
+
+bool
+SearchContext::sameAsTyped(unsigned short *word, int length)
+{
+    if (length != mInputLength) {
+        return false;
+    }
+    int *inputCodes = mInputCodes;
+    while (length--) {
+        if ((unsigned int) *inputCodes != (unsigned int) *word) {
+            return false;
+        }
+        inputCodes += mMaxAlternatives;
+        word++;
+    }
+    return true;
+}
+
+void
+SearchContext::getWordsRec(int pos, int depth, int maxDepth, bool completion, int snr, int inputIndex,
+                        int diffs, int skipped, int maxFreq)
+{
+    // Optimization: Prune out words that are too long compared to how much was typed.
+    if (depth > maxDepth) {
+        return;
+    }
+    if (diffs > mMaxEditDistance) {
+        return;
+    }
+    // Optimization: Prune out words that can't rank high enough to be returned.
+    if (!canReachTopWords(maxFreq, snr, inputIndex)) {
+        return;
+    }
+    if (mSkipPos == SKIP_ANY) {
+        // Every word of a SKIP_ANY search has to skip a character, and only the earliest
+        // skip position that matches anything is kept.
+        if (skipped < 0 && (completion || inputIndex >= mInputLength || depth > mMinSkipDepth)) {
+            return;
+        }
+        if (skipped > mMinSkipDepth) {
+            return;
+        }
+    }
+    int count = mDictionary->getCount(&pos);
+    int *currentChars = NULL;
+    if (mInputLength <= inputIndex) {
+        completion = true;
+    } else {
+        currentChars = mInputCodes + (inputIndex * mMaxAlternatives);
+    }
+
+    for (int i = 0; i < count; i++) {
+        unsigned short c = mDictionary->getChar(&pos);
+        unsigned short lowerC = toLowerCase(c, depth);
+        bool terminal = mDictionary->getTerminal(&pos);
+        int childrenAddress = mDictionary->getAddress(&pos);
+        int freq = 1;
+        if (terminal) freq = mDictionary->getFreq(&pos);
+        int childMaxFreq = MAX_FREQ;
+        if (mHasMaxFreq && childrenAddress != 0) childMaxFreq = mDictionary->getFreq(&pos);
+        // If we are only doing completions, no need to look at the typed characters.
+        if (completion) {
+            mWord[depth] = c;
+            if (terminal && checkSkipDepth(skipped)) {
+                addWord(mWord, depth + 1, freq * snr, skipped);
+            }
+            if (childrenAddress != 0) {
+                getWordsRec(childrenAddress, depth + 1, maxDepth,
+                            completion, snr, inputIndex, diffs, skipped, childMaxFreq);
+            }
+            continue;
+        }
+        if (mSkipPos == SKIP_ANY && skipped < 0 && depth < mInputLength) {
+            // Try this character as the one that was missed, then carry on as if it wasn't
+            mWord[depth] = c;
+            if (childrenAddress != 0) {
+                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs,
+                        depth, childMaxFreq);
+            }
+        }
+        if (c == QUOTE && currentChars[0] != QUOTE || mSkipPos == depth) {
+            // Skip the ' or other letter and continue deeper
+            mWord[depth] = c;
+            if (childrenAddress != 0) {
+                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex, diffs,
+                        mSkipPos == depth ? depth : skipped, childMaxFreq);
+            }
+        } else {
+            int j = 0;
+            while (currentChars[j] > 0) {
+                if (currentChars[j] == lowerC || currentChars[j] == c) {
+                    int addedWeight = j == 0 ? mTypedLetterMultiplier : 1;
+                    mWord[depth] = c;
+                    if (mInputLength == inputIndex + 1) {
+                        if (terminal && (mSkipPos != SKIP_ANY || skipped >= 0)) {
+                            if (//INCLUDE_TYPED_WORD_IF_VALID ||
+                                !sameAsTyped(mWord, depth + 1) && checkSkipDepth(skipped)) {
+                                int finalFreq = freq * snr * addedWeight;
+                                if (mSkipPos == SKIP_NONE) finalFreq *= mFullWordMultiplier;
+                                addWord(mWord, depth + 1, finalFreq, skipped);
+                            }
+                        }
+                        if (childrenAddress != 0) {
+                            getWordsRec(childrenAddress, depth + 1,
+                                    maxDepth, true, snr * addedWeight, inputIndex + 1,
+                                    diffs + (j > 0), skipped, childMaxFreq);
+                        }
+                    } else if (childrenAddress != 0) {
+                        getWordsRec(childrenAddress, depth + 1, maxDepth,
+                                false, snr * addedWeight, inputIndex + 1, diffs + (j > 0),
+                                skipped, childMaxFreq);
+                    }
+                }
+                j++;
+                if (mSkipPos != SKIP_NONE) break;
+            }
+        }
+    }
+}
+
+} // namespace s9
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef S9_SEARCH_CONTEXT_H
+#define S9_SEARCH_CONTEXT_H
+
+#include "dictionary.h"
+
+namespace s9 {
+
+// Special values for the skipPos argument of getSuggestions. SKIP_NONE matches every typed
+// character. SKIP_ANY looks for words where the user missed one character, trying every
+// position in a single traversal and keeping only the words that skip the earliest position.
+#define SKIP_NONE -1
+#define SKIP_ANY -2
+
+// Upper bound for the maxWords argument of getSuggestions
+#define MAX_WORDS 64
+// Longest word, including the terminating null, that can be collected
+#define MAX_WORD_LENGTH 48
+// Word slots available to the collector. Words pushed out during a SKIP_ANY search can be held
+// on to, so there can be twice as many words as results.
+#define MAX_SLOTS (MAX_WORDS * 2)
+// Upper bound for the states of the search frontier, and for the characters leading to them
+#define MAX_FRONTIER_STATES 4096
+#define MAX_FRONTIER_CHARS (MAX_FRONTIER_STATES * 8)
+// Largest maxAlternatives the frontier is kept for
+#define MAX_FRONTIER_ALTERNATIVES 16
+
+// The state of the searches of one caller over a dictionary: the input and output buffers, the
+// words collected so far and the search frontier kept between keystrokes. Searches with
+// different contexts can run at the same time. A context must not be used by two threads at
+// once, nor outlive its dictionary.
+class SearchContext {
+public:
+    SearchContext(const Dictionary *dictionary);
+    int getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
+        int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
+    // The lowest place a word was put in when it was found by the last search without
+    // skipping, counting from 1. Words found later push earlier ones down, so it can be less
+    // than the number of words returned. The missed character search is tried on it.
+    int getPlacedWords() const { return mPlacedWords; }
+    ~SearchContext();
+
+private:
+
+    bool sameAsTyped(unsigned short *word, int length);
+    void initWords();
+    int flushWords();
+    bool addWord(unsigned short *word, int length, int frequency, int skipped);
+    bool isWorse(int slot1, int slot2);
+    void siftUp(int index);
+    void siftDown(int index, int size);
+    bool canReachTopWords(int maxFreq, int snr, int inputIndex);
+    bool checkSkipDepth(int skipped);
+    void removeWordsSkippedAfter(int depth);
+    unsigned short toLowerCase(unsigned short c, const int depth);
+    bool updateFrontier(int level);
+    bool expandState(int pos, int depth, int snr, int diffs, int *currentChars);
+    bool addState(int pos, int depth, int snr, int diffs, int maxFreq);
+    void getWordsRec(int pos, int depth, int maxDepth, bool completion, int frequency,
+            int inputIndex, int diffs, int skipped, int maxFreq);
+
+    const Dictionary *mDictionary;
+    bool mHasMaxFreq;
+    int mFullWordMultiplier;
+    int mTypedLetterMultiplier;
+
+    int *mFrequencies;
+    int mMaxWords;
+    int mMaxWordLength;
+    unsigned short *mOutputChars;
+    int *mInputCodes;
+    int mInputLength;
+    int mMaxAlternatives;
+    unsigned short mWord[128];
+    int mSkipPos;
+    // Earliest skipped depth that produced a word so far in a SKIP_ANY search
+    int mMinSkipDepth;
+    // See getPlacedWords()
+    int mPlacedWords;
+
+    // Min-heap of the slots holding the best words so far, the weakest word at the top
+    int mHeap[MAX_WORDS];
+    int mHeapSize;
+    unsigned short mSlotChars[MAX_SLOTS * MAX_WORD_LENGTH];
+    int mSlotFreqs[MAX_SLOTS];
+    int mSlotLengths[MAX_SLOTS];
+    // Order in which the words were added, earlier words win ties
+    int mSlotOrders[MAX_SLOTS];
+    // The depth at which each word skipped a character, -1 if it didn't
+    int mSlotSkipDepths[MAX_SLOTS];
+    int mFreeSlots[MAX_SLOTS];
+    int mFreeSlotCount;
+    int mNextOrder;
+    // Unskipped words pushed out of the heap by words that skipped a character
+    int mStash[MAX_WORDS];
+    int mStashCount;
+    int mMaxEditDistance;
+
+    // The search frontier: level k holds the node groups reached by matching the first k
+    // typed characters, in traversal order, with the characters, snr, diffs and highest
+    // frequency they were reached with. Searching n characters resumes from level n - 1, so a
+    // keystroke only extends the deepest level, and a deleted character just drops one.
+    // Levels are kept until the codes they were built from change.
+    int mStatePos[MAX_FRONTIER_STATES];
+    int mStateDepths[MAX_FRONTIER_STATES];
+    int mStateSnrs[MAX_FRONTIER_STATES];
+    int mStateDiffs[MAX_FRONTIER_STATES];
+    int mStateMaxFreqs[MAX_FRONTIER_STATES];
+    // The characters leading to each state, as many as its depth
+    int mStateWordStarts[MAX_FRONTIER_STATES];
+    unsigned short mStateWords[MAX_FRONTIER_CHARS];
+    int mStateCount;
+    // Level k occupies the states from mLevelStarts[k] up to mLevelStarts[k + 1]
+    int mLevelStarts[MAX_WORD_LENGTH + 1];
+    int mLevelCount;
+    // The codes level k + 1 was built from, maxAlternatives of them
+    int mLevelCodes[MAX_WORD_LENGTH * MAX_FRONTIER_ALTERNATIVES];
+    int mLevelAlternatives;
+    // The level that didn't fit in the frontier, built from the codes in mLevelCodes, 0 if none
+    int mOverflowLevel;
+};
+
+// ----------------------------------------------------------------------------
+
+}; // namespace s9
+
+#endif // S9_SEARCH_CONTEXT_H
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.dict;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Makes a binary dictionary of the words that follow other words, for predicting the next
+ * word, from lexicons in the form of the BNC one: a count, then the word, with the words of a
+ * multi-word unit joined by underscores, such as "1234 of_course". Each pair of words next to
+ * each other in a unit is counted. Lines without a multi-word unit are left out, so the
+ * lexicons of single words add nothing.
+ *
+ * It is in makedict.jar next to MakeBinaryDictionary. The jar is built with javac --release 8,
+ * so that makedict_Linux still runs it. res/raw/en_bigrams.png is made from the
+ * corpus with:
+ *   java -cp makedict.jar com.android.tools.dict.MakeBigramDictionary \
+ *       ../corpus/bnc-lexicon ../corpus/anc-lexicon.txt ../../res/raw/en_bigrams.png
+ *
+ * The dictionary has to match BigramDictionary.java:
+ *
+ * A header of 8 bytes: two magic bytes, the format version, flags (0), and the number of
+ * words that have next words in 4 bytes. Then those words, in char order, 6 bytes each: the
+ * address of the word and the address of its next words, 3 bytes each. A list of next words
+ * is a count in 1 byte, then for each one the address of the word in 3 bytes and its frequency
+ * in 1 byte, the most frequent first. A word is its length in 1 byte, then its characters in 1
+ * byte each, so words with characters above 255 are left out. Addresses are from the start of
+ * the dictionary, and numbers are big-endian.
+ */
+public class MakeBigramDictionary {
+
+    private static final int HEADER_MAGIC_1 = 0x78;
+    private static final int HEADER_MAGIC_2 = 0xB2;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 6;
+    private static final int NEXT_WORD_SIZE = 4;
+    // The most next words kept for a word, which the count byte also limits
+    private static final int MAX_NEXT_WORDS = 32;
+    private static final int MAX_WORD_LENGTH = 48;
+    private static final int MAX_ADDRESS = 0xFFFFFF;
+
+    // Counts of the words following each word, by word
+    Map<String, Map<String, Long>> mCounts = new TreeMap<String, Map<String, Long>>();
+    long mMaxCount;
+    int mPairCount;
+
+    public static void usage() {
+        System.err.println("Usage: makebigrams <lexicon> [<lexicon> ...] <dest.dict>");
+        System.err.println("  Lexicon lines are a count and a word, such as \"1234 of_course\"");
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            usage();
+        } else {
+            MakeBigramDictionary maker = new MakeBigramDictionary();
+            for (int i = 0; i < args.length - 1; i++) {
+                maker.readLexicon(args[i]);
+            }
+            maker.writeToDict(args[args.length - 1]);
+        }
+    }
+
+    private void readLexicon(String filename) {
+        BufferedReader reader = null;
+        int units = 0;
+        try {
+            reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(filename), "ISO-8859-1"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 2 || fields[1].indexOf('_') < 0) continue;
+                long count;
+                try {
+                    count = Long.parseLong(fields[0]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                String[] words = fields[1].split("_");
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = cleanWord(words[i]);
+                }
+                for (int i = 0; i + 1 < words.length; i++) {
+                    if (words[i] != null && words[i + 1] != null) {
+                        addPair(words[i], words[i + 1], count);
+                    }
+                }
+                units++;
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading " + filename + ": " + e);
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                // Nothing more to read
+            }
+        }
+        System.out.println(filename + ": " + units + " multi-word units");
+    }
+
+    /**
+     * Returns the word with its SGML entities turned into the characters they stand for, as
+     * lower case, or null if it isn't a word that can be typed and stored.
+     */
+    static String cleanWord(String word) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c == '&') {
+                // Entities such as &eacute; for an accented letter, with or without the ';'
+                int end = i + 1;
+                while (end < word.length() && Character.isLetter(word.charAt(end))) {
+                    end++;
+                }
+                String accented = decodeEntity(word.substring(i + 1, end));
+                if (accented == null) return null;
+                sb.append(accented);
+                i = end < word.length() && word.charAt(end) == ';' ? end : end - 1;
+            } else {
+                sb.append(c);
+            }
+        }
+        // Abbreviations such as "cit." are typed without their full stop
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) == '.') {
+            sb.setLength(sb.length() - 1);
+        }
+        if (sb.length() == 0 || sb.length() > MAX_WORD_LENGTH) return null;
+        for (int i = 0; i < sb.length(); i++) {
+            char c = sb.charAt(i);
+            if (c > 0xFF || !(Character.isLetter(c) || c == '\'' || c == '-')) return null;
+        }
+        return sb.toString().toLowerCase();
+    }
+
+    // The combining marks of the entities for accented letters
+    private static final String[][] ENTITY_MARKS = {
+        { "grave", "\u0300" }, { "acute", "\u0301" }, { "circ", "\u0302" },
+        { "tilde", "\u0303" }, { "uml", "\u0308" }, { "ring", "\u030a" },
+        { "cedil", "\u0327" },
+    };
+
+    private static String decodeEntity(String name) {
+        if (name.equals("amp")) return "&";
+        for (String[] mark : ENTITY_MARKS) {
+            if (name.length() == mark[0].length() + 1 && name.endsWith(mark[0])) {
+                return Normalizer.normalize(name.charAt(0) + mark[1], Normalizer.Form.NFC);
+            }
+        }
+        return null;
+    }
+
+    private void addPair(String word, String nextWord, long count) {
+        Map<String, Long> nextWords = mCounts.get(word);
+        if (nextWords == null) {
+            nextWords = new TreeMap<String, Long>();
+            mCounts.put(word, nextWords);
+        }
+        Long previous = nextWords.get(nextWord);
+        long total = previous != null ? previous + count : count;
+        if (previous == null) mPairCount++;
+        nextWords.put(nextWord, total);
+        mMaxCount = Math.max(mMaxCount, total);
+    }
+
+    /**
+     * Scales a count to a frequency from 1 to 255, the way the counts of the main dictionary
+     * are, on a log scale so that rarer phrases still rank among themselves.
+     */
+    private int toFrequency(long count) {
+        if (mMaxCount <= 1) return 255;
+        int freq = (int) Math.round(255 * Math.log(count) / Math.log(mMaxCount));
+        return Math.max(1, Math.min(255, freq));
+    }
+
+    private List<Map.Entry<String, Long>> sortedNextWords(String word) {
+        List<Map.Entry<String, Long>> nextWords =
+                new ArrayList<Map.Entry<String, Long>>(mCounts.get(word).entrySet());
+        Collections.sort(nextWords, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                int byCount = b.getValue().compareTo(a.getValue());
+                return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+            }
+        });
+        if (nextWords.size() > MAX_NEXT_WORDS) {
+            nextWords = nextWords.subList(0, MAX_NEXT_WORDS);
+        }
+        return nextWords;
+    }
+
+    void writeToDict(String dictFilename) {
+        // Every word that is in a pair is stored once, the words of the index first
+        List<String> words = new ArrayList<String>(mCounts.keySet());
+        for (String word : mCounts.keySet()) {
+            for (String nextWord : mCounts.get(word).keySet()) {
+                if (!mCounts.containsKey(nextWord) && !words.contains(nextWord)) {
+                    words.add(nextWord);
+                }
+            }
+        }
+
+        final int firstCount = mCounts.size();
+        int listsStart = HEADER_SIZE + firstCount * INDEX_ENTRY_SIZE;
+        Map<String, Integer> listAddresses = new HashMap<String, Integer>();
+        int address = listsStart;
+        for (String word : mCounts.keySet()) {
+            listAddresses.put(word, address);
+            address += 1 + sortedNextWords(word).size() * NEXT_WORD_SIZE;
+        }
+        Map<String, Integer> wordAddresses = new HashMap<String, Integer>();
+        for (String word : words) {
+            wordAddresses.put(word, address);
+            address += 1 + word.length();
+        }
+        if (address > MAX_ADDRESS) {
+            System.err.println("Too many words for 3 byte addresses");
+            return;
+        }
+
+        byte[] dict = new byte[address];
+        int pos = 0;
+        dict[pos++] = (byte) HEADER_MAGIC_1;
+        dict[pos++] = (byte) HEADER_MAGIC_2;
+        dict[pos++] = (byte) FORMAT_VERSION;
+        dict[pos++] = 0;
+        pos = writeNumber(dict, pos, firstCount, 4);
+        for (String word : mCounts.keySet()) {
+            pos = writeNumber(dict, pos, wordAddresses.get(word), 3);
+            pos = writeNumber(dict, pos, listAddresses.get(word), 3);
+        }
+        for (String word : mCounts.keySet()) {
+            List<Map.Entry<String, Long>> nextWords = sortedNextWords(word);
+            dict[pos++] = (byte) nextWords.size();
+            for (Map.Entry<String, Long> nextWord : nextWords) {
+                pos = writeNumber(dict, pos, wordAddresses.get(nextWord.getKey()), 3);
+                dict[pos++] = (byte) toFrequency(nextWord.getValue());
+            }
+        }
+        for (String word : words) {
+            dict[pos++] = (byte) word.length();
+            for (int i = 0; i < word.length(); i++) {
+                dict[pos++] = (byte) word.charAt(i);
+            }
+        }
+        System.out.println("Words = " + firstCount + " with next words, " + words.size()
+                + " in all, pairs = " + mPairCount);
+        System.out.println("Dict Size = " + pos);
+        try {
+            FileOutputStream fos = new FileOutputStream(dictFilename);
+            fos.write(dict, 0, pos);
+            fos.close();
+        } catch (IOException ioe) {
+            System.err.println("Error writing dict file:" + ioe);
+        }
+    }
+
+    private static int writeNumber(byte[] dict, int pos, int value, int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            dict[pos++] = (byte) (value >> shift);
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.dict;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Compresses a list of words and frequencies into a tree structured binary dictionary.
+ */
+public class MakeBinaryDictionary {
+
+    public static final int ALPHA_SIZE = 256;
+
+    public static final String TAG_WORD = "w";
+    public static final String ATTR_FREQ = "f";
+
+    private static final int FLAG_ADDRESS_MASK  = 0x400000;
+    private static final int FLAG_TERMINAL_MASK = 0x800000;
+    private static final int ADDRESS_MASK = 0x3FFFFF;
+
+    // The header starts with a magic number that the root node count and first character of a
+    // dictionary without header are very unlikely to match, then the format version and flags.
+    private static final int HEADER_MAGIC_1 = 0x78;
+    private static final int HEADER_MAGIC_2 = 0xB1;
+    private static final int HEADER_SIZE = 4;
+    private static final int FORMAT_VERSION = 1;
+    // Nodes with children store the highest frequency below them, after the node's frequency
+    private static final int FLAG_HAS_MAX_FREQ = 0x01;
+    // A bloom filter of the words follows the header: the number of hashes, the size of the
+    // bits in three bytes and the bits. It has to match BloomFilter.java and dictionary.cpp.
+    private static final int FLAG_HAS_BLOOM_FILTER = 0x02;
+    private static final int BLOOM_BITS_PER_WORD = 10;
+    private static final int BLOOM_HASH_COUNT = 7;
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    public static final CharNode EMPTY_NODE = new CharNode();
+
+    List<CharNode> roots;
+    Map<String, Integer> mDictionary;
+    int mWordCount;
+
+    boolean mLegacyFormat;
+    // Whether to write identical node groups only once, which turns the tree into a DAWG
+    boolean mShareGroups;
+    // Where each node group was written, so that shared groups are written once
+    Map<List<CharNode>, Integer> mGroupAddresses = new IdentityHashMap<List<CharNode>, Integer>();
+
+    static class CharNode {
+        char data;
+        int freq;
+        boolean terminal;
+        List<CharNode> children;
+        // Highest frequency of the words below this node
+        int maxFreq;
+        static int sNodes;
+
+        public CharNode() {
+            sNodes++;
+        }
+    }
+
+    public static void usage() {
+        System.err.println("Usage: makedict [-legacy] [-dawg] <src.xml> <dest.dict>");
+        System.err.println("  -legacy  write the format without header and max frequencies");
+        System.err.println("  -dawg    share identical node groups, such as common suffixes");
+        System.exit(-1);
+    }
+
+    public static void main(String[] args) {
+        boolean legacy = false;
+        boolean dawg = false;
+        int first = 0;
+        for (; first < args.length && args[first].startsWith("-"); first++) {
+            if (args[first].equals("-legacy")) {
+                legacy = true;
+            } else if (args[first].equals("-dawg")) {
+                dawg = true;
+            } else {
+                usage();
+            }
+        }
+        if (args.length - first < 2) {
+            usage();
+        } else {
+            new MakeBinaryDictionary(args[first], args[first + 1], legacy, dawg);
+        }
+    }
+
+    public MakeBinaryDictionary(String srcFilename, String destFilename) {
+        this(srcFilename, destFilename, false, false);
+    }
+
+    public MakeBinaryDictionary(String srcFilename, String destFilename, boolean legacyFormat,
+            boolean shareGroups) {
+        mLegacyFormat = legacyFormat;
+        mShareGroups = shareGroups;
+        populateDictionary(srcFilename);
+        writeToDict(destFilename);
+    }
+
+    private void populateDictionary(String filename) {
+        roots = new ArrayList<CharNode>();
+        try {
+            SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+            parser.parse(new File(filename), new DefaultHandler() {
+                boolean inWord;
+                int freq;
+
+                @Override
+                public void startElement(String uri, String localName,
+                        String qName, Attributes attributes) {
+                    if (qName.equals("w")) {
+                        inWord = true;
+                        freq = Integer.parseInt(attributes.getValue(0));
+                    }
+                }
+
+                @Override
+                public void characters(char[] data, int offset, int length) {
+                    // Ignore other whitespace
+                    if (!inWord) return;
+
+                    // Ignore one letter words
+                    if (length < 2) return;
+                    mWordCount++;
+                    String word = new String(data, offset, length);
+                    addWordTop(word, freq);
+                }
+
+                @Override
+                public void endElement(String uri, String localName,
+                        String qName) {
+                    if (qName.equals("w")) inWord = false;
+                }
+            });
+        } catch (Exception ioe) {
+            System.err.println("Exception in parsing\n" + ioe);
+            ioe.printStackTrace();
+        }
+        System.out.println("Nodes = " + CharNode.sNodes);
+    }
+
+    private int indexOf(List<CharNode> children, char c) {
+        if (children == null) {
+            return -1;
+        }
+        for (int i = 0; i < children.size(); i++) {
+            if (children.get(i).data == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void addWordTop(String word, int occur) {
+        if (occur > 255) occur = 255;
+
+        char firstChar = word.charAt(0);
+        int index = indexOf(roots, firstChar);
+        if (index == -1) {
+            CharNode newNode = new CharNode();
+            newNode.data = firstChar;
+            newNode.freq = occur;
+            index = roots.size();
+            roots.add(newNode);
+        } else {
+            roots.get(index).freq += occur;
+        }
+        if (word.length() > 1) {
+            addWordRec(roots.get(index), word, 1, occur);
+        } else {
+            roots.get(index).terminal = true;
+        }
+    }
+
+    private void addWordRec(CharNode parent, String word, int charAt, int occur) {
+        CharNode child = null;
+        char data = word.charAt(charAt);
+        if (parent.children == null) {
+            parent.children = new ArrayList<CharNode>();
+        } else {
+            for (int i = 0; i < parent.children.size(); i++) {
+                CharNode node = parent.children.get(i);
+                if (node.data == data) {
+                    child = node;
+                    break;
+                }
+            }
+        }
+        if (child == null) {
+            child = new CharNode();
+            parent.children.add(child);
+        }
+        child.data = data;
+        if (child.freq == 0) child.freq = occur;
+        if (word.length() > charAt + 1) {
+            addWordRec(child, word, charAt + 1, occur);
+        } else {
+            child.terminal = true;
+            child.freq = occur;
+        }
+    }
+
+    byte[] dict;
+    int dictSize;
+    static final int CHAR_WIDTH = 8;
+    static final int FLAGS_WIDTH = 1; // Terminal flag (word end)
+    static final int ADDR_WIDTH = 23; // Offset to children
+    static final int FREQ_WIDTH_BYTES = 1;
+    static final int COUNT_WIDTH_BYTES = 1;
+
+    private void addCount(int count) {
+        dict[dictSize++] = (byte) (0xFF & count);
+    }
+
+    private void addNode(CharNode node) {
+        int charData = 0xFFFF & node.data;
+        if (charData > 254) {
+            dict[dictSize++] = (byte) 255;
+            dict[dictSize++] = (byte) ((node.data >> 8) & 0xFF);
+            dict[dictSize++] = (byte) (node.data & 0xFF);
+        } else {
+            dict[dictSize++] = (byte) (0xFF & node.data);
+        }
+        if (node.children != null) {
+            dictSize += 3; // Space for children address
+        } else {
+            dictSize += 1; // Space for just the terminal/address flags
+        }
+        if ((0xFFFFFF & node.freq) > 255) {
+            node.freq = 255;
+        }
+        if (node.terminal) {
+            byte freq = (byte) (0xFF & node.freq);
+            dict[dictSize++] = freq;
+        }
+        if (node.children != null && !mLegacyFormat) {
+            dict[dictSize++] = (byte) (0xFF & node.maxFreq);
+        }
+    }
+
+    int nullChildrenCount = 0;
+    int notTerminalCount = 0;
+
+    private void updateNodeAddress(int nodeAddress, CharNode node,
+            int childrenAddress) {
+        if ((dict[nodeAddress] & 0xFF) == 0xFF) { // 3 byte character
+            nodeAddress += 2;
+        }
+        childrenAddress = ADDRESS_MASK & childrenAddress;
+        if (childrenAddress == 0) {
+            nullChildrenCount++;
+        } else {
+            childrenAddress |= FLAG_ADDRESS_MASK;
+        }
+        if (node.terminal) {
+            childrenAddress |= FLAG_TERMINAL_MASK;
+        } else {
+            notTerminalCount++;
+        }
+        dict[nodeAddress + 1] = (byte) (childrenAddress >> 16);
+        if ((childrenAddress & FLAG_ADDRESS_MASK) != 0) {
+            dict[nodeAddress + 2] = (byte) ((childrenAddress & 0xFF00) >> 8);
+            dict[nodeAddress + 3] = (byte) ((childrenAddress & 0xFF));
+        }
+    }
+
+    /**
+     * Sets maxFreq on the nodes below children and returns the highest frequency among them.
+     */
+    int computeMaxFreq(List<CharNode> children) {
+        if (children == null) {
+            return 0;
+        }
+        int max = 0;
+        for (int i = 0; i < children.size(); i++) {
+            CharNode node = children.get(i);
+            node.maxFreq = computeMaxFreq(node.children);
+            max = Math.max(max, node.maxFreq);
+            if (node.terminal) {
+                max = Math.max(max, Math.min(0xFFFFFF & node.freq, 255));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds the words below children to the list, as they are stored in the tree.
+     */
+    void collectWords(List<CharNode> children, StringBuilder word, List<String> words) {
+        if (children == null) {
+            return;
+        }
+        for (int i = 0; i < children.size(); i++) {
+            CharNode node = children.get(i);
+            word.append(node.data);
+            if (node.terminal) {
+                words.add(word.toString());
+            }
+            collectWords(node.children, word, words);
+            word.setLength(word.length() - 1);
+        }
+    }
+
+    void writeBloomFilter(List<String> words) {
+        int byteCount = (Math.max(words.size(), 8) * BLOOM_BITS_PER_WORD + 7) / 8;
+        int bitCount = byteCount * 8;
+        dict[dictSize++] = (byte) BLOOM_HASH_COUNT;
+        dict[dictSize++] = (byte) ((byteCount >> 16) & 0xFF);
+        dict[dictSize++] = (byte) ((byteCount >> 8) & 0xFF);
+        dict[dictSize++] = (byte) (byteCount & 0xFF);
+        int bits = dictSize;
+        for (String word : words) {
+            int hash = FNV_OFFSET_BASIS;
+            for (int i = 0; i < word.length(); i++) {
+                hash ^= word.charAt(i);
+                hash *= FNV_PRIME;
+            }
+            int hash2 = (hash >>> 17) | (hash << 15);
+            for (int i = 0; i < BLOOM_HASH_COUNT; i++) {
+                int bit = ((hash + i * hash2) & 0x7FFFFFFF) % bitCount;
+                dict[bits + (bit >> 3)] |= (byte) (1 << (bit & 7));
+            }
+        }
+        dictSize += byteCount;
+        System.out.println("Bloom filter = " + byteCount + " bytes, " + words.size() + " words");
+    }
+
+    /**
+     * Replaces the node groups below children that are identical, down to the frequencies, with
+     * one of them. Returns the group that stands for children. Since children are found by
+     * address, readers follow shared groups like any other, and find the same words with the
+     * same frequencies.
+     */
+    List<CharNode> shareGroups(List<CharNode> children, Map<String, List<CharNode>> groups,
+            Map<List<CharNode>, Integer> groupIds) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < children.size(); i++) {
+            CharNode node = children.get(i);
+            int childId = -1;
+            if (node.children != null) {
+                node.children = shareGroups(node.children, groups, groupIds);
+                childId = groupIds.get(node.children);
+            }
+            key.append((int) node.data).append(',')
+                    .append(node.terminal ? Math.min(0xFFFFFF & node.freq, 255) : -1).append(',')
+                    .append(node.children != null ? node.maxFreq : -1).append(',')
+                    .append(childId).append(';');
+        }
+        List<CharNode> shared = groups.get(key.toString());
+        if (shared == null) {
+            shared = children;
+            groups.put(key.toString(), shared);
+            groupIds.put(shared, groupIds.size());
+        }
+        return shared;
+    }
+
+    /**
+     * Writes the node group and the groups below it, unless it was written already. Returns
+     * the address of the group.
+     */
+    int writeWordsRec(List<CharNode> children) {
+        Integer written = mGroupAddresses.get(children);
+        if (written != null) {
+            return written;
+        }
+        final int address = dictSize;
+        mGroupAddresses.put(children, address);
+        final int childCount = children.size();
+        addCount(childCount);
+        int[] childrenAddresses = new int[childCount];
+        for (int j = 0; j < childCount; j++) {
+            CharNode node = children.get(j);
+            childrenAddresses[j] = dictSize;
+            addNode(node);
+        }
+        for (int j = 0; j < childCount; j++) {
+            CharNode node = children.get(j);
+            int nodeAddress = childrenAddresses[j];
+            updateNodeAddress(nodeAddress, node, node.children != null
+                    ? writeWordsRec(node.children) : 0);
+        }
+        return address;
+    }
+
+    void writeToDict(String dictFilename) {
+        // 4MB max, 22-bit offsets
+        dict = new byte[4 * 1024 * 1024]; // 4MB upper limit. Actual is probably
+                                          // < 1MB in most cases, as there is a limit in the
+                                          // resource size in apks.
+        dictSize = 0;
+        if (!mLegacyFormat) {
+            computeMaxFreq(roots);
+            dict[dictSize++] = (byte) HEADER_MAGIC_1;
+            dict[dictSize++] = (byte) HEADER_MAGIC_2;
+            dict[dictSize++] = (byte) FORMAT_VERSION;
+            dict[dictSize++] = (byte) (FLAG_HAS_MAX_FREQ | FLAG_HAS_BLOOM_FILTER);
+            List<String> words = new ArrayList<String>();
+            collectWords(roots, new StringBuilder(), words);
+            writeBloomFilter(words);
+        }
+        if (mShareGroups) {
+            Map<List<CharNode>, Integer> groupIds = new IdentityHashMap<List<CharNode>, Integer>();
+            roots = shareGroups(roots, new HashMap<String, List<CharNode>>(), groupIds);
+            System.out.println("Node groups = " + groupIds.size());
+        }
+        writeWordsRec(roots);
+        System.out.println("Dict Size = " + dictSize);
+        try {
+            FileOutputStream fos = new FileOutputStream(dictFilename);
+            fos.write(dict, 0, dictSize);
+            fos.close();
+        } catch (IOException ioe) {
+            System.err.println("Error writing dict file:" + ioe);
+        }
+    }
+
+    /**
+     * Prints out the words in the dictionary, to verify that the generated tree is traversable.
+     * Call with the position of the root node group and traverseDict(root, new char[32], 0).
+     */
+    void traverseDict(int pos, char[] word, int depth) {
+        int count = dict[pos++] & 0xFF;
+        for (int i = 0; i < count; i++) {
+            char c = (char) (dict[pos++] & 0xFF);
+            if (c == 0xFF) {
+                c = (char) (((dict[pos] & 0xFF) << 8) | (dict[pos+1] & 0xFF));
+                pos += 2;
+            }
+            word[depth] = c;
+            boolean terminal = (dict[pos] & 0x80) > 0;
+            int address = 0;
+            if ((dict[pos] & (FLAG_ADDRESS_MASK >> 16)) > 0) {
+                address =
+                    ((dict[pos + 0] & (ADDRESS_MASK >> 16)) << 16)
+                    | ((dict[pos + 1] & 0xFF) << 8)
+                    | ((dict[pos + 2] & 0xFF));
+                pos += 2;
+            }
+            pos++;
+            if (terminal) {
+                showWord(word, depth + 1, dict[pos] & 0xFF);
+                pos++;
+            }
+            if (address != 0 && !mLegacyFormat) {
+                pos++; // Highest frequency below
+            }
+            if (address != 0) {
+                traverseDict(address, word, depth + 1);
+            }
+        }
+    }
+
+    void showWord(char[] word, int size, int freq) {
+        System.out.print(new String(word, 0, size) + " " + freq + "\n");
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.UserDictionary.Words;
+import android.util.Log;
+
+/**
+ * Stores new words temporarily until they are promoted to the user dictionary
+ * for longevity. Words in the auto dictionary are used to determine if it's ok
+ * to accept a word that's not in the main or user dictionary.
+ *
+ * Each committed word adds to its count. Once the count reaches
+ * PROMOTION_THRESHOLD, the word moves to the user dictionary. Counts are halved
+ * for every DECAY_PERIOD_DAYS the word isn't used, so words that were typed a few
+ * times long ago go away. A count decays when the words are loaded and when the
+ * word is committed again, so the counts in a session that lasts for days only
+ * catch up with the time for the words that are used.
+ *
+ * Changes are made to the trie in place, in time for the length of the word, and
+ * written to a database in batches, on a thread of their own, so that committing a
+ * word doesn't wait for storage.
+ */
+public class AutoDictionary extends ExpandableDictionary {
+    private static final String TAG = "AutoDictionary";
+
+    // How much a word that was typed and committed adds to its count
+    public static final int FREQUENCY_FOR_TYPED = 1;
+    // How much a word that was picked from the suggestions adds to its count
+    public static final int FREQUENCY_FOR_PICKED = 3;
+    // Count at which a word is moved to the user dictionary
+    public static final int PROMOTION_THRESHOLD = 6;
+    // Count at which a word is valid: picked once, or typed and committed three times. A word
+    // typed once may well be a typo, which would otherwise stop being corrected.
+    public static final int VALID_THRESHOLD = FREQUENCY_FOR_PICKED;
+    // Frequency a promoted word gets in the user dictionary
+    private static final int PROMOTED_FREQUENCY = 128;
+    // Frequency in the trie for each count, so that learned words can compete with the
+    // frequencies of the other dictionaries
+    private static final int FREQUENCY_PER_COUNT = 20;
+    // Counts are halved for each of these periods that a word isn't used
+    private static final int DECAY_PERIOD_DAYS = 7;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    // Number of changed words that are written together
+    private static final int BATCH_SIZE = 16;
+
+    private static final String DATABASE_NAME = "auto_dict.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String WORDS_TABLE = "words";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_WORD = "word";
+    private static final String COLUMN_COUNT = "count";
+    private static final String COLUMN_LAST_USED = "last_used";
+    private static final String COLUMN_LOCALE = "locale";
+    private static final String[] PROJECTION = {
+        COLUMN_WORD,
+        COLUMN_COUNT,
+        COLUMN_LAST_USED
+    };
+    private static final int INDEX_WORD = 0;
+    private static final int INDEX_COUNT = 1;
+    private static final int INDEX_LAST_USED = 2;
+
+    /**
+     * The count of a word and the day it was last used, in days since the epoch.
+     */
+    private static final class Entry {
+        int count;
+        long lastUsed;
+
+        Entry(int count, long lastUsed) {
+            this.count = count;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final String mLocale;
+    private final DatabaseHelper mOpenHelper;
+    // Loads the words, then writes batches in the order they were made
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    // The counts of all words, whether written yet or not. Guarded by the dictionary.
+    private final Map<String, Entry> mCounts = new HashMap<String, Entry>();
+    // Words changed since the last batch. A null entry deletes the word.
+    private Map<String, Entry> mPendingWrites = new HashMap<String, Entry>();
+    // Words that reached the threshold since the last batch, to add to the user dictionary
+    private Map<String, Entry> mPendingPromotions = new HashMap<String, Entry>();
+    // Words promoted before the stored words were loaded, which the load leaves out. Null once
+    // they are loaded. Guarded by the dictionary.
+    private Set<String> mPromotedBeforeLoad = new HashSet<String>();
+    private boolean mClosed;
+
+    public AutoDictionary(Context context) {
+        super(context);
+        mLocale = Locale.getDefault().toString();
+        mOpenHelper = new DatabaseHelper(context);
+        mWriter.execute(new Runnable() {
+            public void run() {
+                loadDictionary();
+            }
+        });
+    }
+
+    /**
+     * Counts a committed word, and moves it to the user dictionary once it has been
+     * committed often enough. This doesn't wait for storage.
+     * @param word the word as it would be suggested
+     * @param addFrequency FREQUENCY_FOR_TYPED or FREQUENCY_FOR_PICKED
+     */
+    @Override
+    public synchronized void addWord(String word, int addFrequency) {
+        if (mClosed || word.length() >= getMaxWordLength()) return;
+
+        final long today = today();
+        Entry entry = mCounts.get(word);
+        if (entry == null) {
+            entry = new Entry(0, today);
+            mCounts.put(word, entry);
+        } else {
+            decay(entry, today);
+        }
+        entry.count = Math.min(entry.count + addFrequency, 255);
+        entry.lastUsed = today;
+
+        if (entry.count >= PROMOTION_THRESHOLD) {
+            mCounts.remove(word);
+            removeWord(word);
+            mPendingWrites.put(word, null);
+            mPendingPromotions.put(word, entry);
+            if (mPromotedBeforeLoad != null) mPromotedBeforeLoad.add(word);
+        } else {
+            setWordFrequency(word, getFrequency(entry.count));
+            mPendingWrites.put(word, new Entry(entry.count, entry.lastUsed));
+        }
+
+        // Promoted words are written at once, since they are out of this dictionary and not
+        // yet in the user dictionary until then
+        if (mPendingWrites.size() >= BATCH_SIZE || !mPendingPromotions.isEmpty()) {
+            flushPendingWritesLocked();
+        }
+    }
+
+    /**
+     * Returns true if the word has been committed often enough to be taken as valid. Words
+     * below VALID_THRESHOLD are still suggested.
+     */
+    @Override
+    public boolean isValidWord(CharSequence word) {
+        return getWordFrequency(word) >= getFrequency(VALID_THRESHOLD);
+    }
+
+    /**
+     * Writes the words changed since the last batch in the background.
+     */
+    public synchronized void flushPendingWrites() {
+        if (!mClosed) {
+            flushPendingWritesLocked();
+        }
+    }
+
+    private void flushPendingWritesLocked() {
+        if (mPendingWrites.isEmpty()) return;
+        final Map<String, Entry> writes = mPendingWrites;
+        final Map<String, Entry> promotions = mPendingPromotions;
+        mPendingWrites = new HashMap<String, Entry>();
+        mPendingPromotions = new HashMap<String, Entry>();
+        mWriter.execute(new Runnable() {
+            public void run() {
+                writeWords(writes, promotions);
+            }
+        });
+    }
+
+    /**
+     * Writes the pending words and closes the database once they are written.
+     */
+    @Override
+    public synchronized void close() {
+        if (mClosed) return;
+        flushPendingWritesLocked();
+        mClosed = true;
+        mWriter.execute(new Runnable() {
+            public void run() {
+                mOpenHelper.close();
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    private static long today() {
+        return System.currentTimeMillis() / DAY_MILLIS;
+    }
+
+    private static int getFrequency(int count) {
+        return Math.min(count * FREQUENCY_PER_COUNT, 255);
+    }
+
+    /**
+     * Halves the count of a word for each whole period since it was last used.
+     * @return true if the count was decayed
+     */
+    private static boolean decay(Entry entry, long today) {
+        final long periods = (today - entry.lastUsed) / DECAY_PERIOD_DAYS;
+        if (periods <= 0) return false;
+        entry.count = periods < 31 ? entry.count >> periods : 0;
+        // The days short of a whole period count towards the next one
+        entry.lastUsed += periods * DECAY_PERIOD_DAYS;
+        return true;
+    }
+
+    /**
+     * Reads the words on the writer thread, decays their counts and publishes a trie with
+     * them. Words committed while this ran are added to the stored counts, and the ones
+     * promoted meanwhile are left out.
+     */
+    private void loadDictionary() {
+        final long today = today();
+        Map<String, Entry> stored = new HashMap<String, Entry>();
+        Map<String, Entry> decayed = new HashMap<String, Entry>();
+        try {
+            Cursor cursor = mOpenHelper.getReadableDatabase().query(WORDS_TABLE, PROJECTION,
+                    COLUMN_LOCALE + "=?", new String[] { mLocale }, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    String word = cursor.getString(INDEX_WORD);
+                    Entry entry = new Entry(cursor.getInt(INDEX_COUNT),
+                            cursor.getLong(INDEX_LAST_USED));
+                    if (decay(entry, today)) {
+                        decayed.put(word, entry.count > 0 ? entry : null);
+                    }
+                    if (entry.count > 0) {
+                        stored.put(word, entry);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            // Start over with no words rather than failing to type
+            Log.e(TAG, "Couldn't read the auto dictionary", e);
+        }
+
+        synchronized (this) {
+            // Their stored rows are deleted by a batch that runs after this load
+            stored.keySet().removeAll(mPromotedBeforeLoad);
+            decayed.keySet().removeAll(mPromotedBeforeLoad);
+            mPromotedBeforeLoad = null;
+            for (Map.Entry<String, Entry> added : mCounts.entrySet()) {
+                Entry entry = stored.get(added.getKey());
+                if (entry != null) {
+                    // Committed before the stored count was known; the pending write of it
+                    // has to include the stored count as well
+                    entry.count = Math.min(entry.count + added.getValue().count, 255);
+                    entry.lastUsed = added.getValue().lastUsed;
+                    mPendingWrites.put(added.getKey(), new Entry(entry.count, entry.lastUsed));
+                    decayed.remove(added.getKey());
+                } else {
+                    stored.put(added.getKey(), added.getValue());
+                }
+            }
+            for (Map.Entry<String, Entry> entry : decayed.entrySet()) {
+                if (!mPendingWrites.containsKey(entry.getKey())) {
+                    mPendingWrites.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            // Promotion waits for the next commit of the word, which finds it over the threshold
+            mCounts.clear();
+            Trie trie = new Trie(getTrie().getNodeCount());
+            for (Map.Entry<String, Entry> entry : stored.entrySet()) {
+                mCounts.put(entry.getKey(), entry.getValue());
+                trie.addWord(entry.getKey(), getFrequency(entry.getValue().count));
+            }
+            setTrie(trie);
+            if (!mClosed) {
+                flushPendingWritesLocked();
+            }
+        }
+        logReady("database");
+    }
+
+    /**
+     * Writes a batch of words in one transaction, then adds the promoted words to the user
+     * dictionary. Runs on the writer thread.
+     */
+    private void writeWords(Map<String, Entry> writes, Map<String, Entry> promotions) {
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, Entry> write : writes.entrySet()) {
+                    final String word = write.getKey();
+                    final Entry entry = write.getValue();
+                    if (entry == null) {
+                        db.delete(WORDS_TABLE, COLUMN_WORD + "=? AND " + COLUMN_LOCALE + "=?",
+                                new String[] { word, mLocale });
+                    } else {
+                        ContentValues values = new ContentValues(4);
+                        values.put(COLUMN_WORD, word);
+                        values.put(COLUMN_COUNT, entry.count);
+                        values.put(COLUMN_LAST_USED, entry.lastUsed);
+                        values.put(COLUMN_LOCALE, mLocale);
+                        db.replace(WORDS_TABLE, null, values);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Couldn't write the auto dictionary", e);
+        }
+        for (String word : promotions.keySet()) {
+            // The user dictionary picks this up through its content observer
+            Words.addWord(getContext(), word, PROMOTED_FREQUENCY, Words.LOCALE_TYPE_CURRENT);
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + WORDS_TABLE + " ("
+                    + COLUMN_ID + " INTEGER PRIMARY KEY,"
+                    + COLUMN_WORD + " TEXT,"
+                    + COLUMN_COUNT + " INTEGER,"
+                    + COLUMN_LAST_USED + " INTEGER,"
+                    + COLUMN_LOCALE + " TEXT,"
+                    + "UNIQUE (" + COLUMN_WORD + ", " + COLUMN_LOCALE + ") ON CONFLICT REPLACE"
+                    + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion + ", which will destroy all old data");
+            db.execSQL("DROP TABLE IF EXISTS " + WORDS_TABLE);
+            onCreate(db);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import android.text.AutoText;
+import android.view.View;
+
+/**
+ * The AutoText corrections of the words looked up lately, including the words that have none,
+ * which are most of them. A word that was looked up before is found without allocating. The
+ * corrections depend on the locale, so they have to be cleared when it changes.
+ */
+class AutoTextCache {
+
+    // The words looked up, in lower case, in a table with open addressing, and their
+    // corrections, null for the ones without. The table is emptied when it gets too full.
+    private final String[] mWords;
+    private final CharSequence[] mCorrections;
+    private final int mMaxSize;
+    private int mSize;
+    // The word in lower case, for looking it up in AutoText
+    private final StringBuilder mLowerWord = new StringBuilder(32);
+
+    /**
+     * @param capacity the number of words to keep, a power of two
+     */
+    AutoTextCache(int capacity) {
+        // Kept at most half full, so that probes are short
+        mWords = new String[capacity * 2];
+        mCorrections = new CharSequence[capacity * 2];
+        mMaxSize = capacity;
+    }
+
+    /**
+     * Returns the AutoText correction of the word in lower case, like
+     * AutoText.get(word.toLowerCase(), ...), or null if there is none. Words that differ only
+     * in case share an entry.
+     */
+    CharSequence get(char[] word, int offset, int length, View view) {
+        final String[] words = mWords;
+        final int mask = words.length - 1;
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + Character.toLowerCase(word[offset + i]);
+        }
+        int index = (hash ^ (hash >>> 16)) & mask;
+        String found;
+        while ((found = words[index]) != null) {
+            if (same(found, word, offset, length)) {
+                return mCorrections[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        final StringBuilder lowerWord = mLowerWord;
+        lowerWord.setLength(0);
+        for (int i = 0; i < length; i++) {
+            lowerWord.append(Character.toLowerCase(word[offset + i]));
+        }
+        final CharSequence correction = AutoText.get(lowerWord, 0, length, view);
+        if (mSize == mMaxSize) {
+            clear();
+            index = (hash ^ (hash >>> 16)) & mask;
+        }
+        words[index] = lowerWord.toString();
+        mCorrections[index] = correction;
+        mSize++;
+        return correction;
+    }
+
+    private static boolean same(String found, char[] word, int offset, int length) {
+        if (found.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (found.charAt(i) != Character.toLowerCase(word[offset + i])) return false;
+        }
+        return true;
+    }
+
+    void clear() {
+        final String[] words = mWords;
+        final CharSequence[] corrections = mCorrections;
+        for (int i = 0; i < words.length; i++) {
+            words[i] = null;
+            corrections[i] = null;
+        }
+        mSize = 0;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+/**
+ * A static, binary dictionary of the words that follow a word and how often they do, for
+ * suggesting the next word before any of it is typed. It is made by MakeBigramDictionary,
+ * whose comment describes the format, and is mapped into memory read-only and searched in
+ * place, the way {@link JavaBinaryDictionary} does it.
+ */
+public class BigramDictionary {
+    private static final String TAG = "BigramDictionary";
+
+    private static final int HEADER_MAGIC_1 = 0x78;
+    private static final int HEADER_MAGIC_2 = 0xB2;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 6;
+    private static final int NEXT_WORD_SIZE = 4;
+    // Stored lengths are a byte
+    private static final int MAX_WORD_LENGTH = 255;
+
+    private ByteBuffer mDict;
+    // Number of words in the index
+    private int mWordCount;
+    // The characters of the next word being added, to hand them on without a String
+    private final char[] mWord = new char[MAX_WORD_LENGTH];
+
+    /**
+     * Create a dictionary from a raw resource file. The resource has to be stored uncompressed.
+     * @param context application context for reading resources
+     * @param dictionaryResId the resource containing the raw binary dictionary
+     */
+    public BigramDictionary(Context context, int dictionaryResId) {
+        AssetFileDescriptor afd =
+                context.getResources().openRawResourceFd(dictionaryResId);
+        if (afd != null) {
+            loadDictionary(afd);
+        }
+    }
+
+    /**
+     * Create a dictionary over a buffer holding the binary dictionary, for use outside of an
+     * application.
+     * @param dict the dictionary, starting at position 0
+     */
+    public BigramDictionary(ByteBuffer dict) {
+        setDictionary(dict);
+    }
+
+    private void setDictionary(ByteBuffer dict) {
+        if (dict.limit() < HEADER_SIZE || (dict.get(0) & 0xFF) != HEADER_MAGIC_1
+                || (dict.get(1) & 0xFF) != HEADER_MAGIC_2) {
+            throw new IllegalArgumentException("Not a bigram dictionary");
+        }
+        if (dict.get(2) != FORMAT_VERSION) {
+            throw new IllegalArgumentException(
+                    "Unsupported dictionary format version " + dict.get(2));
+        }
+        mWordCount = dict.getInt(4);
+        mDict = dict;
+    }
+
+    private final void loadDictionary(AssetFileDescriptor afd) {
+        long startTime = System.currentTimeMillis();
+        FileInputStream in = null;
+        try {
+            in = afd.createInputStream();
+            FileChannel channel = in.getChannel();
+            // The mapping stays valid after the channel is closed
+            setDictionary(channel.map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength()));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not map dictionary: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            return;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                } else {
+                    afd.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }
+        Log.i(TAG, "Loaded dictionary in " + (System.currentTimeMillis() - startTime) + "msec"
+                + " (" + afd.getLength() + " bytes)");
+    }
+
+    /**
+     * Adds the words that follow a word to the buffer, the most frequent first, with their
+     * frequencies as the scores. The word is looked up ignoring case.
+     * @param previousWord the word before the one to suggest
+     * @param nextWords the buffer to add the words to
+     * @param maxWords the most words to add
+     * @return the number of words added
+     */
+    public synchronized int getNextWords(CharSequence previousWord, CandidateBuffer nextWords,
+            int maxWords) {
+        final ByteBuffer dict = mDict;
+        if (dict == null || previousWord == null) return 0;
+        final int entry = findWord(dict, previousWord);
+        if (entry < 0) return 0;
+
+        int pos = readAddress(dict, entry + 3);
+        final int count = Math.min(dict.get(pos) & 0xFF, maxWords);
+        pos++;
+        final char[] word = mWord;
+        for (int i = 0; i < count; i++, pos += NEXT_WORD_SIZE) {
+            final int address = readAddress(dict, pos);
+            final int length = dict.get(address) & 0xFF;
+            for (int j = 0; j < length; j++) {
+                word[j] = (char) (dict.get(address + 1 + j) & 0xFF);
+            }
+            nextWords.add(word, 0, length, dict.get(pos + 3) & 0xFF);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the position of the index entry of the word, or -1 if it has no next words.
+     * The index is in char order, so it's a binary search.
+     */
+    private int findWord(ByteBuffer dict, CharSequence word) {
+        int low = 0;
+        int high = mWordCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int entry = HEADER_SIZE + mid * INDEX_ENTRY_SIZE;
+            final int compare = compareWord(dict, readAddress(dict, entry), word);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the stored word at the address to the word in lower case.
+     */
+    private static int compareWord(ByteBuffer dict, int address, CharSequence word) {
+        final int storedLength = dict.get(address) & 0xFF;
+        final int length = word.length();
+        final int common = Math.min(storedLength, length);
+        for (int i = 0; i < common; i++) {
+            final int stored = dict.get(address + 1 + i) & 0xFF;
+            final int c = Character.toLowerCase(word.charAt(i));
+            if (stored != c) return stored - c;
+        }
+        return storedLength - length;
+    }
+
+    private static int readAddress(ByteBuffer dict, int pos) {
+        return (dict.get(pos) & 0xFF) << 16 | (dict.get(pos + 1) & 0xFF) << 8
+                | (dict.get(pos + 2) & 0xFF);
+    }
+}
@@ -18,10 +18,13 @@ package com.gilbertl.s9;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
+import android.os.Debug;
 import android.util.Log;
 
 /**
@@ -37,20 +40,73 @@ public class BinaryDictionary extends Dictionary {
     private static final int TYPED_LETTER_MULTIPLIER = 2;
     private static final boolean ENABLE_MISSED_CHARACTERS = true;
 
+    /**
+     * Value for skipPos that looks for a missed character at any position. Must match
+     * SKIP_ANY in dictionary.h.
+     */
+    private static final int SKIP_ANY = -2;
+
+    /**
+     * Whether to map the dictionary asset into memory instead of reading it onto the native
+     * heap. Mapped pages are clean and shared, so they can be dropped by the kernel instead of
+     * counting against the process' private dirty memory.
+     */
+    private static final boolean USE_MMAP = true;
+
     private AssetFileDescriptor mAfd;
     private int mNativeDict;
-    private int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
-    private char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
-    private int[] mFrequencies = new int[MAX_WORDS];
+    // The native dictionary isn't modified by searches, so any number of them can run at once,
+    // each with a context of its own. Contexts are reused, most recently used first, so a
+    // caller that searches one keystroke after the other keeps its search frontier.
+    private final ArrayList<SearchContext> mIdleContexts = new ArrayList<SearchContext>();
+    // Searches and lookups running, the dictionary is only freed once they are done
+    private int mActiveCount;
+    private boolean mClosed;
+    // Reads the filter stored in the native dictionary, so it can only be used while the
+    // dictionary is acquired
+    private BloomFilter mBloomFilter;
+    // The words looked up are copied here, so a lookup doesn't take a search's context away
+    private static final ThreadLocal<char[]> sWordChars = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_WORD_LENGTH];
+        }
+    };
+
+    /**
+     * The buffers of one search and its native state, which has the words collected so far and
+     * the search frontier.
+     */
+    private static class SearchContext {
+        final int mNativeContext;
+        final int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+        final char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
+        final int[] mFrequencies = new int[MAX_WORDS];
+
+        SearchContext(int nativeContext) {
+            mNativeContext = nativeContext;
+        }
+    }
+
+    private static boolean sLibraryLoaded;
 
     static {
         try {
             System.loadLibrary("s9");
+            sLibraryLoaded = true;
         } catch (UnsatisfiedLinkError ule) {
             Log.e(TAG, "Could not load native library s9");
         }
     }
 
+    /**
+     * Returns whether the native library could be loaded. If not, {@link JavaBinaryDictionary}
+     * reads the same dictionary format.
+     */
+    public static boolean isLibraryLoaded() {
+        return sLibraryLoaded;
+    }
+
     /**
      * Create a dictionary from a raw resource file
      * @param context application context for reading resources
@@ -66,19 +122,53 @@ public class BinaryDictionary extends Dictionary {
     }
 
     private native int openNative(FileDescriptor fd, long offset, long length,
-    		int typedLetterMultiplier, int fullWordMultiplier);
+    		int typedLetterMultiplier, int fullWordMultiplier, boolean useMmap);
     private native void closeNative(int dict);
+    private native boolean isMmappedNative(int dict);
+    private native int openSearchNative(int dict);
+    private native void closeSearchNative(int context);
     private native boolean isValidWordNative(int nativeData, char[] word, int wordLength);
-    private native int getSuggestionsNative(int dict, int[] inputCodes, int codesSize, 
+    private native ByteBuffer getBloomFilterNative(int dict);
+    private native int getSuggestionsNative(int context, int[] inputCodes, int codesSize, 
             char[] outputChars, int[] frequencies,
             int maxWordLength, int maxWords, int maxAlternatives, int skipPos);
+    private native int getPlacedWordsNative(int context);
 
     private final void loadDictionary(AssetFileDescriptor afd) {
+        Debug.MemoryInfo before = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(before);
         long startTime = System.currentTimeMillis();
         mNativeDict = openNative(afd.getFileDescriptor(), 
                 afd.getStartOffset(), afd.getLength(),
-                TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER);
-        Log.i(TAG, "Loaded dictionary in " + (System.currentTimeMillis() - startTime) + "msec");
+                TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER, USE_MMAP);
+        if (mNativeDict != 0) {
+            ByteBuffer filter = getBloomFilterNative(mNativeDict);
+            if (filter != null) {
+                mBloomFilter = BloomFilter.readFrom(filter.asReadOnlyBuffer());
+            }
+        }
+        long loadTime = System.currentTimeMillis() - startTime;
+        // The native code reads the file instead if it can't be mapped
+        final String access = mNativeDict == 0 ? "failed"
+                : isMmappedNative(mNativeDict) ? "mmap" : "read";
+        Debug.MemoryInfo after = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(after);
+        Log.i(TAG, "Loaded dictionary in " + loadTime + "msec"
+                + " (" + access + ", " + afd.getLength() + " bytes"
+                + ", private dirty " + formatDelta(getPrivateDirty(after) - getPrivateDirty(before))
+                + ", pss " + formatDelta(getPss(after) - getPss(before)) + ")");
+    }
+
+    private static int getPrivateDirty(Debug.MemoryInfo info) {
+        return info.dalvikPrivateDirty + info.nativePrivateDirty + info.otherPrivateDirty;
+    }
+
+    private static int getPss(Debug.MemoryInfo info) {
+        return info.dalvikPss + info.nativePss + info.otherPss;
+    }
+
+    private static String formatDelta(int kb) {
+        return (kb >= 0 ? "+" : "") + kb + "kB";
     }
 
     @Override
@@ -86,43 +176,61 @@ public class BinaryDictionary extends Dictionary {
         final int codesSize = codes.size();
         // Wont deal with really long words.
         if (codesSize > MAX_WORD_LENGTH - 1) return;
-        
-        Arrays.fill(mInputCodes, -1);
+
+        final SearchContext context = obtainContext();
+        if (context == null) return;
+        try {
+            getWords(context, codes, callback);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    private void getWords(final SearchContext context, final WordComposer codes,
+            final WordCallback callback) {
+        final int codesSize = codes.size();
+        final int[] inputCodes = context.mInputCodes;
+        final char[] outputChars = context.mOutputChars;
+        final int[] frequencies = context.mFrequencies;
+        Arrays.fill(inputCodes, -1);
         for (int i = 0; i < codesSize; i++) {
             int[] alternatives = codes.getCodesAt(i);
-            System.arraycopy(alternatives, 0, mInputCodes, i * MAX_ALTERNATIVES,
+            System.arraycopy(alternatives, 0, inputCodes, i * MAX_ALTERNATIVES,
                     Math.min(alternatives.length, MAX_ALTERNATIVES));
         }
-        Arrays.fill(mOutputChars, (char) 0);
-        Arrays.fill(mFrequencies, 0);
+        Arrays.fill(outputChars, (char) 0);
+        Arrays.fill(frequencies, 0);
 
-        int count = getSuggestionsNative(mNativeDict, mInputCodes, codesSize,
-                mOutputChars, mFrequencies,
+        // A native search can't be stopped once it is under way, so the caller giving up on
+        // the search is checked before each one
+        if (callback.getFrequencyThreshold() == NO_MORE_WORDS) return;
+        int count = getSuggestionsNative(context.mNativeContext, inputCodes, codesSize,
+                outputChars, frequencies,
                 MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, -1);
 
         // If there aren't sufficient suggestions, search for words by allowing wild cards at
         // the different character positions. This feature is not ready for prime-time as we need
         // to figure out the best ranking for such words compared to proximity corrections and
-        // completions.
-        if (ENABLE_MISSED_CHARACTERS && count < 5) {
-            for (int skip = 0; skip < codesSize; skip++) {
-                int tempCount = getSuggestionsNative(mNativeDict, mInputCodes, codesSize,
-                        mOutputChars, mFrequencies,
-                        MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, skip);
-                count = Math.max(count, tempCount);
-                if (tempCount > 0) break;
-            }
+        // completions. All positions are tried in one traversal, which keeps the words for the
+        // earliest position that matches anything. Whether to try is decided on the lowest place
+        // a word was found in, as it always was, rather than on the number of words.
+        if (ENABLE_MISSED_CHARACTERS && getPlacedWordsNative(context.mNativeContext) < 5
+                && callback.getFrequencyThreshold() != NO_MORE_WORDS) {
+            int tempCount = getSuggestionsNative(context.mNativeContext, inputCodes, codesSize,
+                    outputChars, frequencies,
+                    MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES, SKIP_ANY);
+            count = Math.max(count, tempCount);
         }
 
         for (int j = 0; j < count; j++) {
-            if (mFrequencies[j] < 1) break;
+            if (frequencies[j] < 1) break;
             int start = j * MAX_WORD_LENGTH;
             int len = 0;
-            while (mOutputChars[start + len] != 0) {
+            while (outputChars[start + len] != 0) {
                 len++;
             }
             if (len > 0) {
-                callback.addWord(mOutputChars, start, len, mFrequencies[j]);
+                callback.addWord(outputChars, start, len, frequencies[j]);
             }
         }
     }
@@ -130,11 +238,76 @@ public class BinaryDictionary extends Dictionary {
     @Override
     public boolean isValidWord(CharSequence word) {
         if (word == null) return false;
-        char[] chars = word.toString().toCharArray();
-        return isValidWordNative(mNativeDict, chars, chars.length);
+        // Lookups don't keep any state, they only need the dictionary to stay open
+        final int dict = acquireDictionary();
+        if (dict == 0) return false;
+        try {
+            // Most words that aren't in the dictionary are turned down without a copy or a call
+            // into the native code
+            if (mBloomFilter != null && !mBloomFilter.mightContain(word)) {
+                return false;
+            }
+            // Longer words can't be in the dictionary
+            final int length = word.length();
+            if (length >= MAX_WORD_LENGTH) return false;
+            // The word is copied to a buffer of the calling thread, rather than to a new array
+            final char[] chars = sWordChars.get();
+            for (int i = 0; i < length; i++) {
+                chars[i] = word.charAt(i);
+            }
+            return isValidWordNative(dict, chars, length);
+        } finally {
+            releaseDictionary();
+        }
     }
 
+    private synchronized int acquireDictionary() {
+        if (mNativeDict == 0 || mClosed) return 0;
+        mActiveCount++;
+        return mNativeDict;
+    }
+
+    private synchronized void releaseDictionary() {
+        if (--mActiveCount == 0 && mClosed) {
+            closeDictionary();
+        }
+    }
+
+    private synchronized SearchContext obtainContext() {
+        final int dict = acquireDictionary();
+        if (dict == 0) return null;
+        final int size = mIdleContexts.size();
+        if (size > 0) {
+            return mIdleContexts.remove(size - 1);
+        }
+        return new SearchContext(openSearchNative(dict));
+    }
+
+    private synchronized void releaseContext(SearchContext context) {
+        if (mClosed) {
+            closeSearchNative(context.mNativeContext);
+        } else {
+            mIdleContexts.add(context);
+        }
+        releaseDictionary();
+    }
+
+    /**
+     * Closes the dictionary. Searches that are still running finish first.
+     */
     public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        for (int i = mIdleContexts.size() - 1; i >= 0; i--) {
+            closeSearchNative(mIdleContexts.get(i).mNativeContext);
+        }
+        mIdleContexts.clear();
+        if (mActiveCount == 0) {
+            closeDictionary();
+        }
+    }
+
+    private void closeDictionary() {
         if (mNativeDict != 0) {
             closeNative(mNativeDict);
             mNativeDict = 0;
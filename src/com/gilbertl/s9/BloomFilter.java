@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A compact set of words that can answer most lookups of words that aren't in it without
+ * looking at the dictionary. If it says a word isn't there, it isn't; if it says it might be,
+ * the dictionary has to be checked. Words are hashed as they are, without changing their case.
+ * The hashing has to match MakeBinaryDictionary and dictionary.cpp, which read and write the
+ * filter stored in binary dictionaries.
+ */
+public class BloomFilter {
+    // About 1% false positives at this many bits and hashes per word
+    public static final int BITS_PER_WORD = 10;
+    public static final int HASH_COUNT = 7;
+
+    private static final int FNV_OFFSET_BASIS = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    // Size of the hash count and byte count in front of a stored filter
+    public static final int STORED_HEADER_SIZE = 4;
+
+    private final ByteBuffer mBits;
+    private final int mBitCount;
+    private final int mHashCount;
+
+    /**
+     * Create an empty filter for the given number of words. More words can be added, at the
+     * cost of more false positives.
+     * @param capacity the number of words the filter is sized for
+     */
+    public BloomFilter(int capacity) {
+        this(ByteBuffer.allocate((Math.max(capacity, 8) * BITS_PER_WORD + 7) / 8), HASH_COUNT);
+    }
+
+    /**
+     * Returns the filter stored in a binary dictionary, which is the number of hashes, the size
+     * of the bits in three bytes and the bits. The filter reads the bits in place.
+     * @param stored the stored filter, from position 0
+     * @return the filter, or null if it runs past the limit of stored
+     */
+    public static BloomFilter readFrom(ByteBuffer stored) {
+        if (stored.limit() < STORED_HEADER_SIZE) return null;
+        final int hashCount = stored.get(0) & 0xFF;
+        final int byteCount = ((stored.get(1) & 0xFF) << 16)
+                | ((stored.get(2) & 0xFF) << 8)
+                | (stored.get(3) & 0xFF);
+        if (byteCount > stored.limit() - STORED_HEADER_SIZE) return null;
+        ByteBuffer bits = stored.duplicate();
+        bits.position(STORED_HEADER_SIZE);
+        bits.limit(STORED_HEADER_SIZE + byteCount);
+        return new BloomFilter(bits.slice(), hashCount);
+    }
+
+    /**
+     * Create a filter over existing bits. A filter without any bits stands for no filter at
+     * all: every word might be in it.
+     * @param bits the bits of the filter, from position 0 up to the limit
+     * @param hashCount the number of bits set for each word
+     */
+    public BloomFilter(ByteBuffer bits, int hashCount) {
+        mBits = bits;
+        mBitCount = bits.limit() * 8;
+        mHashCount = hashCount;
+    }
+
+    public void add(CharSequence word) {
+        if (mBitCount == 0) return;
+        final int hash = hash(word);
+        final int hash2 = rotate(hash);
+        for (int i = 0; i < mHashCount; i++) {
+            final int bit = ((hash + i * hash2) & 0x7FFFFFFF) % mBitCount;
+            mBits.put(bit >> 3, (byte) (mBits.get(bit >> 3) | (1 << (bit & 7))));
+        }
+    }
+
+    /**
+     * Returns false if the word was never added, true if it probably was.
+     */
+    public boolean mightContain(CharSequence word) {
+        if (mBitCount == 0) return true;
+        final int hash = hash(word);
+        final int hash2 = rotate(hash);
+        for (int i = 0; i < mHashCount; i++) {
+            final int bit = ((hash + i * hash2) & 0x7FFFFFFF) % mBitCount;
+            if ((mBits.get(bit >> 3) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the size of the filter as stored in a binary dictionary.
+     */
+    public int getStoredSize() {
+        return STORED_HEADER_SIZE + mBits.limit();
+    }
+
+    /**
+     * Writes the filter the way readFrom reads it, at the position of out.
+     */
+    public void writeTo(ByteBuffer out) {
+        final int byteCount = mBits.limit();
+        out.put((byte) mHashCount);
+        out.put((byte) (byteCount >> 16));
+        out.put((byte) (byteCount >> 8));
+        out.put((byte) byteCount);
+        ByteBuffer bits = mBits.duplicate();
+        bits.rewind();
+        out.put(bits);
+    }
+
+    /**
+     * Returns a filter with a copy of the bits, which can be added to without changing this one.
+     */
+    public BloomFilter copy() {
+        ByteBuffer bits = ByteBuffer.allocate(mBits.limit());
+        bits.put(mBits.duplicate());
+        bits.rewind();
+        return new BloomFilter(bits, mHashCount);
+    }
+
+    /**
+     * FNV-1a over the UTF-16 code units of the word.
+     */
+    private static int hash(CharSequence word) {
+        int hash = FNV_OFFSET_BASIS;
+        final int length = word.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= word.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * The second hash, for deriving the bit positions as hash + i * hash2.
+     */
+    private static int rotate(int hash) {
+        return (hash >>> 17) | (hash << 15);
+    }
+}
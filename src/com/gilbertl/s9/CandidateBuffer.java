@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+/**
+ * A list of candidate words with their scores, kept as ranges of one array of characters so
+ * that filling it again doesn't allocate. The buffer grows when a word doesn't fit, which
+ * stops happening once it has seen the longest lists.
+ */
+public class CandidateBuffer {
+    private char[] mChars;
+    private int mCharCount;
+    private int[] mStarts;
+    private int[] mLengths;
+    private int[] mScores;
+    private int mCount;
+
+    /**
+     * @param capacity the number of words it is sized for
+     */
+    public CandidateBuffer(int capacity) {
+        mChars = new char[capacity * 16];
+        mStarts = new int[capacity];
+        mLengths = new int[capacity];
+        mScores = new int[capacity];
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public void clear() {
+        mCount = 0;
+        mCharCount = 0;
+    }
+
+    /**
+     * The characters of all the words. Word i is at getStart(i), for getLength(i) characters.
+     */
+    public char[] getChars() {
+        return mChars;
+    }
+
+    public int getStart(int index) {
+        return mStarts[index];
+    }
+
+    public int getLength(int index) {
+        return mLengths[index];
+    }
+
+    public int getScore(int index) {
+        return mScores[index];
+    }
+
+    /**
+     * Returns word i as a String, for handing it on.
+     */
+    public String getString(int index) {
+        return new String(mChars, mStarts[index], mLengths[index]);
+    }
+
+    public void add(CharSequence word, int score) {
+        insert(mCount, word, score);
+    }
+
+    public void add(char[] word, int offset, int length, int score) {
+        final int start = reserve(mCount, length, score);
+        System.arraycopy(word, offset, mChars, start, length);
+    }
+
+    /**
+     * Inserts a word before word index, moving the ones after it up.
+     */
+    public void insert(int index, CharSequence word, int score) {
+        final int length = word.length();
+        final int start = reserve(index, length, score);
+        final char[] chars = mChars;
+        for (int i = 0; i < length; i++) {
+            chars[start + i] = word.charAt(i);
+        }
+    }
+
+    /**
+     * Removes word index, moving the ones after it down. Its characters stay until the buffer
+     * is cleared.
+     */
+    public void remove(int index) {
+        final int moved = mCount - index - 1;
+        System.arraycopy(mStarts, index + 1, mStarts, index, moved);
+        System.arraycopy(mLengths, index + 1, mLengths, index, moved);
+        System.arraycopy(mScores, index + 1, mScores, index, moved);
+        mCount--;
+    }
+
+    /**
+     * Returns true if word index is the same as the word.
+     */
+    public boolean equals(int index, CharSequence word) {
+        final int length = mLengths[index];
+        if (word == null || word.length() != length) return false;
+        final char[] chars = mChars;
+        final int start = mStarts[index];
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first word that is the same as the word, or -1 if none is.
+     */
+    public int indexOf(CharSequence word) {
+        for (int i = 0; i < mCount; i++) {
+            if (equals(i, word)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Makes this a copy of another buffer.
+     */
+    public void set(CandidateBuffer other) {
+        clear();
+        final int count = other.mCount;
+        for (int i = 0; i < count; i++) {
+            add(other.mChars, other.mStarts[i], other.mLengths[i], other.mScores[i]);
+        }
+    }
+
+    /**
+     * Makes room for a word before word index and returns where its characters go.
+     */
+    private int reserve(int index, int length, int score) {
+        if (mCount == mStarts.length) {
+            final int capacity = mCount * 2 + 1;
+            mStarts = copyOf(mStarts, capacity);
+            mLengths = copyOf(mLengths, capacity);
+            mScores = copyOf(mScores, capacity);
+        }
+        if (mCharCount + length > mChars.length) {
+            char[] chars = new char[Math.max(mChars.length * 2, mCharCount + length)];
+            System.arraycopy(mChars, 0, chars, 0, mCharCount);
+            mChars = chars;
+        }
+        final int moved = mCount - index;
+        System.arraycopy(mStarts, index, mStarts, index + 1, moved);
+        System.arraycopy(mLengths, index, mLengths, index + 1, moved);
+        System.arraycopy(mScores, index, mScores, index + 1, moved);
+        final int start = mCharCount;
+        mStarts[index] = start;
+        mLengths[index] = length;
+        mScores[index] = score;
+        mCharCount += length;
+        mCount++;
+        return start;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
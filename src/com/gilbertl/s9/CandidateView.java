@@ -1,8 +1,5 @@
 package com.gilbertl.s9;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Canvas;
@@ -22,13 +19,15 @@ public class CandidateView extends View {
     private static final int OUT_OF_BOUNDS = -1;
 
     private S9IME mService;
-    private List<String> mSuggestions;
+    // A copy of the suggestions shown, drawn straight from its characters
+    private final CandidateBuffer mSuggestions = new CandidateBuffer(MAX_SUGGESTIONS);
     private int mSelectedIndex;
     private int mTouchX = OUT_OF_BOUNDS;
     private Drawable mSelectionHighlight;
     private boolean mTypedWordValid;
     
     private Rect mBgPadding;
+    private final Rect mPadding = new Rect();
 
     private static final int MAX_SUGGESTIONS = 32;
     private static final int SCROLL_PIXELS = 20;
@@ -38,8 +37,6 @@ public class CandidateView extends View {
 
     private static final int X_GAP = 10;
     private static final int MIN_WIDTH = 60;
-    
-    private static final List<String> EMPTY_LIST = new ArrayList<String>();
 
     private int mColorNormal;
     private int mColorRecommended;
@@ -110,7 +107,7 @@ public class CandidateView extends View {
         
         // Get the desired height of the icon menu view (last row of items does
         // not have a divider below)
-        Rect padding = new Rect();
+        final Rect padding = mPadding;
         mSelectionHighlight.getPadding(padding);
         final int desiredHeight = ((int)mPaint.getTextSize()) + mVerticalPadding
                 + padding.top + padding.bottom;
@@ -130,7 +127,6 @@ public class CandidateView extends View {
             super.onDraw(canvas);
         }
         mTotalWidth = 0;
-        if (mSuggestions == null) return;
         
         if (mBgPadding == null) {
             mBgPadding = new Rect(0, 0, 0, 0);
@@ -139,7 +135,9 @@ public class CandidateView extends View {
             }
         }
         int x = 0;
-        final int count = mSuggestions.size(); 
+        final CandidateBuffer suggestions = mSuggestions;
+        final int count = suggestions.size();
+        final char[] chars = suggestions.getChars();
         final int height = getHeight();
         final Rect bgPadding = mBgPadding;
         final Paint paint = mPaint;
@@ -150,8 +148,9 @@ public class CandidateView extends View {
         final int y = (int) (((height - mPaint.getTextSize()) / 2) - mPaint.ascent());
 
         for (int i = 0; i < count; i++) {
-            String suggestion = mSuggestions.get(i);
-            float textWidth = paint.measureText(suggestion);
+            final int start = suggestions.getStart(i);
+            final int length = suggestions.getLength(i);
+            float textWidth = paint.measureText(chars, start, length);
             final int wordWidth = 
             	Math.max(MIN_WIDTH, (int) textWidth + X_GAP * 2);
             final int xPadding = (wordWidth - (int) textWidth) / 2;
@@ -176,7 +175,7 @@ public class CandidateView extends View {
                 } else if (i != 0) {
                     paint.setColor(mColorOther);
                 }
-                canvas.drawText(suggestion, x + xPadding, y, paint);
+                canvas.drawText(chars, start, length, x + xPadding, y, paint);
                 paint.setColor(mColorOther); 
                 canvas.drawLine(x + wordWidth + 0.5f, bgPadding.top, 
                         x + wordWidth + 0.5f, height + 1, paint);
@@ -209,11 +208,11 @@ public class CandidateView extends View {
         invalidate();
     }
     
-    public void setSuggestions(List<String> suggestions, boolean completions,
+    public void setSuggestions(CandidateBuffer suggestions, boolean completions,
             boolean typedWordValid) {
         clear();
         if (suggestions != null) {
-            mSuggestions = new ArrayList<String>(suggestions);
+            mSuggestions.set(suggestions);
         }
         mTypedWordValid = typedWordValid;
         scrollTo(0, 0);
@@ -225,7 +224,7 @@ public class CandidateView extends View {
     }
 
     public void clear() {
-        mSuggestions = EMPTY_LIST;
+        mSuggestions.clear();
         mTouchX = OUT_OF_BOUNDS;
         mSelectedIndex = -1;
         invalidate();
@@ -16,11 +16,15 @@
 
 package com.gilbertl.s9;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.provider.ContactsContract.Contacts;
 
@@ -33,17 +37,33 @@ public class ContactsDictionary extends ExpandableDictionary {
 
     private static final int INDEX_NAME = 1;
 
+    private static final String SNAPSHOT_NAME = "contacts_dict.snapshot";
+
     private ContentObserver mObserver;
 
-    private boolean mRequiresReload;
+    private volatile boolean mRequiresReload;
 
-    private long mLastLoadedContacts;
+    private volatile long mLastLoadedContacts;
 
-    private boolean mUpdatingContacts;
+    // Set while a LoadContactsTask is under way, so that only one runs at a time
+    private final AtomicBoolean mUpdatingContacts = new AtomicBoolean();
 
-    // Use this lock before touching mUpdatingContacts & mRequiresDownload
-    private Object mUpdatingLock = new Object();
+    // The checksum of the names in the snapshot, as read or last saved, or -1 if there is
+    // none. Only the load task uses it.
+    private long mSnapshotChecksum = -1;
 
+    // Searches ask for a reload on the thread they run on, and the task starts on the UI thread
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mStartLoading = new Runnable() {
+        public void run() {
+            new LoadContactsTask().execute();
+        }
+    };
+
+    /**
+     * Create the dictionary, then load the names as they were last saved and the names from
+     * the provider in the background.
+     */
     public ContactsDictionary(Context context) {
         super(context);
         // Perform a managed query. The Activity will handle closing and requerying the cursor
@@ -53,15 +73,11 @@ public class ContactsDictionary extends ExpandableDictionary {
         cres.registerContentObserver(Contacts.CONTENT_URI, true, mObserver = new ContentObserver(null) {
             @Override
             public void onChange(boolean self) {
-                synchronized (mUpdatingLock) {
-                    mRequiresReload = true;
-                }
+                mRequiresReload = true;
             }
         });
 
-        synchronized (mUpdatingLock) {
-            loadDictionaryAsyncLocked();
-        }
+        loadDictionaryAsync();
     }
 
     public synchronized void close() {
@@ -71,42 +87,38 @@ public class ContactsDictionary extends ExpandableDictionary {
         }
     }
 
-    private synchronized void loadDictionaryAsyncLocked() {
+    private void loadDictionaryAsync() {
         long now = SystemClock.uptimeMillis();
         if (mLastLoadedContacts == 0
                 || now - mLastLoadedContacts > 30 * 60 * 1000 /* 30 minutes */) {
-            if (!mUpdatingContacts) {
-                mUpdatingContacts = true;
+            if (mUpdatingContacts.compareAndSet(false, true)) {
                 mRequiresReload = false;
-                new LoadContactsTask().execute();
+                mUiHandler.post(mStartLoading);
             }
         }
     }
 
+    /**
+     * Searches the contacts as last loaded. While they are reloaded, the old ones are used.
+     */
     @Override
-    public synchronized void getWords(final WordComposer codes, final WordCallback callback) {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) loadDictionaryAsyncLocked();
-            // Currently updating contacts, don't return any results.
-            if (mUpdatingContacts) return;
-        }
-        super.getWords(codes, callback);
+    void startSearch() {
+        // If we need to update, start off a background task
+        if (mRequiresReload) loadDictionaryAsync();
     }
 
     @Override
-    public synchronized boolean isValidWord(CharSequence word) {
-        synchronized (mUpdatingLock) {
-            // If we need to update, start off a background task
-            if (mRequiresReload) loadDictionaryAsyncLocked();
-            if (mUpdatingContacts) return false;
-        }
-
+    public boolean isValidWord(CharSequence word) {
+        // If we need to update, start off a background task
+        if (mRequiresReload) loadDictionaryAsync();
         return super.isValidWord(word);
     }
 
+    /**
+     * Reads the names into a new trie and publishes it once it is complete.
+     */
     private void addWords(Cursor cursor) {
-        clearDictionary();
+        Trie trie = new Trie(getTrie().getNodeCount());
 
         final int maxWordLength = getMaxWordLength();
         if (cursor.moveToFirst()) {
@@ -138,7 +150,7 @@ public class ContactsDictionary extends ExpandableDictionary {
                             // capitalization of i.
                             final int wordLen = word.length();
                             if (wordLen < maxWordLength && wordLen > 1) {
-                                super.addWord(word, 128);
+                                trie.addWord(word, 128);
                             }
                         }
                     }
@@ -148,26 +160,36 @@ public class ContactsDictionary extends ExpandableDictionary {
             }
         }
         cursor.close();
+        setTrie(trie);
     }
     
     private class LoadContactsTask extends AsyncTask<Void, Void, Void> {
         @Override
         protected Void doInBackground(Void... v) {
+            final boolean firstLoad = mLastLoadedContacts == 0;
+            if (firstLoad && loadSnapshot(SNAPSHOT_NAME)) {
+                // The saved names can be searched while the provider is queried
+                mSnapshotChecksum = getTrie().getWordsChecksum();
+                logReady("snapshot");
+            }
             Cursor cursor = getContext().getContentResolver()
                     .query(Contacts.CONTENT_URI, PROJECTION, null, null, null);
             if (cursor != null) {
                 addWords(cursor);
+                // Most reloads find the same names, which the snapshot already has
+                final long checksum = getTrie().getWordsChecksum();
+                if (checksum != mSnapshotChecksum && saveSnapshot(SNAPSHOT_NAME)) {
+                    mSnapshotChecksum = checksum;
+                }
             }
             mLastLoadedContacts = SystemClock.uptimeMillis();
+            if (firstLoad) logReady("provider");
             return null;
         }
 
         @Override
         protected void onPostExecute(Void result) {
-            // TODO Auto-generated method stub
-            synchronized (mUpdatingLock) {
-                mUpdatingContacts = false;
-            }
+            mUpdatingContacts.set(false);
             super.onPostExecute(result);
         }
         
@@ -31,6 +31,12 @@ abstract public class Dictionary {
      * The weight to give to a word if it's length is the same as the number of typed characters.
      */
     protected static final int FULL_WORD_FREQ_MULTIPLIER = 2;
+
+    /**
+     * The frequency threshold of a callback that wants no more words at all. Searches check
+     * for it as they go and stop.
+     */
+    public static final int NO_MORE_WORDS = Integer.MAX_VALUE;
     
     /**
      * Interface to be implemented by classes requesting words to be fetched from the dictionary.
@@ -48,6 +54,26 @@ abstract public class Dictionary {
          * @return true if the word was added, false if no more words are required
          */
         boolean addWord(char[] word, int wordOffset, int wordLength, int frequency);
+
+        /**
+         * Returns the frequency a word has to exceed to be added, so that dictionaries can skip
+         * over words that wouldn't make it. A word with just this frequency isn't added.
+         * @return the highest frequency that isn't wanted, 0 if every word is wanted, or
+         * {@link Dictionary#NO_MORE_WORDS} to end the search
+         */
+        int getFrequencyThreshold();
+    }
+
+    /**
+     * A callback that is also told which of the dictionaries searched together a word came
+     * from.
+     */
+    public interface SourcedWordCallback extends WordCallback {
+        /**
+         * Adds a word like {@link WordCallback#addWord(char[], int, int, int)}.
+         * @param sources the bit of the dictionary the word came from
+         */
+        boolean addWord(char[] word, int wordOffset, int wordLength, int frequency, int sources);
     }
 
     /**
@@ -65,6 +91,13 @@ abstract public class Dictionary {
      * @return true if the word exists, false otherwise
      */
     abstract public boolean isValidWord(CharSequence word);
+
+    /**
+     * Releases the resources held by the dictionary. The dictionary shouldn't be used after
+     * this.
+     */
+    public void close() {
+    }
     
     /**
      * Compares the contents of the character array with the typed word and returns true if they
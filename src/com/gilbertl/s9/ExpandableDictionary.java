@@ -16,57 +16,106 @@
 
 package com.gilbertl.s9;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+
 import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * Base class for an in-memory dictionary that can grow dynamically and can
  * be searched for suggestions and valid words.
  */
 public class ExpandableDictionary extends Dictionary {
+    private static final String TAG = "ExpandableDictionary";
+
     private Context mContext;
-    private char[] mWordBuilder = new char[MAX_WORD_LENGTH];
-    private int mMaxDepth;
-    private int mInputLength;
 
     public static final int MAX_WORD_LENGTH = 32;
     private static final char QUOTE = '\'';
 
-    static class Node {
-        char code;
-        int frequency;
-        boolean terminal;
-        NodeArray children;
-    }
+    /*
+     * The trie is kept in parallel arrays indexed by node, rather than in one object per node.
+     * The root has no character of its own, and is node 0 until the trie is edited. The
+     * children of a node are a list running from its first child through the next siblings,
+     * in the order of their characters, so that words of the same frequency are found in
+     * alphabetical order. A child or sibling of 0 means there is none, since node 0 is nobody's child.
+     */
+    private static final int INITIAL_NODE_CAPACITY = 256;
+    private static final int NO_NODE = 0;
+    private static final int ROOT = 0;
 
-    static class NodeArray {
-        Node[] data;
-        int length = 0;
-        private static final int INCREMENT = 2;
+    // Node data packs the frequency, the highest frequency below the node and the terminal flag
+    private static final int FREQUENCY_MASK = 0xFF;
+    private static final int MAX_FREQ_SHIFT = 8;
+    private static final int TERMINAL = 0x10000;
 
-        NodeArray() {
-            data = new Node[INCREMENT];
-        }
+    // Turns down most lookups of words that were never added. It is rebuilt at twice the size
+    // when more words than it was sized for have been added.
+    private static final int INITIAL_FILTER_CAPACITY = 256;
 
-        void add(Node n) {
-            if (length + 1 > data.length) {
-                Node[] tempData = new Node[length + INCREMENT];
-                if (length > 0) {
-                    System.arraycopy(data, 0, tempData, 0, length);
-                }
-                data = tempData;
-            }
-            data[length++] = n;
-        }
-    }
+    /*
+     * The words as of the last change. A published trie is never changed, so searches read it
+     * without locking. A change is made to a trie edited from it, which copies the nodes on
+     * the way to the word into nodes of its own, and that trie is then published in its place.
+     * See Trie.edit().
+     */
+    private volatile Trie mTrie;
+    // Changes whenever the words do, and is never the same for two dictionaries
+    private volatile long mWordsStamp;
+    private static final AtomicLong sWordsStamps = new AtomicLong();
 
-    private NodeArray mRoots;
+    /*
+     * A search walks the trie once for the words that match the input and, along the way,
+     * through the primary codes that every search skipping a character starts with. Where such
+     * a search would skip a character, the point is saved and searched from afterwards. Modes
+     * tell which of these searches a frame stands for.
+     */
+    // The input is used up and only completions are looked for
+    private static final int MODE_COMPLETION = 0x1;
+    // Matching the input with all alternatives, without skipping
+    private static final int MODE_ALL = 0x2;
+    // Matching the primary codes ahead of the character to skip
+    private static final int MODE_PREFIX = 0x4;
+    // Matching the primary codes after a character was skipped
+    private static final int MODE_SKIPPED = 0x8;
+    // The frame is one group of nodes that matched the last input, rather than lists of children
+    private static final int FRAME_MATCH = 0x10;
 
-    private int[][] mCodes;
+    /*
+     * A snapshot is the node arrays of a trie as they are, behind a header of the magic
+     * number, the version, the node count, the word count and the filter capacity, and the
+     * bloom filter as stored in binary dictionaries. A CRC32 of all that follows.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x53395452;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_HEADER_SIZE = 20;
+    private static final int SNAPSHOT_BYTES_PER_NODE = 14;
+    private static final int SNAPSHOT_CHECKSUM_SIZE = 8;
+
+    // Search state that isn't in use, so that searches don't allocate it again. Searches at
+    // the same time each take their own. The slots are fixed, so that giving a state back
+    // doesn't allocate either; states beyond them are dropped.
+    private static final int IDLE_STATE_COUNT = 4;
+    private final AtomicReferenceArray<SearchState> mIdleStates =
+            new AtomicReferenceArray<SearchState>(IDLE_STATE_COUNT);
+
+    // When the dictionary was made, for how long its words take to be ready
+    private final long mCreateTime;
 
     ExpandableDictionary(Context context) {
         mContext = context;
-        clearDictionary();
-        mCodes = new int[MAX_WORD_LENGTH][];
+        mCreateTime = SystemClock.uptimeMillis();
+        publish(new Trie(INITIAL_NODE_CAPACITY));
     }
 
     Context getContext() {
@@ -77,198 +126,1047 @@ public class ExpandableDictionary extends Dictionary {
         return MAX_WORD_LENGTH;
     }
 
-    public void addWord(String word, int frequency) {
-        addWordRec(mRoots, word, 0, frequency);
+    /**
+     * Adds a word and publishes the words with it. This copies the nodes on the way to the
+     * word, rather than the whole trie.
+     */
+    public synchronized void addWord(String word, int frequency) {
+        Trie trie = mTrie.edit();
+        trie.addWord(word, frequency);
+        publish(trie);
+    }
+
+    /**
+     * Sets the frequency of a word, adding the word if it isn't there, like addWord. Unlike
+     * addWord, the frequency can go down.
+     */
+    synchronized void setWordFrequency(String word, int frequency) {
+        Trie trie = mTrie.edit();
+        trie.setWordFrequency(word, frequency);
+        publish(trie);
     }
 
-    private void addWordRec(NodeArray children, final String word,
-            final int depth, final int frequency) {
-        
-        final int wordLength = word.length();
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.length;
-        Node childNode = null;
-        boolean found = false;
-        for (int i = 0; i < childrenLength; i++) {
-            childNode = children.data[i];
-            if (childNode.code == c) {
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            childNode = new Node();
-            childNode.code = c;
-            children.add(childNode);
-        }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.terminal = true;
-            childNode.frequency = Math.max(frequency, childNode.frequency);
-            if (childNode.frequency > 255) childNode.frequency = 255;
-            return;
-        }
-        if (childNode.children == null) {
-            childNode.children = new NodeArray();
-        }
-        addWordRec(childNode.children, word, depth + 1, frequency);
+    /**
+     * Removes a word and publishes the words without it, like addWord.
+     * @return true if the word was in the dictionary
+     */
+    public synchronized boolean removeWord(String word) {
+        if (mTrie.getWordFrequency(word) < 0) return false;
+        Trie trie = mTrie.edit();
+        trie.removeWord(word);
+        publish(trie);
+        return true;
     }
 
+    Trie getTrie() {
+        return mTrie;
+    }
+
+    /**
+     * Replaces the words with the ones in trie. Searches that already started go on with the
+     * words they had.
+     */
+    synchronized void setTrie(Trie trie) {
+        publish(trie);
+    }
+
+    /**
+     * Called with the dictionary locked. Searches that start afterwards see all of the trie.
+     */
+    private void publish(Trie trie) {
+        mTrie = trie;
+        mWordsStamp = sWordsStamps.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever the words do, for telling if results found
+     * earlier are still good. No two dictionaries have the same one.
+     */
+    long getWordsStamp() {
+        return mWordsStamp;
+    }
+
+    /**
+     * Finds the words that match the input, then the ones that match it with one character
+     * skipped, in the order of the skipped position. Words come back in the same order as
+     * from a separate search without skips and one for each skipped position. Searches don't
+     * lock, and can run while the words are changed or reloaded.
+     */
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback) {
-        mInputLength = codes.size();
-        if (mCodes.length < mInputLength) mCodes = new int[mInputLength][];
-        // Cache the codes so that we don't have to lookup an array list
-        for (int i = 0; i < mInputLength; i++) {
-            mCodes[i] = codes.getCodesAt(i);
+        startSearch();
+        SearchState state = takeSearchState();
+        try {
+            state.getWords(mTrie, 1, codes, callback);
+        } finally {
+            putSearchState(state);
         }
-        mMaxDepth = mInputLength * 3;
-        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
-        for (int i = 0; i < mInputLength; i++) {
-            getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
+    }
+
+    /**
+     * Searches several dictionaries, one after the other. A word that is in more than one of
+     * them is reported by each of them. A SourcedWordCallback is also given the dictionary a
+     * word came from, as bit i for dictionaries[i].
+     * @param dictionaries the dictionaries to search, at most 32 of them
+     * @param count the number of dictionaries to search, from the first
+     */
+    static void getWords(ExpandableDictionary[] dictionaries, int count,
+            final WordComposer codes, final WordCallback callback) {
+        startSearches(dictionaries, count);
+        getStartedWords(dictionaries, count, codes, callback);
+    }
+
+    /**
+     * Calls startSearch() of the dictionaries, so that searches of them on other threads don't
+     * have to.
+     */
+    static void startSearches(ExpandableDictionary[] dictionaries, int count) {
+        for (int i = 0; i < count; i++) {
+            dictionaries[i].startSearch();
+        }
+    }
+
+    /**
+     * Like {@link #getWords(ExpandableDictionary[], int, WordComposer, WordCallback)}, for
+     * dictionaries that startSearches() was already called for.
+     */
+    static void getStartedWords(ExpandableDictionary[] dictionaries, int count,
+            final WordComposer codes, final WordCallback callback) {
+        if (count == 0) return;
+        final ExpandableDictionary first = dictionaries[0];
+        SearchState state = first.takeSearchState();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (callback.getFrequencyThreshold() == NO_MORE_WORDS) break;
+                state.getWords(dictionaries[i].mTrie, 1 << i, codes, callback);
+            }
+        } finally {
+            first.putSearchState(state);
+        }
+    }
+
+    /**
+     * Called before each search, for dictionaries that bring their words up to date then. It
+     * is called on the thread of the search.
+     */
+    void startSearch() {
+    }
+
+    private SearchState takeSearchState() {
+        for (int i = 0; i < IDLE_STATE_COUNT; i++) {
+            SearchState state = mIdleStates.getAndSet(i, null);
+            if (state != null) return state;
+        }
+        return new SearchState();
+    }
+
+    private void putSearchState(SearchState state) {
+        for (int i = 0; i < IDLE_STATE_COUNT; i++) {
+            if (mIdleStates.compareAndSet(i, null, state)) return;
         }
     }
 
     @Override
-    public synchronized boolean isValidWord(CharSequence word) {
-        final int freq = getWordFrequencyRec(mRoots, word, 0, word.length());
-        return freq > -1;
+    public boolean isValidWord(CharSequence word) {
+        return mTrie.getWordFrequency(word) > -1;
     }
 
     /**
      * Returns the word's frequency or -1 if not found
      */
     public int getWordFrequency(CharSequence word) {
-        return getWordFrequencyRec(mRoots, word, 0, word.length());
+        return mTrie.getWordFrequency(word);
     }
 
     /**
-     * Returns the word's frequency or -1 if not found
+     * The state of one search: the input codes, the word built so far and the frames.
      */
-    private int getWordFrequencyRec(final NodeArray children, final CharSequence word, 
-            final int offset, final int length) {
-        final int count = children.length;
-        char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.data[j];
-            if (node.code == currentChar) {
-                if (offset == length - 1) {
-                    if (node.terminal) {
-                        return node.frequency;
+    private class SearchState {
+        private WordCallback mCallback;
+        private SourcedWordCallback mSourcedCallback;
+        // The bit of the dictionary being searched, for mSourcedCallback
+        private int mSources;
+        private char[] mWordBuilder = new char[MAX_WORD_LENGTH];
+        private int mMaxDepth;
+        private int mInputLength;
+        private int[][] mCodes = new int[MAX_WORD_LENGTH][];
+
+        // Frames of the search, in place of recursion. A children frame holds the next child
+        // to look at.
+        private int[] mFrameNodes = new int[MAX_WORD_LENGTH * 2];
+        private int[] mFrameDepths = new int[MAX_WORD_LENGTH * 2];
+        private int[] mFrameSnrs = new int[MAX_WORD_LENGTH * 2];
+        private int[] mFrameInputs = new int[MAX_WORD_LENGTH * 2];
+        private int[] mFrameModes = new int[MAX_WORD_LENGTH * 2];
+        private int mFrameCount;
+
+        // The points to search from after skipping a character, with the word up to them
+        private int[] mSkipNodes = new int[MAX_WORD_LENGTH];
+        private int[] mSkipDepths = new int[MAX_WORD_LENGTH];
+        private int[] mSkipSnrs = new int[MAX_WORD_LENGTH];
+        private int[] mSkipInputs = new int[MAX_WORD_LENGTH];
+        private char[] mSkipWords = new char[MAX_WORD_LENGTH * MAX_WORD_LENGTH];
+        private int mSkipCount;
+
+        /**
+         * Searches trie, reporting its words with sources to a SourcedWordCallback.
+         */
+        void getWords(final Trie trie, final int sources, final WordComposer codes,
+                final WordCallback callback) {
+            mCallback = callback;
+            mSourcedCallback = callback instanceof SourcedWordCallback
+                    ? (SourcedWordCallback) callback : null;
+            mSources = sources;
+            mInputLength = codes.size();
+            if (mCodes.length < mInputLength) mCodes = new int[mInputLength][];
+            // Cache the codes so that we don't have to lookup an array list
+            for (int i = 0; i < mInputLength; i++) {
+                mCodes[i] = codes.getCodesAt(i);
+            }
+            mMaxDepth = mInputLength * 3;
+            mSkipCount = 0;
+            getWordsFrom(trie, trie.mRoot, codes, mWordBuilder, 0, 1, 0, MODE_ALL | MODE_PREFIX);
+            for (int skipPos = 0; skipPos < mInputLength; skipPos++) {
+                for (int i = 0; i < mSkipCount; i++) {
+                    if (mSkipDepths[i] != skipPos) continue;
+                    System.arraycopy(mSkipWords, i * MAX_WORD_LENGTH, mWordBuilder, 0,
+                            skipPos + 1);
+                    getWordsFrom(trie, mSkipNodes[i], codes, mWordBuilder, skipPos + 1,
+                            mSkipSnrs[i], mSkipInputs[i], MODE_SKIPPED);
+                }
+            }
+            mCallback = null;
+            mSourcedCallback = null;
+        }
+
+        /**
+         * Traverse the tree for words that match the input. Input consists of a list of
+         * arrays. Each item in the list is one input character position. An input character is
+         * actually an array of multiple possible candidates. The traversal keeps its own stack
+         * of frames, so long words don't run deep in the Java stack.
+         * @param trie the words to search
+         * @param parent node whose children have to be search for matches
+         * @param codes the input character codes
+         * @param word the word being composed as a possible match
+         * @param depth the depth of traversal - the length of the word being composed thus far
+         * @param snr current weight of the word being formed
+         * @param inputIndex position in the input characters. This can be off from the depth
+         * in case we skip over some punctuations such as apostrophe in the traversal. That is,
+         * if you type "wouldve", it could be matching "would've", so the depth will be one more
+         * than the inputIndex
+         * @param mode the searches that the traversal stands for
+         */
+        private void getWordsFrom(Trie trie, int parent, final WordComposer codes,
+                final char[] word, int depth, int snr, int inputIndex, int mode) {
+            final int codeSize = mInputLength;
+            final char[] nodeCodes = trie.mNodeCodes;
+            final int[] nodeData = trie.mNodeData;
+            final int[] firstChildren = trie.mFirstChildren;
+            final int[] nextSiblings = trie.mNextSiblings;
+            mFrameCount = 0;
+            pushFrame(firstChildren[parent], depth, snr, inputIndex, mode);
+
+            while (mFrameCount > 0) {
+                if (mCallback.getFrequencyThreshold() == NO_MORE_WORDS) {
+                    // The caller gave up on the search
+                    mFrameCount = 0;
+                    break;
+                }
+                final int top = mFrameCount - 1;
+                int node = mFrameNodes[top];
+                if (node == NO_NODE) {
+                    // No children left in the frame
+                    mFrameCount--;
+                    continue;
+                }
+                depth = mFrameDepths[top];
+                snr = mFrameSnrs[top];
+                inputIndex = mFrameInputs[top];
+                mode = mFrameModes[top];
+
+                if ((mode & FRAME_MATCH) != 0) {
+                    // The node matched the last input, already weighed in snr
+                    mFrameCount--;
+                    final int data = nodeData[node];
+                    word[depth] = nodeCodes[node];
+                    if ((data & TERMINAL) != 0) {
+                        if (INCLUDE_TYPED_WORD_IF_VALID 
+                                || !same(word, depth + 1, codes.getTypedWord())) {
+                            int finalFreq = (data & FREQUENCY_MASK) * snr;
+                            if ((mode & MODE_ALL) != 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+                            addWord(word, depth + 1, finalFreq);
+                        }
                     }
-                } else {
-                    if (node.children != null) {
-                        int freq = getWordFrequencyRec(node.children, word, offset + 1, length);
-                        if (freq > -1) return freq;
+                    pushFrame(firstChildren[node], depth + 1, snr, inputIndex,
+                            (mode & ~FRAME_MATCH) | MODE_COMPLETION);
+                    continue;
+                }
+
+                final boolean completion = (mode & MODE_COMPLETION) != 0 || codeSize <= inputIndex;
+                final int[] currentChars = completion ? null : mCodes[inputIndex];
+                // The primary codes ahead of a skip go no further than the last input
+                final int nextMode = depth + 1 < codeSize ? mode : mode & ~MODE_PREFIX;
+                // Don't use alternatives if we're looking for missing characters
+                int alternativesSize = completion || (mode & MODE_SKIPPED) != 0
+                        ? 1 : currentChars.length;
+                for (int j = 0; j < alternativesSize && !completion; j++) {
+                    if (currentChars[j] == -1) {
+                        alternativesSize = j;
+                        break;
                     }
                 }
+                // Go through the children until one has frames to search before its next sibling
+                do {
+                    final int current = node;
+                    node = nextSiblings[current];
+                    final char c = nodeCodes[current];
+                    final int data = nodeData[current];
+                    final boolean terminal = (data & TERMINAL) != 0;
+                    final int children = firstChildren[current];
+                    final int freq = data & FREQUENCY_MASK;
+                    word[depth] = c;
+
+                    if (completion) {
+                        if (terminal) {
+                            if (!addWord(word, depth + 1, freq * snr)) {
+                                node = NO_NODE;
+                                break;
+                            }
+                        }
+                        // Skip the completions if none of them can make it into the suggestions
+                        if (children != NO_NODE && (data >>> MAX_FREQ_SHIFT & FREQUENCY_MASK) * snr
+                                > mCallback.getFrequencyThreshold()) {
+                            pushFrame(children, depth + 1, snr, inputIndex, mode | MODE_COMPLETION);
+                        }
+                        continue;
+                    }
+
+                    if ((mode & MODE_PREFIX) != 0 && children != NO_NODE) {
+                        addSkip(current, word, depth, snr, inputIndex);
+                    }
+                    if (c == QUOTE && currentChars[0] != QUOTE) {
+                        // Skip the ' and continue deeper
+                        pushFrame(children, depth + 1, snr, inputIndex, nextMode);
+                        continue;
+                    }
+                    final char lowerC = toLowerCase(c);
+                    // Pushed last to first, so that the first alternative is searched first
+                    for (int j = alternativesSize - 1; j >= 0; j--) {
+                        final int currentChar = currentChars[j];
+                        if (currentChar != lowerC && currentChar != c) {
+                            continue;
+                        }
+                        final int addedAttenuation = (j > 0 ? 1 : 2);
+                        if (codeSize == depth + 1) {
+                            pushFrame(current, depth, snr * addedAttenuation, inputIndex + 1,
+                                    (mode & ~MODE_PREFIX) | FRAME_MATCH);
+                        } else {
+                            pushFrame(children, depth + 1, snr * addedAttenuation, inputIndex + 1,
+                                    j == 0 ? nextMode : nextMode & ~MODE_PREFIX);
+                        }
+                    }
+                } while (node != NO_NODE && mFrameCount == top + 1);
+                mFrameNodes[top] = node;
             }
         }
-        return -1;
+
+        private boolean addWord(char[] word, int length, int frequency) {
+            if (mSourcedCallback != null) {
+                return mSourcedCallback.addWord(word, 0, length, frequency, mSources);
+            }
+            return mCallback.addWord(word, 0, length, frequency);
+        }
+
+        private void pushFrame(int node, int depth, int snr, int inputIndex, int mode) {
+            // Optimization: Prune out words that are too long compared to how much was typed.
+            if (node == NO_NODE || depth > mMaxDepth) {
+                return;
+            }
+            if (mFrameCount == mFrameNodes.length) {
+                final int capacity = mFrameCount * 2;
+                mFrameNodes = copyOf(mFrameNodes, capacity);
+                mFrameDepths = copyOf(mFrameDepths, capacity);
+                mFrameSnrs = copyOf(mFrameSnrs, capacity);
+                mFrameInputs = copyOf(mFrameInputs, capacity);
+                mFrameModes = copyOf(mFrameModes, capacity);
+            }
+            mFrameNodes[mFrameCount] = node;
+            mFrameDepths[mFrameCount] = depth;
+            mFrameSnrs[mFrameCount] = snr;
+            mFrameInputs[mFrameCount] = inputIndex;
+            mFrameModes[mFrameCount] = mode;
+            mFrameCount++;
+        }
+
+        /**
+         * Saves a point where a search skipping the character at depth goes on into the children
+         * of node.
+         */
+        private void addSkip(int node, char[] word, int depth, int snr, int inputIndex) {
+            if (mSkipCount == mSkipNodes.length) {
+                final int capacity = mSkipCount * 2;
+                mSkipNodes = copyOf(mSkipNodes, capacity);
+                mSkipDepths = copyOf(mSkipDepths, capacity);
+                mSkipSnrs = copyOf(mSkipSnrs, capacity);
+                mSkipInputs = copyOf(mSkipInputs, capacity);
+                char[] words = new char[capacity * MAX_WORD_LENGTH];
+                System.arraycopy(mSkipWords, 0, words, 0, mSkipWords.length);
+                mSkipWords = words;
+            }
+            mSkipNodes[mSkipCount] = node;
+            mSkipDepths[mSkipCount] = depth;
+            mSkipSnrs[mSkipCount] = snr;
+            mSkipInputs[mSkipCount] = inputIndex;
+            System.arraycopy(word, 0, mSkipWords, mSkipCount * MAX_WORD_LENGTH, depth + 1);
+            mSkipCount++;
+        }
+    }
+
+    private static int[] copyOf(int[] array, int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, capacity));
+        return copy;
+    }
+
+    /**
+     * Logs how long after the dictionary was made its words became ready to be searched.
+     * @param from where the words came from
+     */
+    void logReady(String from) {
+        Log.i(TAG, getClass().getSimpleName() + " ready from " + from + " "
+                + (SystemClock.uptimeMillis() - mCreateTime) + "ms after create");
     }
 
     /**
-     * Recursively traverse the tree for words that match the input. Input consists of
-     * a list of arrays. Each item in the list is one input character position. An input
-     * character is actually an array of multiple possible candidates. This function is not
-     * optimized for speed, assuming that the user dictionary will only be a few hundred words in
-     * size.
-     * @param roots node whose children have to be search for matches
-     * @param codes the input character codes
-     * @param word the word being composed as a possible match
-     * @param depth the depth of traversal - the length of the word being composed thus far
-     * @param completion whether the traversal is now in completion mode - meaning that we've
-     * exhausted the input and we're looking for all possible suffixes.
-     * @param snr current weight of the word being formed
-     * @param inputIndex position in the input characters. This can be off from the depth in 
-     * case we skip over some punctuations such as apostrophe in the traversal. That is, if you type
-     * "wouldve", it could be matching "would've", so the depth will be one more than the
-     * inputIndex
-     * @param callback the callback class for adding a word
+     * Publishes the words saved by saveSnapshot, if there are any. The file is small enough
+     * to be read in a few milliseconds, so that the words can be there before they are
+     * loaded from where they come from. This reads a file, so it shouldn't be called from
+     * the UI thread. A snapshot is dropped if the words were changed while it was read.
+     * @param name the file name in the application's files directory
+     * @return true if a snapshot was published
      */
-    protected void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word, 
-            final int depth, boolean completion, int snr, int inputIndex, int skipPos,
-            WordCallback callback) {
-        final int count = roots.length;
-        final int codeSize = mInputLength;
-        // Optimization: Prune out words that are too long compared to how much was typed.
-        if (depth > mMaxDepth) {
-            return;
-        }
-        int[] currentChars = null;
-        if (codeSize <= inputIndex) {
-            completion = true;
-        } else {
-            currentChars = mCodes[inputIndex];
+    boolean loadSnapshot(String name) {
+        final long startTime = SystemClock.uptimeMillis();
+        final long wordsStamp = mWordsStamp;
+        final File file = new File(mContext.getFilesDir(), name);
+        if (!file.exists()) return false;
+        FileInputStream in = null;
+        Trie trie = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            trie = Trie.readFrom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + name + ": " + e.getMessage());
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }
+        if (trie == null) {
+            Log.w(TAG, "Ignoring snapshot " + name);
+            return false;
+        }
+        synchronized (this) {
+            if (mWordsStamp != wordsStamp) {
+                // It would undo the change, which the words loaded next have anyway
+                Log.i(TAG, "Dropping snapshot " + name + ", the words changed");
+                return false;
+            }
+            publish(trie);
         }
+        Log.i(TAG, "Loaded snapshot " + name + " in "
+                + (SystemClock.uptimeMillis() - startTime) + "msec");
+        return true;
+    }
 
-        for (int i = 0; i < count; i++) {
-            final Node node = roots.data[i];
-            final char c = node.code;
-            final char lowerC = toLowerCase(c);
-            final boolean terminal = node.terminal;
-            final NodeArray children = node.children;
-            final int freq = node.frequency;
-            if (completion) {
-                word[depth] = c;
-                if (terminal) {
-                    if (!callback.addWord(word, 0, depth + 1, freq * snr)) {
-                        return;
+    /**
+     * Saves the words as they are now for loadSnapshot. The file is replaced as a whole, so
+     * that a snapshot is never read half written. This writes a file, so it shouldn't be
+     * called from the UI thread.
+     * @return true if the snapshot was saved
+     */
+    boolean saveSnapshot(String name) {
+        final File file = new File(mContext.getFilesDir(), name);
+        final File temp = new File(mContext.getFilesDir(), name + ".tmp");
+        final ByteBuffer snapshot = mTrie.toSnapshot();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            FileChannel channel = out.getChannel();
+            while (snapshot.hasRemaining()) {
+                channel.write(snapshot);
+            }
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Could not replace " + name);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + name + ": " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    protected void clearDictionary() {
+        setTrie(new Trie(INITIAL_NODE_CAPACITY));
+    }
+
+    /**
+     * Words in parallel node arrays, along with a bloom filter of them. A trie that was
+     * published to the dictionary is never changed; changes are made to a trie returned by
+     * edit() instead.
+     */
+    static final class Trie {
+        private char[] mNodeCodes;
+        private int[] mNodeData;
+        private int[] mFirstChildren;
+        private int[] mNextSiblings;
+        private int mNodeCount;
+        private int mRoot = ROOT;
+        // Nodes below this one are shared with the trie this one was edited from, and are
+        // copied before they are changed
+        private int mSharedCount;
+        // The number of nodes in use in the arrays, by this trie or any trie edited from it,
+        // shared by all of them
+        private int[] mArraysInUse = new int[1];
+        // Nodes that were cut off by removed words or replaced by copies, until the trie is
+        // compacted
+        private int mRemovedNodes;
+
+        // Shared with the tries edited from this one, which only ever add words to it. That
+        // only lets more lookups of this trie through to the nodes, which turn them down.
+        private BloomFilter mFilter;
+        private int mFilterCapacity;
+        private int mWordCount;
+
+        /**
+         * Create an empty trie.
+         * @param capacity the number of nodes to make room for, such as the node count of
+         * the trie that this one will replace
+         */
+        Trie(int capacity) {
+            capacity = Math.max(capacity, INITIAL_NODE_CAPACITY);
+            mNodeCodes = new char[capacity];
+            mNodeData = new int[capacity];
+            mFirstChildren = new int[capacity];
+            mNextSiblings = new int[capacity];
+            // The root
+            mNodeCount = 1;
+            mArraysInUse[0] = 1;
+            mFilterCapacity = INITIAL_FILTER_CAPACITY;
+            mFilter = new BloomFilter(mFilterCapacity);
+        }
+
+        private Trie(Trie trie, int capacity) {
+            mNodeCodes = new char[capacity];
+            System.arraycopy(trie.mNodeCodes, 0, mNodeCodes, 0, trie.mNodeCount);
+            mNodeData = copyOf(trie.mNodeData, capacity);
+            mFirstChildren = copyOf(trie.mFirstChildren, capacity);
+            mNextSiblings = copyOf(trie.mNextSiblings, capacity);
+            mNodeCount = trie.mNodeCount;
+            mRoot = trie.mRoot;
+            mArraysInUse[0] = mNodeCount;
+            mRemovedNodes = trie.mRemovedNodes;
+            mFilter = trie.mFilter.copy();
+            mFilterCapacity = trie.mFilterCapacity;
+            mWordCount = trie.mWordCount;
+        }
+
+        /**
+         * Create a trie over the same arrays, whose nodes it shares.
+         */
+        private Trie(Trie trie) {
+            mNodeCodes = trie.mNodeCodes;
+            mNodeData = trie.mNodeData;
+            mFirstChildren = trie.mFirstChildren;
+            mNextSiblings = trie.mNextSiblings;
+            mNodeCount = trie.mNodeCount;
+            mRoot = trie.mRoot;
+            mSharedCount = trie.mNodeCount;
+            mArraysInUse = trie.mArraysInUse;
+            mRemovedNodes = trie.mRemovedNodes;
+            mFilter = trie.mFilter;
+            mFilterCapacity = trie.mFilterCapacity;
+            mWordCount = trie.mWordCount;
+        }
+
+        /**
+         * Returns a trie with the same words that can be changed while this one is searched.
+         * It shares the nodes of this one and makes new ones past them, in the same arrays,
+         * which searches of this one never get to. A node is copied before it is changed, and
+         * so are the nodes linking to it, up to the root, so the cost of a change is in the
+         * length of the word and the number of siblings before it. The copied nodes are only
+         * cut off, and once they are more than half the nodes, the trie is compacted instead.
+         * Only the last trie edited from a trie can share its arrays, since the next one would
+         * make its new nodes in the same place.
+         */
+        Trie edit() {
+            if (needsCompacting() || mArraysInUse[0] != mNodeCount) {
+                return copy();
+            }
+            return new Trie(this);
+        }
+
+        /**
+         * Returns a copy that words can be added to, with room for half again as many nodes,
+         * so that copies get rarer as the trie grows. Once more than half the nodes were cut
+         * off, the copy leaves them out.
+         */
+        Trie copy() {
+            if (needsCompacting()) {
+                return compactedCopy();
+            }
+            return new Trie(this, grownCapacity(mNodeCount));
+        }
+
+        /**
+         * Returns true if more than half the nodes were cut off.
+         */
+        boolean needsCompacting() {
+            return mRemovedNodes > mNodeCount / 2;
+        }
+
+        private static int grownCapacity(int nodeCount) {
+            return nodeCount + Math.max(nodeCount / 2, MAX_WORD_LENGTH);
+        }
+
+        /**
+         * Returns a copy without the nodes that were cut off.
+         */
+        private Trie compactedCopy() {
+            Trie trie = new Trie(grownCapacity(mNodeCount - mRemovedNodes));
+            trie.copyChildren(this, mRoot, ROOT);
+            trie.mFilter = mFilter.copy();
+            trie.mFilterCapacity = mFilterCapacity;
+            trie.mWordCount = mWordCount;
+            return trie;
+        }
+
+        /**
+         * Copies the nodes below fromParent in trie to below parent, in the same order.
+         */
+        private void copyChildren(Trie trie, int fromParent, int parent) {
+            int lastChild = NO_NODE;
+            for (int node = trie.mFirstChildren[fromParent]; node != NO_NODE;
+                    node = trie.mNextSiblings[node]) {
+                final int child = newNode(trie.mNodeCodes[node], trie.mNodeData[node], NO_NODE);
+                if (lastChild == NO_NODE) {
+                    mFirstChildren[parent] = child;
+                } else {
+                    mNextSiblings[lastChild] = child;
+                }
+                lastChild = child;
+                copyChildren(trie, node, child);
+            }
+        }
+
+        int getNodeCount() {
+            return mNodeCount;
+        }
+
+        /**
+         * Returns the trie as a snapshot, from position 0 to the limit. Nodes that were cut
+         * off are left out.
+         */
+        ByteBuffer toSnapshot() {
+            if (mRemovedNodes > 0 || mRoot != ROOT) {
+                return compactedCopy().toSnapshot();
+            }
+            ByteBuffer out = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + mFilter.getStoredSize()
+                    + mNodeCount * SNAPSHOT_BYTES_PER_NODE + SNAPSHOT_CHECKSUM_SIZE);
+            out.putInt(SNAPSHOT_MAGIC);
+            out.putInt(SNAPSHOT_VERSION);
+            out.putInt(mNodeCount);
+            out.putInt(mWordCount);
+            out.putInt(mFilterCapacity);
+            mFilter.writeTo(out);
+            out.asCharBuffer().put(mNodeCodes, 0, mNodeCount);
+            out.position(out.position() + mNodeCount * 2);
+            putInts(out, mNodeData, mNodeCount);
+            putInts(out, mFirstChildren, mNodeCount);
+            putInts(out, mNextSiblings, mNodeCount);
+            CRC32 crc = new CRC32();
+            crc.update(out.array(), 0, out.position());
+            out.putLong(crc.getValue());
+            out.flip();
+            return out;
+        }
+
+        /**
+         * Returns the trie in a snapshot, or null if it isn't a whole snapshot of this
+         * version.
+         * @param in the snapshot, from position 0 to the limit
+         */
+        static Trie readFrom(ByteBuffer in) {
+            final int size = in.limit();
+            if (size < SNAPSHOT_HEADER_SIZE + BloomFilter.STORED_HEADER_SIZE
+                    + SNAPSHOT_CHECKSUM_SIZE
+                    || in.getInt(0) != SNAPSHOT_MAGIC || in.getInt(4) != SNAPSHOT_VERSION) {
+                return null;
+            }
+            final int nodeCount = in.getInt(8);
+            if (nodeCount < 1 || nodeCount > (size - SNAPSHOT_HEADER_SIZE)
+                    / SNAPSHOT_BYTES_PER_NODE) {
+                return null;
+            }
+            byte[] bytes = new byte[size - SNAPSHOT_CHECKSUM_SIZE];
+            in.position(0);
+            in.get(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            if (crc.getValue() != in.getLong()) {
+                return null;
+            }
+
+            ByteBuffer stored = ByteBuffer.wrap(bytes);
+            stored.position(SNAPSHOT_HEADER_SIZE);
+            BloomFilter filter = BloomFilter.readFrom(stored.slice());
+            if (filter == null || SNAPSHOT_HEADER_SIZE + filter.getStoredSize()
+                    + nodeCount * SNAPSHOT_BYTES_PER_NODE != bytes.length) {
+                return null;
+            }
+            Trie trie = new Trie(nodeCount + MAX_WORD_LENGTH);
+            trie.mNodeCount = nodeCount;
+            trie.mArraysInUse[0] = nodeCount;
+            trie.mWordCount = stored.getInt(12);
+            trie.mFilterCapacity = stored.getInt(16);
+            trie.mFilter = filter.copy();
+            stored.position(SNAPSHOT_HEADER_SIZE + filter.getStoredSize());
+            stored.asCharBuffer().get(trie.mNodeCodes, 0, nodeCount);
+            stored.position(stored.position() + nodeCount * 2);
+            getInts(stored, trie.mNodeData, nodeCount);
+            getInts(stored, trie.mFirstChildren, nodeCount);
+            getInts(stored, trie.mNextSiblings, nodeCount);
+            return trie.isWellFormed() ? trie : null;
+        }
+
+        /**
+         * Returns true if every node is reached from the root at most once, and the children
+         * are in the order of their characters. Searches trust the links, so a snapshot has
+         * to be checked before it gets that far.
+         */
+        private boolean isWellFormed() {
+            boolean[] seen = new boolean[mNodeCount];
+            int[] parents = new int[mNodeCount];
+            int parentCount = 0;
+            parents[parentCount++] = ROOT;
+            seen[ROOT] = true;
+            while (parentCount > 0) {
+                final int parent = parents[--parentCount];
+                int previous = NO_NODE;
+                for (int node = mFirstChildren[parent]; node != NO_NODE;
+                        node = mNextSiblings[node]) {
+                    if (node < 0 || node >= mNodeCount || seen[node]
+                            || (previous != NO_NODE && mNodeCodes[node] <= mNodeCodes[previous])) {
+                        return false;
                     }
+                    seen[node] = true;
+                    parents[parentCount++] = node;
+                    previous = node;
+                }
+            }
+            return true;
+        }
+
+        private static void putInts(ByteBuffer out, int[] values, int count) {
+            out.asIntBuffer().put(values, 0, count);
+            out.position(out.position() + count * 4);
+        }
+
+        private static void getInts(ByteBuffer in, int[] values, int count) {
+            in.asIntBuffer().get(values, 0, count);
+            in.position(in.position() + count * 4);
+        }
+
+        /**
+         * Puts all the words with their frequencies into words.
+         */
+        void getWordFrequencies(Map<String, Integer> words) {
+            getWordFrequenciesRec(mRoot, new StringBuilder(), words);
+        }
+
+        private void getWordFrequenciesRec(int parent, StringBuilder word,
+                Map<String, Integer> words) {
+            for (int node = mFirstChildren[parent]; node != NO_NODE;
+                    node = mNextSiblings[node]) {
+                word.append(mNodeCodes[node]);
+                final int data = mNodeData[node];
+                if ((data & TERMINAL) != 0) {
+                    words.put(word.toString(), data & FREQUENCY_MASK);
+                }
+                if (mFirstChildren[node] != NO_NODE) {
+                    getWordFrequenciesRec(node, word, words);
                 }
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex,
-                            skipPos, callback);
+                word.setLength(word.length() - 1);
+            }
+        }
+
+        /**
+         * Returns a checksum of the words and their frequencies. The children are in the
+         * order of their characters, so tries with the same words have the same checksum
+         * whatever order the words were added in.
+         */
+        long getWordsChecksum() {
+            CRC32 crc = new CRC32();
+            updateWordsChecksum(crc, mRoot);
+            return crc.getValue();
+        }
+
+        private void updateWordsChecksum(CRC32 crc, int parent) {
+            for (int node = mFirstChildren[parent]; node != NO_NODE;
+                    node = mNextSiblings[node]) {
+                final char c = mNodeCodes[node];
+                final int data = mNodeData[node];
+                crc.update(1);
+                crc.update(c >> 8);
+                crc.update(c);
+                crc.update((data & TERMINAL) != 0 ? 1 : 0);
+                crc.update(data & FREQUENCY_MASK);
+                updateWordsChecksum(crc, node);
+            }
+            // Where the children end, so that a word isn't taken for a longer one
+            crc.update(0);
+        }
+
+        void addWord(String word, int frequency) {
+            // In the filter before it is in the nodes, so that a lookup doesn't turn it down
+            // once it can be found
+            mFilter.add(word);
+            setRootChildren(addWordRec(mFirstChildren[mRoot], word, 0, frequency));
+            if (mWordCount > mFilterCapacity) {
+                rebuildFilter(mFilterCapacity * 2);
+            }
+        }
+
+        private void rebuildFilter(int capacity) {
+            BloomFilter filter = new BloomFilter(capacity);
+            addWordsToFilter(filter, mRoot, new StringBuilder());
+            mFilterCapacity = capacity;
+            mFilter = filter;
+        }
+
+        private void addWordsToFilter(BloomFilter filter, int parent, StringBuilder word) {
+            for (int node = mFirstChildren[parent]; node != NO_NODE;
+                    node = mNextSiblings[node]) {
+                word.append(mNodeCodes[node]);
+                if ((mNodeData[node] & TERMINAL) != 0) {
+                    filter.add(word);
                 }
-            } else if ((c == QUOTE && currentChars[0] != QUOTE) || depth == skipPos) {
-                // Skip the ' and continue deeper
-                word[depth] = c;
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex, 
-                            skipPos, callback);
+                if (mFirstChildren[node] != NO_NODE) {
+                    addWordsToFilter(filter, node, word);
                 }
+                word.setLength(word.length() - 1);
+            }
+        }
+
+        /**
+         * Makes a node past the ones in use and returns it. The arrays grow here, into new
+         * ones that aren't shared with any other trie.
+         */
+        private int newNode(char c, int data, int nextSibling) {
+            if (mNodeCount == mNodeCodes.length) {
+                final int capacity = mNodeCount * 2;
+                char[] codes = new char[capacity];
+                System.arraycopy(mNodeCodes, 0, codes, 0, mNodeCount);
+                mNodeCodes = codes;
+                mNodeData = copyOf(mNodeData, capacity);
+                mFirstChildren = copyOf(mFirstChildren, capacity);
+                mNextSiblings = copyOf(mNextSiblings, capacity);
+                mSharedCount = 0;
+                mArraysInUse = new int[1];
+            }
+            final int node = mNodeCount++;
+            mArraysInUse[0] = mNodeCount;
+            mNodeCodes[node] = c;
+            mNodeData[node] = data;
+            mFirstChildren[node] = NO_NODE;
+            mNextSiblings[node] = nextSibling;
+            return node;
+        }
+
+        /**
+         * Returns the node if it is this trie's own, or else a copy of it that is. The copy
+         * still has to be linked in place of the node.
+         */
+        private int ownNode(int node) {
+            if (node >= mSharedCount) return node;
+            final int copy = newNode(mNodeCodes[node], mNodeData[node], mNextSiblings[node]);
+            mFirstChildren[copy] = mFirstChildren[node];
+            mRemovedNodes++;
+            return copy;
+        }
+
+        /**
+         * Returns the list of siblings from first with node replaced by replacement, which
+         * links to whatever is to follow it. The nodes before it are copied if they are
+         * shared.
+         */
+        private int replaceNode(int first, int node, int replacement) {
+            if (first == node) return replacement;
+            final int next = replaceNode(mNextSiblings[first], node, replacement);
+            if (next == mNextSiblings[first]) return first;
+            final int copy = ownNode(first);
+            mNextSiblings[copy] = next;
+            return copy;
+        }
+
+        private void setRootChildren(int firstChild) {
+            if (firstChild == mFirstChildren[mRoot]) return;
+            mRoot = ownNode(mRoot);
+            mFirstChildren[mRoot] = firstChild;
+        }
+
+        /**
+         * Adds the rest of a word below the children from first, and returns the children
+         * with it.
+         */
+        private int addWordRec(int first, final String word, final int depth,
+                final int frequency) {
+            final char c = word.charAt(depth);
+            // The child with the character, or the first one with a higher one
+            int node = first;
+            while (node != NO_NODE && mNodeCodes[node] < c) {
+                node = mNextSiblings[node];
+            }
+            final int child;
+            if (node != NO_NODE && mNodeCodes[node] == c) {
+                child = ownNode(node);
             } else {
-                // Don't use alternatives if we're looking for missing characters
-                final int alternativesSize = skipPos >= 0? 1 : currentChars.length;
-                for (int j = 0; j < alternativesSize; j++) {
-                    final int addedAttenuation = (j > 0 ? 1 : 2);
-                    final int currentChar = currentChars[j];
-                    if (currentChar == -1) {
-                        break;
+                child = newNode(c, 0, node);
+            }
+            final int data = mNodeData[child];
+            if (word.length() == depth + 1) {
+                // Terminate this word
+                if ((data & TERMINAL) == 0) mWordCount++;
+                final int freq = Math.min(Math.max(frequency, data & FREQUENCY_MASK), 255);
+                mNodeData[child] = (data & ~FREQUENCY_MASK) | TERMINAL | freq;
+            } else {
+                final int maxFreq = Math.max(data >>> MAX_FREQ_SHIFT & FREQUENCY_MASK,
+                        Math.min(frequency, 255));
+                mNodeData[child] = (data & ~(FREQUENCY_MASK << MAX_FREQ_SHIFT))
+                        | (maxFreq << MAX_FREQ_SHIFT);
+                // Not in one statement, since the arrays can grow in the call
+                final int children = addWordRec(mFirstChildren[child], word, depth + 1,
+                        frequency);
+                mFirstChildren[child] = children;
+            }
+            return replaceNode(first, node, child);
+        }
+
+        /**
+         * Removes a word. Nodes left without words below them are cut off. The bloom filter
+         * keeps the word until it is rebuilt, which only lets a few more lookups through.
+         * @return true if the word was there
+         */
+        boolean removeWord(String word) {
+            if (getWordFrequency(word) < 0) return false;
+            setRootChildren(changeWordRec(mFirstChildren[mRoot], word, 0, -1));
+            mWordCount--;
+            return true;
+        }
+
+        /**
+         * Sets the frequency of a word, which is added if it isn't there. Unlike addWord, the
+         * frequency can go down.
+         */
+        void setWordFrequency(String word, int frequency) {
+            if (getWordFrequency(word) < 0) {
+                addWord(word, frequency);
+                return;
+            }
+            setRootChildren(changeWordRec(mFirstChildren[mRoot], word, 0,
+                    Math.max(0, Math.min(frequency, 255))));
+        }
+
+        /**
+         * Sets the frequency of a word that is below the children from first, or removes it
+         * if frequency is -1, bringing the highest frequencies on the way up to date. Returns
+         * the children as they are then.
+         */
+        private int changeWordRec(int first, String word, int depth, int frequency) {
+            final char c = word.charAt(depth);
+            int node = first;
+            while (mNodeCodes[node] != c) {
+                node = mNextSiblings[node];
+            }
+            int data = mNodeData[node];
+            int children = mFirstChildren[node];
+            if (word.length() == depth + 1) {
+                if (frequency >= 0) {
+                    data = (data & ~FREQUENCY_MASK) | frequency;
+                } else {
+                    data &= ~(FREQUENCY_MASK | TERMINAL);
+                }
+            } else {
+                children = changeWordRec(children, word, depth + 1, frequency);
+                int maxFreq = 0;
+                for (int child = children; child != NO_NODE; child = mNextSiblings[child]) {
+                    final int childData = mNodeData[child];
+                    if ((childData & TERMINAL) != 0) {
+                        maxFreq = Math.max(maxFreq, childData & FREQUENCY_MASK);
                     }
-                    if (currentChar == lowerC || currentChar == c) {
-                        word[depth] = c;
+                    maxFreq = Math.max(maxFreq, childData >>> MAX_FREQ_SHIFT & FREQUENCY_MASK);
+                }
+                data = (data & ~(FREQUENCY_MASK << MAX_FREQ_SHIFT)) | (maxFreq << MAX_FREQ_SHIFT);
+            }
+            final int replacement;
+            if ((data & TERMINAL) == 0 && children == NO_NODE) {
+                // No words left through this node
+                replacement = mNextSiblings[node];
+                mRemovedNodes++;
+            } else {
+                replacement = ownNode(node);
+                mNodeData[replacement] = data;
+                mFirstChildren[replacement] = children;
+            }
+            return replaceNode(first, node, replacement);
+        }
 
-                        if (codeSize == depth + 1) {
-                            if (terminal) {
-                                if (INCLUDE_TYPED_WORD_IF_VALID 
-                                        || !same(word, depth + 1, codes.getTypedWord())) {
-                                    int finalFreq = freq * snr * addedAttenuation;
-                                    if (skipPos < 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
-                                    callback.addWord(word, 0, depth + 1, finalFreq);
-                                }
-                            }
-                            if (children != null) {
-                                getWordsRec(children, codes, word, depth + 1,
-                                        true, snr * addedAttenuation, inputIndex + 1,
-                                        skipPos, callback);
-                            }
-                        } else if (children != null) {
-                            getWordsRec(children, codes, word, depth + 1, 
-                                    false, snr * addedAttenuation, inputIndex + 1,
-                                    skipPos, callback);
+        /**
+         * Returns the word's frequency or -1 if not found
+         */
+        int getWordFrequency(CharSequence word) {
+            if (word.length() == 0 || !mFilter.mightContain(word)) return -1;
+            return getWordFrequencyRec(mRoot, word, 0, word.length());
+        }
+
+        /**
+         * Returns the word's frequency or -1 if not found
+         */
+        private int getWordFrequencyRec(final int parent, final CharSequence word, 
+                final int offset, final int length) {
+            char currentChar = word.charAt(offset);
+            for (int node = mFirstChildren[parent]; node != NO_NODE;
+                    node = mNextSiblings[node]) {
+                if (mNodeCodes[node] == currentChar) {
+                    if (offset == length - 1) {
+                        if ((mNodeData[node] & TERMINAL) != 0) {
+                            return mNodeData[node] & FREQUENCY_MASK;
+                        }
+                    } else {
+                        if (mFirstChildren[node] != NO_NODE) {
+                            int freq = getWordFrequencyRec(node, word, offset + 1, length);
+                            if (freq > -1) return freq;
                         }
                     }
                 }
             }
+            return -1;
         }
     }
 
-    protected void clearDictionary() {
-        mRoots = new NodeArray();
-    }
-
     static char toLowerCase(char c) {
         if (c < BASE_CHARS.length) {
             c = BASE_CHARS[c];
@@ -0,0 +1,848 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+/**
+ * Reads the same compacted, binary dictionary as {@link BinaryDictionary}, without going
+ * through the native library. The dictionary is mapped into memory read-only and searched in
+ * place, the way dictionary.cpp does it.
+ */
+public class JavaBinaryDictionary extends Dictionary {
+    private static final String TAG = "JavaBinaryDictionary";
+
+    public static final int MAX_WORD_LENGTH = BinaryDictionary.MAX_WORD_LENGTH;
+    private static final int MAX_ALTERNATIVES = 16;
+    private static final int MAX_WORDS = 16;
+
+    private static final int TYPED_LETTER_MULTIPLIER = 2;
+    private static final boolean ENABLE_MISSED_CHARACTERS = true;
+
+    // 22-bit address = ~4MB dictionary size limit
+    private static final int ADDRESS_MASK = 0x3FFFFF;
+    // The bit that decides if an address follows in the next 22 bits
+    private static final int FLAG_ADDRESS_MASK = 0x40;
+    // The bit that decides if this is a terminal node for a word
+    private static final int FLAG_TERMINAL_MASK = 0x80;
+    // Highest frequency a word can have in the dictionary
+    private static final int MAX_FREQ = 255;
+
+    // Dictionaries can start with a header: a two byte magic number, the format version and
+    // flags. Dictionaries without a header start with the root node group.
+    private static final int HEADER_MAGIC_1 = 0x78;
+    private static final int HEADER_MAGIC_2 = 0xB1;
+    private static final int HEADER_SIZE = 4;
+    private static final int FORMAT_VERSION = 1;
+    // Header flag: nodes with children store the highest frequency below them
+    private static final int FLAG_HAS_MAX_FREQ = 0x01;
+    // Header flag: a bloom filter of the words follows the header, see BloomFilter.readFrom()
+    private static final int FLAG_HAS_BLOOM_FILTER = 0x02;
+
+    private static final int SKIP_NONE = -1;
+    private static final int SKIP_ANY = -2;
+
+    private static final char QUOTE = '\'';
+
+    // Word slots of a search, see SearchContext.mHeap
+    private static final int MAX_SLOTS = MAX_WORDS * 2;
+    // Upper bound for the states of the search frontier
+    private static final int MAX_FRONTIER_STATES = 4096;
+
+    private ByteBuffer mDict;
+    // Position of the root node group
+    private int mRoot;
+    private boolean mHasMaxFreq;
+    private BloomFilter mBloomFilter;
+    // Contexts of the searches that aren't running, most recently used last, so a caller that
+    // searches one keystroke after the other keeps its search frontier
+    private final ArrayList<SearchContext> mIdleContexts = new ArrayList<SearchContext>();
+
+    /**
+     * Create a dictionary from a raw resource file. The resource has to be stored uncompressed.
+     * @param context application context for reading resources
+     * @param dictionaryResId the resource containing the raw binary dictionary
+     */
+    public JavaBinaryDictionary(Context context, int dictionaryResId) {
+        AssetFileDescriptor afd =
+                context.getResources().openRawResourceFd(dictionaryResId);
+        if (afd != null) {
+            loadDictionary(afd);
+        }
+    }
+
+    /**
+     * Create a dictionary over a buffer holding the binary dictionary, for use outside of an
+     * application.
+     * @param dict the dictionary, starting at position 0
+     */
+    public JavaBinaryDictionary(ByteBuffer dict) {
+        setDictionary(dict);
+    }
+
+    private void setDictionary(ByteBuffer dict) {
+        mRoot = 0;
+        mHasMaxFreq = false;
+        mBloomFilter = readBloomFilter(dict);
+        if (hasHeader(dict)) {
+            mRoot = HEADER_SIZE;
+            mHasMaxFreq = (dict.get(3) & FLAG_HAS_MAX_FREQ) != 0;
+            if (mBloomFilter != null) {
+                mRoot += mBloomFilter.getStoredSize();
+            }
+        }
+        mDict = dict;
+    }
+
+    private static boolean hasHeader(ByteBuffer dict) {
+        if (dict.limit() >= HEADER_SIZE && (dict.get(0) & 0xFF) == HEADER_MAGIC_1
+                && (dict.get(1) & 0xFF) == HEADER_MAGIC_2) {
+            if (dict.get(2) != FORMAT_VERSION) {
+                throw new IllegalArgumentException(
+                        "Unsupported dictionary format version " + dict.get(2));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static BloomFilter readBloomFilter(ByteBuffer dict) {
+        if (!hasHeader(dict) || (dict.get(3) & FLAG_HAS_BLOOM_FILTER) == 0) {
+            return null;
+        }
+        ByteBuffer stored = dict.duplicate();
+        stored.position(HEADER_SIZE);
+        BloomFilter filter = BloomFilter.readFrom(stored.slice());
+        if (filter == null) {
+            // The nodes after it can't be found either
+            throw new IllegalArgumentException("The bloom filter runs past the dictionary");
+        }
+        return filter;
+    }
+
+    private final void loadDictionary(AssetFileDescriptor afd) {
+        long startTime = System.currentTimeMillis();
+        FileInputStream in = null;
+        try {
+            in = afd.createInputStream();
+            FileChannel channel = in.getChannel();
+            // The mapping stays valid after the channel is closed
+            setDictionary(channel.map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength()));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not map dictionary: " + e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            return;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                } else {
+                    afd.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        }
+        Log.i(TAG, "Loaded dictionary in " + (System.currentTimeMillis() - startTime) + "msec"
+                + " (" + afd.getLength() + " bytes)");
+    }
+
+    @Override
+    public void getWords(final WordComposer codes, final WordCallback callback) {
+        final int codesSize = codes.size();
+        // Wont deal with really long words.
+        if (codesSize > MAX_WORD_LENGTH - 1) return;
+
+        final SearchContext context = obtainContext();
+        if (context == null) return;
+        try {
+            context.getWords(codes, callback);
+        } finally {
+            releaseContext(context);
+        }
+    }
+
+    private synchronized SearchContext obtainContext() {
+        if (mDict == null) return null;
+        final int size = mIdleContexts.size();
+        if (size > 0) {
+            return mIdleContexts.remove(size - 1);
+        }
+        return new SearchContext(mDict);
+    }
+
+    private synchronized void releaseContext(SearchContext context) {
+        if (mDict != null) {
+            mIdleContexts.add(context);
+        }
+    }
+
+    /**
+     * The state of the searches of one caller: the words collected so far and the search
+     * frontier kept between keystrokes. Searches with different contexts can run at the same
+     * time.
+     */
+    private class SearchContext {
+        // A view of its own over the dictionary
+        private final ByteBuffer mBuffer;
+
+        private WordComposer mComposer;
+        private WordCallback mCallback;
+        private int mInputLength;
+        private int mMaxEditDistance;
+        private int mSkipPos;
+        // Earliest skipped depth that produced a word so far in a SKIP_ANY search
+        private int mMinSkipDepth;
+        // The lowest place a word was put in when it was found without skipping, counting from 1.
+        // Words found later push earlier ones down, so it can be less than mHeapSize.
+        private int mPlacedWords;
+        private char[] mWord = new char[MAX_WORD_LENGTH * 3 + 1];
+
+        // Min-heap of the slots holding the best words so far, the weakest word at the top. Words
+        // pushed out during a SKIP_ANY search can be held on to, so there are twice as many slots.
+        private int[] mHeap = new int[MAX_WORDS];
+        private int mHeapSize;
+        private char[] mSlotChars = new char[MAX_SLOTS * MAX_WORD_LENGTH];
+        private int[] mSlotFreqs = new int[MAX_SLOTS];
+        private int[] mSlotLengths = new int[MAX_SLOTS];
+        // Order in which the words were added, earlier words win ties
+        private int[] mSlotOrders = new int[MAX_SLOTS];
+        // The depth at which each word skipped a character, -1 if it didn't
+        private int[] mSlotSkipDepths = new int[MAX_SLOTS];
+        private int[] mFreeSlots = new int[MAX_SLOTS];
+        private int mFreeSlotCount;
+        private int mNextOrder;
+        // Unskipped words pushed out of the heap by words that skipped a character
+        private int[] mStash = new int[MAX_WORDS];
+        private int mStashCount;
+
+        // The search frontier: level k holds the node groups reached by matching the first k
+        // typed characters, in traversal order, with the characters, snr, diffs and highest
+        // frequency they were reached with. Searching n characters resumes from level n - 1, so
+        // a keystroke only extends the deepest level, and a deleted character just drops one.
+        // Levels are kept until the codes they were built from change.
+        private int[] mStatePos = new int[256];
+        private int[] mStateDepths = new int[256];
+        private int[] mStateSnrs = new int[256];
+        private int[] mStateDiffs = new int[256];
+        private int[] mStateMaxFreqs = new int[256];
+        // The characters leading to each state, as many as its depth
+        private int[] mStateWordStarts = new int[256];
+        private char[] mStateWords = new char[256 * 4];
+        private int mStateCount;
+        // Level k occupies the states from mLevelStarts[k] up to mLevelStarts[k + 1]
+        private int[] mLevelStarts = new int[MAX_WORD_LENGTH + 1];
+        private int mLevelCount;
+        // The codes level k + 1 was built from
+        private int[] mLevelCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
+        // The level that didn't fit in the frontier, built from the codes in mLevelCodes, 0 if
+        // none
+        private int mOverflowLevel;
+
+        SearchContext(ByteBuffer dict) {
+            mBuffer = dict.duplicate();
+        }
+
+        void getWords(final WordComposer codes, final WordCallback callback) {
+            final int codesSize = codes.size();
+            mComposer = codes;
+            mCallback = callback;
+            mInputLength = codesSize;
+            mMaxEditDistance = codesSize < 5 ? 2 : codesSize / 2;
+            mHeapSize = 0;
+            mNextOrder = 0;
+            mPlacedWords = 0;
+            mFreeSlotCount = 0;
+            for (int i = MAX_SLOTS - 1; i >= 0; i--) {
+                mFreeSlots[mFreeSlotCount++] = i;
+            }
+
+            search(SKIP_NONE);
+            // If there aren't sufficient suggestions, search for words where the user missed a
+            // character, see BinaryDictionary.getWords().
+            if (ENABLE_MISSED_CHARACTERS && mPlacedWords < 5) {
+                search(SKIP_ANY);
+            }
+            mComposer = null;
+            mCallback = null;
+
+            // Sort the heap in place, best word first
+            final int[] heap = mHeap;
+            final int count = mHeapSize;
+            for (int end = count - 1; end > 0; end--) {
+                int weakest = heap[0];
+                heap[0] = heap[end];
+                heap[end] = weakest;
+                siftDown(0, end);
+            }
+            mHeapSize = 0;
+            for (int i = 0; i < count; i++) {
+                final int slot = heap[i];
+                callback.addWord(mSlotChars, slot * MAX_WORD_LENGTH, mSlotLengths[slot],
+                        mSlotFreqs[slot]);
+            }
+        }
+
+        private void search(int skipPos) {
+            mSkipPos = skipPos;
+            mMinSkipDepth = mInputLength - 1;
+            mStashCount = 0;
+            final int maxDepth = mInputLength * 3;
+            if (skipPos == SKIP_NONE && mInputLength > 0 && updateFrontier(mInputLength - 1)) {
+                // The nodes above the frontier don't prune anything the states themselves don't
+                final int end = mLevelStarts[mInputLength];
+                for (int s = mLevelStarts[mInputLength - 1]; s < end; s++) {
+                    System.arraycopy(mStateWords, mStateWordStarts[s], mWord, 0, mStateDepths[s]);
+                    getWordsRec(mStatePos[s], mStateDepths[s], maxDepth, false, mStateSnrs[s],
+                            mInputLength - 1, mStateDiffs[s], -1, mStateMaxFreqs[s]);
+                }
+            } else {
+                getWordsRec(mRoot, 0, maxDepth, false, 1, 0, 0, -1, MAX_FREQ);
+            }
+            // Stashed words were pushed out for good
+            while (mStashCount > 0) {
+                mFreeSlots[mFreeSlotCount++] = mStash[--mStashCount];
+            }
+        }
+
+        /**
+         * Makes sure the frontier holds the given level for the current input, keeping the levels
+         * built from the same codes and extending from there. Returns false if the level has too
+         * many states, in which case the caller has to search from the root.
+         */
+        private boolean updateFrontier(int level) {
+            if (mLevelCount == 0) {
+                mStatePos[0] = mRoot;
+                mStateDepths[0] = 0;
+                mStateSnrs[0] = 1;
+                mStateDiffs[0] = 0;
+                mStateMaxFreqs[0] = MAX_FREQ;
+                mStateWordStarts[0] = 0;
+                mStateCount = 1;
+                mLevelStarts[0] = 0;
+                mLevelStarts[1] = 1;
+                mLevelCount = 1;
+            }
+            // Drop the levels built from codes that changed
+            for (int k = 1; k < mLevelCount && k <= level; k++) {
+                if (!sameCodes(k - 1)) {
+                    mLevelCount = k;
+                    break;
+                }
+            }
+            // A level that overflowed would overflow again from the same codes, so it isn't
+            // tried again until they change
+            if (mOverflowLevel > 0 && level >= mOverflowLevel) {
+                if (mLevelCount == mOverflowLevel && sameCodes(mOverflowLevel - 1)) {
+                    return false;
+                }
+                mOverflowLevel = 0;
+            }
+            while (mLevelCount <= level) {
+                final int k = mLevelCount;
+                final int[] codes = mComposer.getCodesAt(k - 1);
+                final int alternatives = Math.min(codes.length, MAX_ALTERNATIVES);
+                final int offset = (k - 1) * MAX_ALTERNATIVES;
+                Arrays.fill(mLevelCodes, offset, offset + MAX_ALTERNATIVES, -1);
+                System.arraycopy(codes, 0, mLevelCodes, offset, alternatives);
+                mStateCount = mLevelStarts[k];
+                final int end = mStateCount;
+                for (int s = mLevelStarts[k - 1]; s < end; s++) {
+                    System.arraycopy(mStateWords, mStateWordStarts[s], mWord, 0, mStateDepths[s]);
+                    if (!expandState(mStatePos[s], mStateDepths[s], mStateSnrs[s], mStateDiffs[s],
+                            codes, alternatives)) {
+                        mOverflowLevel = k;
+                        return false;
+                    }
+                }
+                mLevelStarts[k + 1] = mStateCount;
+                mLevelCount = k + 1;
+            }
+            return true;
+        }
+
+        private boolean sameCodes(int inputIndex) {
+            final int[] codes = mComposer.getCodesAt(inputIndex);
+            final int offset = inputIndex * MAX_ALTERNATIVES;
+            for (int j = 0; j < MAX_ALTERNATIVES; j++) {
+                final int code = j < codes.length ? codes[j] : -1;
+                if (mLevelCodes[offset + j] != code) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds the states reached from the node group at pos by matching one typed character, the
+         * way getWordsRec() descends in a search without skips. Returns false if the frontier is
+         * full.
+         */
+        private boolean expandState(int pos, int depth, int snr, int diffs, int[] currentChars,
+                int alternatives) {
+            final ByteBuffer dict = mBuffer;
+            final int count = dict.get(pos++) & 0xFF;
+            for (int i = 0; i < count; i++) {
+                char c = (char) (dict.get(pos++) & 0xFF);
+                if (c == 0xFF) {
+                    c = (char) (((dict.get(pos) & 0xFF) << 8) | (dict.get(pos + 1) & 0xFF));
+                    pos += 2;
+                }
+                final char lowerC = toLowerCase(c, depth);
+                final int flags = dict.get(pos) & 0xFF;
+                int childrenAddress = 0;
+                if ((flags & FLAG_ADDRESS_MASK) == 0) {
+                    pos += 1;
+                } else {
+                    childrenAddress = ((flags & (ADDRESS_MASK >> 16)) << 16)
+                            | ((dict.get(pos + 1) & 0xFF) << 8)
+                            | (dict.get(pos + 2) & 0xFF);
+                    pos += 3;
+                }
+                if ((flags & FLAG_TERMINAL_MASK) != 0) pos++;
+                int childMaxFreq = MAX_FREQ;
+                if (mHasMaxFreq && childrenAddress != 0) childMaxFreq = dict.get(pos++) & 0xFF;
+                if (childrenAddress == 0) continue;
+                mWord[depth] = c;
+                if (c == QUOTE && currentChars[0] != QUOTE) {
+                    if (!expandState(childrenAddress, depth + 1, snr, diffs, currentChars,
+                            alternatives)) {
+                        return false;
+                    }
+                    continue;
+                }
+                for (int j = 0; j < alternatives && currentChars[j] > 0; j++) {
+                    if (currentChars[j] == lowerC || currentChars[j] == c) {
+                        final int addedWeight = j == 0 ? TYPED_LETTER_MULTIPLIER : 1;
+                        if (!addState(childrenAddress, depth + 1, snr * addedWeight,
+                                diffs + (j > 0 ? 1 : 0), childMaxFreq)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds a state reached with the characters in mWord. Returns false if the frontier is full.
+         */
+        private boolean addState(int pos, int depth, int snr, int diffs, int maxFreq) {
+            if (mStateCount == mStatePos.length) {
+                if (mStateCount >= MAX_FRONTIER_STATES) {
+                    return false;
+                }
+                final int size = mStateCount * 2;
+                mStatePos = grow(mStatePos, size);
+                mStateDepths = grow(mStateDepths, size);
+                mStateSnrs = grow(mStateSnrs, size);
+                mStateDiffs = grow(mStateDiffs, size);
+                mStateMaxFreqs = grow(mStateMaxFreqs, size);
+                mStateWordStarts = grow(mStateWordStarts, size);
+            }
+            final int s = mStateCount++;
+            // The states of a level are stored after those of the previous levels, and so are their
+            // characters
+            final int wordStart = mStateWordStarts[s - 1] + mStateDepths[s - 1];
+            if (wordStart + depth > mStateWords.length) {
+                char[] words = new char[Math.max(mStateWords.length * 2, wordStart + depth)];
+                System.arraycopy(mStateWords, 0, words, 0, wordStart);
+                mStateWords = words;
+            }
+            System.arraycopy(mWord, 0, mStateWords, wordStart, depth);
+            mStateWordStarts[s] = wordStart;
+            mStatePos[s] = pos;
+            mStateDepths[s] = depth;
+            mStateSnrs[s] = snr;
+            mStateDiffs[s] = diffs;
+            mStateMaxFreqs[s] = maxFreq;
+            return true;
+        }
+
+        private char toLowerCase(char c, int depth) {
+            if (depth == 0) {
+                return ExpandableDictionary.toLowerCase(c);
+            }
+            return c < ExpandableDictionary.BASE_CHARS.length
+                    ? ExpandableDictionary.BASE_CHARS[c] : c;
+        }
+
+        private boolean sameAsTyped(char[] word, int length) {
+            if (length != mInputLength) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (mComposer.getCodesAt(i)[0] != word[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void getWordsRec(int pos, int depth, int maxDepth, boolean completion, int snr,
+                int inputIndex, int diffs, int skipped, int maxFreq) {
+            // Optimization: Prune out words that are too long compared to how much was typed.
+            if (depth > maxDepth) {
+                return;
+            }
+            if (diffs > mMaxEditDistance) {
+                return;
+            }
+            // The caller gave up on the search
+            if (mCallback.getFrequencyThreshold() == NO_MORE_WORDS) {
+                return;
+            }
+            // Optimization: Prune out words that can't rank high enough to be returned.
+            if (!canReachTopWords(maxFreq, snr, inputIndex)) {
+                return;
+            }
+            if (mSkipPos == SKIP_ANY) {
+                // Every word of a SKIP_ANY search has to skip a character, and only the earliest
+                // skip position that matches anything is kept.
+                if (skipped < 0 && (completion || inputIndex >= mInputLength
+                        || depth > mMinSkipDepth)) {
+                    return;
+                }
+                if (skipped > mMinSkipDepth) {
+                    return;
+                }
+            }
+            final ByteBuffer dict = mBuffer;
+            final char[] word = mWord;
+            final int count = dict.get(pos++) & 0xFF;
+            int[] currentChars = null;
+            if (mInputLength <= inputIndex) {
+                completion = true;
+            } else {
+                currentChars = mComposer.getCodesAt(inputIndex);
+            }
+
+            for (int i = 0; i < count; i++) {
+                char c = (char) (dict.get(pos++) & 0xFF);
+                // If the code is 255, then actual 16 bit code follows (in big endian)
+                if (c == 0xFF) {
+                    c = (char) (((dict.get(pos) & 0xFF) << 8) | (dict.get(pos + 1) & 0xFF));
+                    pos += 2;
+                }
+                final char lowerC = toLowerCase(c, depth);
+                final int flags = dict.get(pos) & 0xFF;
+                final boolean terminal = (flags & FLAG_TERMINAL_MASK) != 0;
+                int childrenAddress = 0;
+                if ((flags & FLAG_ADDRESS_MASK) == 0) {
+                    pos += 1;
+                } else {
+                    childrenAddress = ((flags & (ADDRESS_MASK >> 16)) << 16)
+                            | ((dict.get(pos + 1) & 0xFF) << 8)
+                            | (dict.get(pos + 2) & 0xFF);
+                    pos += 3;
+                }
+                int freq = 1;
+                if (terminal) freq = dict.get(pos++) & 0xFF;
+                int childMaxFreq = MAX_FREQ;
+                if (mHasMaxFreq && childrenAddress != 0) childMaxFreq = dict.get(pos++) & 0xFF;
+                // If we are only doing completions, no need to look at the typed characters.
+                if (completion) {
+                    word[depth] = c;
+                    if (terminal && checkSkipDepth(skipped)) {
+                        addWord(word, depth + 1, freq * snr, skipped);
+                    }
+                    if (childrenAddress != 0) {
+                        getWordsRec(childrenAddress, depth + 1, maxDepth,
+                                completion, snr, inputIndex, diffs, skipped, childMaxFreq);
+                    }
+                    continue;
+                }
+                if (mSkipPos == SKIP_ANY && skipped < 0 && depth < mInputLength) {
+                    // Try this character as the one that was missed, then carry on as if it wasn't
+                    word[depth] = c;
+                    if (childrenAddress != 0) {
+                        getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex,
+                                diffs, depth, childMaxFreq);
+                    }
+                }
+                if (c == QUOTE && currentChars[0] != QUOTE || mSkipPos == depth) {
+                    // Skip the ' or other letter and continue deeper
+                    word[depth] = c;
+                    if (childrenAddress != 0) {
+                        getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex,
+                                diffs, mSkipPos == depth ? depth : skipped, childMaxFreq);
+                    }
+                } else {
+                    final int alternatives = Math.min(currentChars.length, MAX_ALTERNATIVES);
+                    for (int j = 0; j < alternatives && currentChars[j] > 0; j++) {
+                        if (currentChars[j] == lowerC || currentChars[j] == c) {
+                            final int addedWeight = j == 0 ? TYPED_LETTER_MULTIPLIER : 1;
+                            word[depth] = c;
+                            if (mInputLength == inputIndex + 1) {
+                                if (terminal && (mSkipPos != SKIP_ANY || skipped >= 0)) {
+                                    if (!sameAsTyped(word, depth + 1) && checkSkipDepth(skipped)) {
+                                        int finalFreq = freq * snr * addedWeight;
+                                        if (mSkipPos == SKIP_NONE) {
+                                            finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
+                                        }
+                                        addWord(word, depth + 1, finalFreq, skipped);
+                                    }
+                                }
+                                if (childrenAddress != 0) {
+                                    getWordsRec(childrenAddress, depth + 1, maxDepth, true,
+                                            snr * addedWeight, inputIndex + 1,
+                                            diffs + (j > 0 ? 1 : 0), skipped, childMaxFreq);
+                                }
+                            } else if (childrenAddress != 0) {
+                                getWordsRec(childrenAddress, depth + 1, maxDepth, false,
+                                        snr * addedWeight, inputIndex + 1, diffs + (j > 0 ? 1 : 0),
+                                        skipped, childMaxFreq);
+                            }
+                        }
+                        if (mSkipPos != SKIP_NONE) break;
+                    }
+                }
+            }
+        }
+
+        private boolean addWord(char[] word, int length, int frequency, int skipped) {
+            if (frequency <= 0 || length >= MAX_WORD_LENGTH) {
+                return false;
+            }
+
+            int slot;
+            if (mHeapSize < MAX_WORDS) {
+                slot = mFreeSlots[--mFreeSlotCount];
+            } else {
+                // Full, the new word has to beat the weakest one. It was found last, so it loses
+                // ties.
+                final int weakest = mHeap[0];
+                if (frequency < mSlotFreqs[weakest]
+                        || (frequency == mSlotFreqs[weakest] && length >= mSlotLengths[weakest])) {
+                    return false;
+                }
+                if (mSkipPos == SKIP_ANY && mSlotSkipDepths[weakest] < 0) {
+                    // Hold on to the unskipped word falling off, in case the words pushing it out
+                    // are dropped for an earlier skip position.
+                    mStash[mStashCount++] = weakest;
+                    slot = mFreeSlots[--mFreeSlotCount];
+                } else {
+                    slot = weakest;
+                }
+            }
+
+            if (mSkipPos == SKIP_NONE) {
+                // The place the word takes among the words so far, ahead of the words it beats
+                // and behind those it ties with
+                int place = 1;
+                for (int i = 0; i < mHeapSize; i++) {
+                    final int other = mHeap[i];
+                    if (mSlotFreqs[other] > frequency
+                            || (mSlotFreqs[other] == frequency && mSlotLengths[other] <= length)) {
+                        place++;
+                    }
+                }
+                if (place > mPlacedWords) mPlacedWords = place;
+            }
+
+            System.arraycopy(word, 0, mSlotChars, slot * MAX_WORD_LENGTH, length);
+            mSlotLengths[slot] = length;
+            mSlotFreqs[slot] = frequency;
+            mSlotOrders[slot] = mNextOrder++;
+            mSlotSkipDepths[slot] = skipped;
+            if (mHeapSize < MAX_WORDS) {
+                mHeap[mHeapSize] = slot;
+                siftUp(mHeapSize++);
+            } else {
+                mHeap[0] = slot;
+                siftDown(0, mHeapSize);
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the word in slot1 ranks below the word in slot2: it is less frequent, or
+         * longer at the same frequency, or was found later.
+         */
+        private boolean isWorse(int slot1, int slot2) {
+            if (mSlotFreqs[slot1] != mSlotFreqs[slot2]) {
+                return mSlotFreqs[slot1] < mSlotFreqs[slot2];
+            }
+            if (mSlotLengths[slot1] != mSlotLengths[slot2]) {
+                return mSlotLengths[slot1] > mSlotLengths[slot2];
+            }
+            return mSlotOrders[slot1] > mSlotOrders[slot2];
+        }
+
+        private void siftUp(int index) {
+            final int[] heap = mHeap;
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (!isWorse(heap[index], heap[parent])) break;
+                int slot = heap[index];
+                heap[index] = heap[parent];
+                heap[parent] = slot;
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index, int size) {
+            final int[] heap = mHeap;
+            while (true) {
+                int weakest = index;
+                int left = index * 2 + 1;
+                int right = left + 1;
+                if (left < size && isWorse(heap[left], heap[weakest])) weakest = left;
+                if (right < size && isWorse(heap[right], heap[weakest])) weakest = right;
+                if (weakest == index) break;
+                int slot = heap[index];
+                heap[index] = heap[weakest];
+                heap[weakest] = slot;
+                index = weakest;
+            }
+        }
+
+        /**
+         * Returns false if no word below the current node can make it into a full heap, given the
+         * highest frequency below the node. Nothing is pruned in a SKIP_ANY search, since words can
+         * be dropped from the heap there. A word only has to reach the weakest one, not exceed it
+         * like a callback's threshold, since it still gets in if it is shorter.
+         */
+        private boolean canReachTopWords(int maxFreq, int snr, int inputIndex) {
+            if (mSkipPos == SKIP_ANY || mHeapSize < MAX_WORDS) return true;
+            final long weakest = mSlotFreqs[mHeap[0]];
+            long reachable = (long) maxFreq * snr * FULL_WORD_FREQ_MULTIPLIER;
+            for (int i = inputIndex; i < mInputLength && reachable < weakest; i++) {
+                reachable *= TYPED_LETTER_MULTIPLIER;
+            }
+            return reachable >= weakest;
+        }
+
+        /**
+         * In a SKIP_ANY search, only the words that skip the earliest position are returned.
+         * Returns false if a word that skipped the character at the given depth can't be kept.
+         * Finding an earlier skip position drops the words found for later ones.
+         */
+        private boolean checkSkipDepth(int skipped) {
+            if (mSkipPos != SKIP_ANY) return true;
+            if (skipped > mMinSkipDepth) return false;
+            if (skipped < mMinSkipDepth) {
+                removeWordsSkippedAfter(skipped);
+                mMinSkipDepth = skipped;
+            }
+            return true;
+        }
+
+        private void removeWordsSkippedAfter(int depth) {
+            final int[] heap = mHeap;
+            int kept = 0;
+            for (int i = 0; i < mHeapSize; i++) {
+                int slot = heap[i];
+                if (mSlotSkipDepths[slot] > depth) {
+                    mFreeSlots[mFreeSlotCount++] = slot;
+                } else {
+                    heap[kept++] = slot;
+                }
+            }
+            // Put back the unskipped words that were pushed out
+            while (mStashCount > 0) {
+                int slot = mStash[--mStashCount];
+                if (kept < MAX_WORDS) {
+                    heap[kept++] = slot;
+                } else {
+                    mFreeSlots[mFreeSlotCount++] = slot;
+                }
+            }
+            mHeapSize = kept;
+            for (int i = kept / 2 - 1; i >= 0; i--) {
+                siftDown(i, kept);
+            }
+        }
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    @Override
+    public boolean isValidWord(CharSequence word) {
+        // Lookups only read the dictionary, with absolute gets
+        final ByteBuffer dict = mDict;
+        if (dict == null || word == null || word.length() == 0) return false;
+        if (mBloomFilter != null && !mBloomFilter.mightContain(word)) return false;
+        return isValidWordRec(dict, mRoot, word, 0, word.length());
+    }
+
+    private boolean isValidWordRec(ByteBuffer dict, int pos, CharSequence word, int offset,
+            int length) {
+        final int count = dict.get(pos++) & 0xFF;
+        final char currentChar = word.charAt(offset);
+        for (int j = 0; j < count; j++) {
+            char c = (char) (dict.get(pos++) & 0xFF);
+            if (c == 0xFF) {
+                c = (char) (((dict.get(pos) & 0xFF) << 8) | (dict.get(pos + 1) & 0xFF));
+                pos += 2;
+            }
+            final int flags = dict.get(pos) & 0xFF;
+            final boolean terminal = (flags & FLAG_TERMINAL_MASK) != 0;
+            int childPos = 0;
+            if ((flags & FLAG_ADDRESS_MASK) == 0) {
+                pos += 1;
+            } else {
+                childPos = ((flags & (ADDRESS_MASK >> 16)) << 16)
+                        | ((dict.get(pos + 1) & 0xFF) << 8)
+                        | (dict.get(pos + 2) & 0xFF);
+                pos += 3;
+            }
+            if (c == currentChar) {
+                if (offset == length - 1) {
+                    if (terminal) {
+                        return true;
+                    }
+                } else if (childPos != 0) {
+                    if (isValidWordRec(dict, childPos, word, offset + 1, length)) {
+                        return true;
+                    }
+                }
+            }
+            if (terminal) {
+                pos++;
+            }
+            if (mHasMaxFreq && childPos != 0) {
+                pos++;
+            }
+            // There could be two instances of each alphabet - upper and lower case. So continue
+            // looking ...
+        }
+        return false;
+    }
+
+    public synchronized void close() {
+        // The mapping goes away when the buffer is collected, after the searches still running
+        mDict = null;
+        mIdleContexts.clear();
+    }
+}
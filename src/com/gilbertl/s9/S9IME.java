@@ -26,6 +26,11 @@ import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.KeyboardView;
 import android.inputmethodservice.Keyboard.Key;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -41,10 +46,19 @@ public class S9IME extends InputMethodService
 	static final String TAG = "S9InputMethodService";
     static final boolean DEBUG = false;
     
+    // The time the dictionaries have to find the suggestions for a keystroke, about a frame
+    private static final int SEARCH_DEADLINE_MS = 16;
+    // Longest word before the cursor that next words are looked up for
+    private static final int MAX_PREVIOUS_WORD_LENGTH = 48;
+    
+    private static final int MSG_UPDATE_SUGGESTIONS = 1;
+    private static final int MSG_SHOW_SUGGESTIONS = 2;
+    
     private KeyboardView mInputView;
     private CandidateView mCandidateView;
     private CompletionInfo[] mCompletions;
-    private List<String> mSuggestions;
+    // The suggestions shown, as of the last update
+    private final CandidateBuffer mSuggestions = new CandidateBuffer(32);
     private Suggest mSuggest;
     
     private float mSwipeSensitivity;
@@ -63,6 +77,46 @@ public class S9IME extends InputMethodService
     
     private UserDictionary mUserDictionary;
     private ContactsDictionary mContactsDictionary;
+    private AutoDictionary mAutoDictionary;
+    private LoadDictionariesTask mLoadDictionariesTask;
+    
+    // Suggestions are found on a thread of their own, so that a keystroke is shown without
+    // waiting for them. Each update of the candidates has a generation, and only the results
+    // of the latest one are shown. Every update comes back to the UI thread to be used again.
+    private HandlerThread mSuggestThread;
+    private Handler mSuggestHandler;
+    private volatile int mSuggestionsGeneration;
+    private final ArrayList<SuggestionsUpdate> mFreeUpdates = new ArrayList<SuggestionsUpdate>();
+    // Whether the candidates are the words that may follow the last one, rather than
+    // suggestions for a word being composed
+    private boolean mShowingNextWords;
+    
+    private Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SHOW_SUGGESTIONS:
+                    showSuggestions((SuggestionsUpdate) msg.obj);
+                    break;
+            }
+        }
+    };
+    
+    private final Handler.Callback mSuggestCallback = new Handler.Callback() {
+        public boolean handleMessage(Message msg) {
+            SuggestionsUpdate update = (SuggestionsUpdate) msg.obj;
+            // Don't bother if a newer update is on its way
+            if (update.mGeneration == mSuggestionsGeneration) {
+                findSuggestions(update);
+            }
+            mHandler.obtainMessage(MSG_SHOW_SUGGESTIONS, update).sendToTarget();
+            return true;
+        }
+    };
+    
+    // When the service was created and when the keyboard was first shown, for startup timing
+    private long mCreateTime;
+    private long mFirstInputViewTime;
     
     private String mWordSeparators;
     
@@ -73,35 +127,128 @@ public class S9IME extends InputMethodService
      * to super class.
      */
     @Override public void onCreate() {
+        mCreateTime = SystemClock.uptimeMillis();
         super.onCreate();
         initSuggest();
         mWordSeparators = getResources().getString(R.string.word_separators);
     }
     
     private void initSuggest() {
-    	// the reason the dict file is .png is we need to trick the android
-    	// into not compressing it. This is because we need to pass file
-    	// descriptor from Java to native, and this is the only way to do it
-        mSuggest = new Suggest(this, R.raw.en_dict);
+        // The main dictionary is loaded in the background and handed to mSuggest when it is
+        // ready, so that the keyboard doesn't wait for it
+        mSuggest = new Suggest(this);
         
+        // These load the words they saved last time, then the current ones, in the background
         mUserDictionary = new UserDictionary(this);
-		mContactsDictionary = new ContactsDictionary(this);
         mSuggest.setUserDictionary(mUserDictionary);
+		mContactsDictionary = new ContactsDictionary(this);
         mSuggest.setContactsDictionary(mContactsDictionary);
-        /*
+        // Loads its words and writes new ones on a thread of its own
         mAutoDictionary = new AutoDictionary(this);
         mSuggest.setAutoDictionary(mAutoDictionary);
-        */
         mSuggest.setCorrectionMode(Suggest.CORRECTION_FULL);
+        mSuggest.setSearchDeadline(SEARCH_DEADLINE_MS);
+        mSuggestThread = new HandlerThread("Suggestions");
+        mSuggestThread.start();
+        mSuggestHandler = new Handler(mSuggestThread.getLooper(), mSuggestCallback);
+        mLoadDictionariesTask = new LoadDictionariesTask();
+        mLoadDictionariesTask.execute();
     }
     
     @Override
     public void onDestroy() {
+    	// Dictionaries that finish loading after this are closed by the task
+    	mLoadDictionariesTask.close();
     	mUserDictionary.close();
     	mContactsDictionary.close();
+    	mAutoDictionary.close();
+    	// Stop the suggestions thread once it's done with the search under way
+    	mSuggestHandler.removeMessages(MSG_UPDATE_SUGGESTIONS);
+    	mSuggestHandler.post(new Runnable() {
+    		public void run() {
+    			mSuggest.close();
+    			mSuggestThread.quit();
+    		}
+    	});
     	super.onDestroy();
     }
     
+    private class LoadDictionariesTask
+            extends AsyncTask<Void, Dictionary, BigramDictionary> {
+        // The main dictionary once it is loaded, until it is handed to mSuggest. A cancelled
+        // AsyncTask drops its progress updates, so close() closes it instead.
+        private Dictionary mLoadedDictionary;
+        private boolean mClosed;
+
+        @Override
+        protected BigramDictionary doInBackground(Void... v) {
+        	// the reason the dict file is .png is we need to trick the android
+        	// into not compressing it. This is because we need to pass file
+        	// descriptor from Java to native, and this is the only way to do it
+            Dictionary mainDictionary = Suggest.loadMainDictionary(S9IME.this, R.raw.en_dict);
+            if (!hold(mainDictionary)) return null;
+            publishProgress(mainDictionary);
+            // Mapped the same way, after the main dictionary since it only matters once a
+            // word has been typed. Its mapping goes with it, there is nothing to close.
+            return new BigramDictionary(S9IME.this, R.raw.en_bigrams);
+        }
+
+        @Override
+        protected void onProgressUpdate(Dictionary... dictionaries) {
+            Dictionary dictionary = dictionaries[0];
+            if (!take(dictionary)) return;
+            mSuggest.setMainDictionary(dictionary);
+            Log.i(TAG, dictionary.getClass().getSimpleName() + " ready "
+                    + (SystemClock.uptimeMillis() - mCreateTime) + "ms after create");
+        }
+
+        @Override
+        protected void onPostExecute(BigramDictionary bigramDictionary) {
+            if (isCancelled() || bigramDictionary == null) return;
+            mSuggest.setBigramDictionary(bigramDictionary);
+            // The user and contacts dictionaries load on their own and log when they are ready,
+            // this doesn't wait for them
+            Log.i(TAG, "BigramDictionary ready "
+                    + (SystemClock.uptimeMillis() - mCreateTime) + "ms after create");
+        }
+
+        /**
+         * Keeps the main dictionary until it is handed over. Returns false, having closed it,
+         * if the task was closed already.
+         */
+        private synchronized boolean hold(Dictionary dictionary) {
+            if (mClosed) {
+                dictionary.close();
+                return false;
+            }
+            mLoadedDictionary = dictionary;
+            return true;
+        }
+
+        /**
+         * Returns true if the dictionary can be handed to mSuggest, false if close() has
+         * closed it.
+         */
+        private synchronized boolean take(Dictionary dictionary) {
+            if (mLoadedDictionary != dictionary) return false;
+            mLoadedDictionary = null;
+            return true;
+        }
+
+        /**
+         * Stops the loading, and closes the main dictionary if it wasn't handed over, now or
+         * once it is loaded.
+         */
+        synchronized void close() {
+            mClosed = true;
+            cancel(false);
+            if (mLoadedDictionary != null) {
+                mLoadedDictionary.close();
+                mLoadedDictionary = null;
+            }
+        }
+    }
+    
     /**
      * This is the point where you can do all of your UI initialization.  It
      * is called after creation and any configuration change.
@@ -250,6 +397,9 @@ public class S9IME extends InputMethodService
     @Override public void onFinishInput() {
         super.onFinishInput();
         
+        // Write what was learned in this field, without waiting for it
+        mAutoDictionary.flushPendingWrites();
+        
         // Clear current composing text and candidates.
         mComposing.setLength(0);
         mWord.reset();
@@ -270,6 +420,10 @@ public class S9IME extends InputMethodService
     @Override
     public void onStartInputView(EditorInfo attribute, boolean restarting) {
         super.onStartInputView(attribute, restarting);
+        if (mFirstInputViewTime == 0) {
+            mFirstInputViewTime = SystemClock.uptimeMillis();
+            Log.i(TAG, "Time to first keystroke: " + (mFirstInputViewTime - mCreateTime) + "ms");
+        }
         // Apply the selected keyboard to the input view.
         mInputView.setKeyboard(mCurKeyboard);
         mInputView.closing();
@@ -311,12 +465,12 @@ public class S9IME extends InputMethodService
                 return;
             }
             
-            List<String> stringList = new ArrayList<String>();
+            mSuggestions.clear();
             for (int i=0; i<(completions != null ? completions.length : 0); i++) {
                 CompletionInfo ci = completions[i];
-                if (ci != null) stringList.add(ci.getText().toString());
+                if (ci != null) mSuggestions.add(ci.getText(), 0);
             }
-            setSuggestions(stringList, true, true);
+            setSuggestions(mSuggestions, true, true);
         }
     }
     
@@ -373,6 +527,9 @@ public class S9IME extends InputMethodService
      * Helper function to commit any text being composed in to the editor.
      */
     private void commitTyped(InputConnection inputConn) {
+    	if (mComposing.length() > 0) {
+    		addToAutoDictionary(mComposing.toString(), AutoDictionary.FREQUENCY_FOR_TYPED);
+    	}
     	commitText(inputConn, mComposing, mComposing.length());
     }
     
@@ -474,31 +631,128 @@ public class S9IME extends InputMethodService
     /**
      * Update the list of available candidates from the current composing
      * text.  This will need to be filled in by however you are determining
-     * candidates.
+     * candidates. The suggestions are found on the suggestions thread, and shown when
+     * they are ready unless the candidates have been updated again by then.
      */
     private void updateCandidates() {
+        // Whatever update is on its way is out of date now
+        final int generation = ++mSuggestionsGeneration;
+        mShowingNextWords = false;
         if (!mCompletionOn) {
             if (mComposing.length() > 0) {
-            	List<CharSequence> suggestions =
-            		mSuggest.getSuggestions(mInputView, mWord, false);
-            	Log.d(TAG, "got suggestions: " + suggestions);
-            	mSuggestions = new ArrayList<String>(suggestions.size());
-            	for (CharSequence cs : suggestions) {
-            		mSuggestions.add(cs.toString());
-            	}
-            	
-            	boolean typedWordValid = mSuggest.isValidWord(mComposing) ||
-                 (mWord.isCapitalized() &&
-                	mSuggest.isValidWord(mComposing.toString().toLowerCase()));
-                
-                setSuggestions(mSuggestions, true, typedWordValid);
+            	SuggestionsUpdate update = obtainUpdate(generation);
+            	update.mWord.set(mWord);
+            	mSuggestHandler.obtainMessage(MSG_UPDATE_SUGGESTIONS, update).sendToTarget();
             } else {
                 setSuggestions(null, false, false);
             }
         }
     }
     
-    public void setSuggestions(List<String> suggestions, boolean completions,
+    /**
+     * Shows the words that may follow the word before the cursor, after a space was typed
+     * following it, so that the next word can be picked before any of it is typed.
+     */
+    private void updateNextWords() {
+        if (!mPredictionOn || mCompletionOn || mComposing.length() > 0) return;
+        InputConnection ic = getCurrentInputConnection();
+        if (ic == null) return;
+        // The word and the space after it, and one more character to tell where it starts
+        CharSequence before = ic.getTextBeforeCursor(MAX_PREVIOUS_WORD_LENGTH + 2, 0);
+        if (before == null) return;
+        int end = before.length() - 1;
+        if (end < 1 || before.charAt(end) != ' ') return;
+        int start = end;
+        while (start > 0 && isPreviousWordChar(before.charAt(start - 1))) {
+            start--;
+        }
+        // Nothing to go on if it isn't a whole word
+        if (start == end || (start == 0 && before.length() > MAX_PREVIOUS_WORD_LENGTH + 1)) {
+            return;
+        }
+        final int generation = ++mSuggestionsGeneration;
+        SuggestionsUpdate update = obtainUpdate(generation);
+        update.mWord.reset();
+        update.mPreviousWord.setLength(0);
+        update.mPreviousWord.append(before, start, end);
+        mSuggestHandler.obtainMessage(MSG_UPDATE_SUGGESTIONS, update).sendToTarget();
+    }
+    
+    private static boolean isPreviousWordChar(char c) {
+        return Character.isLetter(c) || c == '\'';
+    }
+    
+    private SuggestionsUpdate obtainUpdate(int generation) {
+    	final int free = mFreeUpdates.size();
+    	SuggestionsUpdate update = free > 0
+    			? mFreeUpdates.remove(free - 1) : new SuggestionsUpdate();
+    	update.mGeneration = generation;
+    	return update;
+    }
+    
+    /**
+     * Finds the suggestions for the word of an update. Called on the suggestions thread.
+     */
+    private void findSuggestions(SuggestionsUpdate update) {
+    	final WordComposer word = update.mWord;
+    	if (word.size() == 0) {
+    		update.mSuggestions.set(mSuggest.getNextWords(update.mPreviousWord));
+    		// Nothing was typed, so the most likely next word is the one recommended
+    		update.mTypedWordValid = true;
+    		return;
+    	}
+    	update.mSuggestions.set(mSuggest.getSuggestions(mInputView, word, false));
+    	if (DEBUG) {
+    		Log.d(TAG, "search times: user "
+    				+ mSuggest.getSearchTime(Suggest.SOURCE_USER) + "us, main "
+    				+ mSuggest.getSearchTime(Suggest.SOURCE_MAIN) + "us, late "
+    				+ mSuggest.getLateCount(Suggest.SOURCE_USER) + "/"
+    				+ mSuggest.getLateCount(Suggest.SOURCE_MAIN) + ", cache "
+    				+ mSuggest.getCacheHitCount() + " hits "
+    				+ mSuggest.getCacheMissCount() + " misses");
+    	}
+    	
+    	final CharSequence typedWord = word.getTypedWord();
+    	update.mTypedWordValid = mSuggest.isValidWord(typedWord);
+    	if (!update.mTypedWordValid && word.isCapitalized()) {
+    		final StringBuilder lowerWord = update.mLowerWord;
+    		lowerWord.setLength(0);
+    		for (int i = 0; i < typedWord.length(); i++) {
+    			lowerWord.append(Character.toLowerCase(typedWord.charAt(i)));
+    		}
+    		update.mTypedWordValid = mSuggest.isValidWord(lowerWord);
+    	}
+    }
+    
+    /**
+     * Shows the suggestions of an update, if it is still the latest one, and keeps the update
+     * for the next one.
+     */
+    private void showSuggestions(SuggestionsUpdate update) {
+    	if (update.mGeneration == mSuggestionsGeneration) {
+    		mSuggestions.set(update.mSuggestions);
+    		mShowingNextWords = update.mWord.size() == 0;
+    		setSuggestions(mSuggestions, true, update.mTypedWordValid);
+    	}
+    	mFreeUpdates.add(update);
+    }
+    
+    /**
+     * One update of the candidates: a copy of the composing word as it was, which the
+     * suggestions thread searches while typing goes on, and the suggestions found for it.
+     * With no composing word, the suggestions are the words that may follow the previous
+     * word. Updates are used again once they are back on the UI thread.
+     */
+    private static class SuggestionsUpdate {
+    	int mGeneration;
+    	final WordComposer mWord = new WordComposer();
+    	final StringBuilder mPreviousWord = new StringBuilder(MAX_PREVIOUS_WORD_LENGTH);
+    	final CandidateBuffer mSuggestions = new CandidateBuffer(32);
+    	final StringBuilder mLowerWord = new StringBuilder(32);
+    	boolean mTypedWordValid;
+    }
+    
+    public void setSuggestions(CandidateBuffer suggestions, boolean completions,
             boolean typedWordValid) {
         if (suggestions != null && suggestions.size() > 0) {
             setCandidatesViewShown(true);
@@ -523,6 +777,8 @@ public class S9IME extends InputMethodService
             commitText(getCurrentInputConnection(), "", 0);
         } else {
             keyDownUp(KeyEvent.KEYCODE_DEL);
+            // Words shown to follow the text before the cursor no longer do
+            updateCandidates();
         }
         updateShiftKeyState(getCurrentInputEditorInfo());
     }
@@ -575,8 +831,10 @@ public class S9IME extends InputMethodService
     			adjCodes[i++] = (int) c.charValue();
     		}
     	}
-    	Log.d(TAG, "codes before: " + Arrays.toString(codes));
-    	Log.d(TAG, "codes after: " + Arrays.toString(adjCodes));
+    	if (DEBUG) {
+    		Log.d(TAG, "codes before: " + Arrays.toString(codes));
+    		Log.d(TAG, "codes after: " + Arrays.toString(adjCodes));
+    	}
     	
     	return adjCodes;
     }
@@ -610,26 +868,48 @@ public class S9IME extends InputMethodService
             }
             updateShiftKeyState(getCurrentInputEditorInfo());
         } else if (mComposing.length() > 0) {
-        	String s = mSuggestions.get(index);
-        	if (index == 0 && s.length() > 2 && !mSuggest.isValidWord(s)) {
-        		addWordToDictionary(s);
-        	}
+        	String s = mSuggestions.getString(index);
+        	addToAutoDictionary(s, AutoDictionary.FREQUENCY_FOR_PICKED);
         	if (mWord.isCapitalized()) {
         		s = s.substring(0, 1).toUpperCase() + s.substring(1);
         	}
         	commitText(getCurrentInputConnection(), s, s.length());
+        } else if (mShowingNextWords && index >= 0 && index < mSuggestions.size()) {
+        	String s = mSuggestions.getString(index);
+        	if (isShifted()) {
+        		s = s.substring(0, 1).toUpperCase() + s.substring(1);
+        	}
+        	getCurrentInputConnection().commitText(s, 1);
+        	updateCandidates();
+        	updateShiftKeyState(getCurrentInputEditorInfo());
         }
     }
     
-    public boolean addWordToDictionary(String word) {
-    	// max "frequency" is 255
-    	// for now, we'll treat every user dictionary word equal
-    	mUserDictionary.addWord(word, 128);
-    	return true;
+    /**
+     * Counts a committed word that no other dictionary knows. The auto dictionary moves it
+     * to the user dictionary once it has been committed often enough.
+     */
+    private void addToAutoDictionary(String word, int addFrequency) {
+    	// Passwords aren't learned, nor words too short to be worth suggesting
+    	if (!mPredictionOn || word.length() <= 2) {
+    		return;
+    	}
+    	if (mWord.isCapitalized()) {
+    		// Learn it the way it is suggested; capitalization is added back when committed
+    		word = word.substring(0, 1).toLowerCase() + word.substring(1);
+    	}
+    	if (mSuggest.isValidWord(word) && mAutoDictionary.getWordFrequency(word) < 0) {
+    		return;
+    	}
+    	mAutoDictionary.addWord(word, addFrequency);
     }
     
     public boolean deleteWordFromDictionary(int index) {
-    	return mUserDictionary.deleteWord(mSuggestions.get(index));
+    	if (mUserDictionary.deleteWord(mSuggestions.getString(index))) {
+    		mSuggestions.remove(index);
+    		return true;
+    	}
+    	return false;
     }
     
     public void swipeRight() {
@@ -737,8 +1017,14 @@ public class S9IME extends InputMethodService
             // Handle separator
             if (mComposing.length() > 0) {
                 commitTyped(getCurrentInputConnection());
+            } else {
+                // The words that followed the last word don't follow the separator
+                updateCandidates();
             }
             sendKey(primaryCode);
+            if (primaryCode == ' ') {
+                updateNextWords();
+            }
             updateShiftKeyState(getCurrentInputEditorInfo());
         } else if (primaryCode == Keyboard.KEYCODE_DELETE) {
             handleBackspace();
@@ -16,14 +16,13 @@
 
 package com.gilbertl.s9;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
-import android.text.AutoText;
-import android.text.TextUtils;
-import android.util.Log;
 import android.view.View;
 
 /**
@@ -31,43 +30,130 @@ import android.view.View;
  * characters. This includes corrections and completions.
  * @hide pending API Council Approval
  */
-public class Suggest implements Dictionary.WordCallback {
+public class Suggest implements Dictionary.SourcedWordCallback {
 
     public static final int CORRECTION_NONE = 0;
     public static final int CORRECTION_BASIC = 1;
     public static final int CORRECTION_FULL = 2;
 
-    private Dictionary mMainDict;
+    /** The user, contacts and auto dictionaries, which are searched together */
+    public static final int SOURCE_USER = 0;
+    /** The main dictionary */
+    public static final int SOURCE_MAIN = 1;
+    private static final int SOURCE_COUNT = 2;
 
-    private Dictionary mUserDictionary;
+    private static final int CACHE_SIZE = 64;
+    private static final int AUTO_TEXT_CACHE_SIZE = 1024;
 
-    private Dictionary mAutoDictionary;
+    // Set on the UI thread when it is loaded, while suggestions may be searched elsewhere
+    private volatile Dictionary mMainDict;
+    // The words that follow other words, also set when it is loaded
+    private volatile BigramDictionary mBigramDict;
 
-    private Dictionary mContactsDictionary;
+    private ExpandableDictionary mUserDictionary;
+
+    private ExpandableDictionary mAutoDictionary;
+
+    private ExpandableDictionary mContactsDictionary;
+
+    // The in-memory dictionaries that are set, searched together
+    private ExpandableDictionary[] mExpandableDictionaries = new ExpandableDictionary[3];
+    private int mExpandableCount;
+    // The dictionaries searched together that had words good enough for the suggestions
+    private int mFoundSources;
 
     private int mPrefMaxSuggestions = 12;
 
+    /**
+     * Min-heap of the slots holding the best words so far, the weakest word at the top. Words
+     * stay in their slots while the heap is reordered, and each slot keeps its StringBuilder.
+     * A word is only in one slot, found through the index when it comes up again.
+     */
+    private int[] mHeap = new int[mPrefMaxSuggestions];
+    private int mHeapSize;
     private int[] mPriorities = new int[mPrefMaxSuggestions];
-    private ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
+    private int[] mOrders = new int[mPrefMaxSuggestions];
+    // Whether a slot holds the typed word with other caps, which ranks ahead of the others
+    private boolean[] mPinned = new boolean[mPrefMaxSuggestions];
+    private StringBuilder[] mSlotWords = new StringBuilder[mPrefMaxSuggestions];
+    private WordIndex mWordIndex = new WordIndex(mPrefMaxSuggestions);
+    private int mNextOrder;
+    // The typed word, the best words and their corrections, made again for each keystroke
+    private final CandidateBuffer mSuggestions = new CandidateBuffer(mPrefMaxSuggestions * 2);
     private boolean mIncludeTypedWordIfValid;
-    private ArrayList<CharSequence> mStringPool = new ArrayList<CharSequence>();
     private Context mContext;
     private boolean mHaveCorrection;
     private CharSequence mOriginalWord;
-    private String mLowerOriginalWord;
+    private final StringBuilder mLowerOriginalWord = new StringBuilder(32);
 
     private int mCorrectionMode = CORRECTION_BASIC;
 
+    // How long the sources have to find words for one keystroke when they are searched in
+    // parallel, 0 to search them one after the other on the calling thread
+    private int mSearchDeadline;
+    private ThreadPoolExecutor mSearchExecutor;
+    private SourceSearch[] mSourceSearches = new SourceSearch[SOURCE_COUNT];
+    // Microseconds the last search of each source took, -1 if it missed the deadline
+    private final long[] mSearchTimes = new long[SOURCE_COUNT];
+    private final int[] mLateCounts = new int[SOURCE_COUNT];
+
+    // The suggestions of recent inputs, which are only good for the words they were found in.
+    // The generation goes up when any of the dictionaries has other words than before.
+    private final SuggestionCache mCache = new SuggestionCache(CACHE_SIZE);
+    private int mWordsGeneration;
+    // The words stamps of the user, contacts and auto dictionaries, and the main dictionary,
+    // as of the generation
+    private final long[] mGenerationStamps = new long[3];
+    private Object mGenerationMainDict;
+
+    // The AutoText corrections of the suggestions, and the locale they are for
+    private final AutoTextCache mAutoTextCache = new AutoTextCache(AUTO_TEXT_CACHE_SIZE);
+    private Locale mLocale;
 
     public Suggest(Context context, int dictionaryResId) {
+        this(context);
+        mMainDict = loadMainDictionary(context, dictionaryResId);
+    }
+
+    /**
+     * Create a Suggest without any dictionaries. Dictionaries can be set as they are loaded,
+     * and suggestions come from the ones that are set.
+     */
+    public Suggest(Context context) {
         mContext = context;
-        mMainDict = new BinaryDictionary(context, dictionaryResId);
+        createSlotWords();
+    }
+
+    private void createSlotWords() {
         for (int i = 0; i < mPrefMaxSuggestions; i++) {
-            StringBuilder sb = new StringBuilder(32);
-            mStringPool.add(sb);
+            mSlotWords[i] = new StringBuilder(32);
         }
     }
 
+    /**
+     * Loads the main dictionary from a raw resource, natively if the library is available.
+     * This reads the whole resource, so it shouldn't be called from the UI thread.
+     */
+    public static Dictionary loadMainDictionary(Context context, int dictionaryResId) {
+        if (BinaryDictionary.isLibraryLoaded()) {
+            return new BinaryDictionary(context, dictionaryResId);
+        } else {
+            return new JavaBinaryDictionary(context, dictionaryResId);
+        }
+    }
+
+    public void setMainDictionary(Dictionary mainDictionary) {
+        mMainDict = mainDictionary;
+    }
+
+    /**
+     * Sets an optional dictionary of the words that follow other words, for suggesting the
+     * next word before any of it is typed.
+     */
+    public void setBigramDictionary(BigramDictionary bigramDictionary) {
+        mBigramDict = bigramDictionary;
+    }
+
     public int getCorrectionMode() {
         return mCorrectionMode;
     }
@@ -76,23 +162,95 @@ public class Suggest implements Dictionary.WordCallback {
         mCorrectionMode = mode;
     }
 
+    /**
+     * Searches the sources in parallel, each on a thread of its own, for at most the given
+     * time. Searches that aren't done by then are cancelled, and the suggestions are made of
+     * the words they found so far. The main dictionary only reports its words at the end, so
+     * its words are left out when it is late. A source is left out of a keystroke, rather than
+     * searched on the calling thread, if there is no thread or queue room for it.
+     * @param millis the time the searches of one keystroke have, 0 to search the sources one
+     * after the other on the calling thread
+     */
+    public void setSearchDeadline(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The search deadline can't be negative");
+        }
+        mSearchDeadline = millis;
+        if (millis > 0 && mSearchExecutor == null) {
+            // A search that missed its deadline keeps its thread until it notices, so there
+            // can be more threads than sources for a while. Beyond those and a keystroke's
+            // worth of queued searches, searches are skipped.
+            mSearchExecutor = new ThreadPoolExecutor(SOURCE_COUNT, SOURCE_COUNT * 2,
+                    1, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(SOURCE_COUNT),
+                    SKIP_SEARCH);
+        } else if (millis == 0 && mSearchExecutor != null) {
+            mSearchExecutor.shutdown();
+            mSearchExecutor = null;
+        }
+    }
+
+    private static final RejectedExecutionHandler SKIP_SEARCH = new RejectedExecutionHandler() {
+        public void rejectedExecution(Runnable search, ThreadPoolExecutor executor) {
+            ((SourceSearch) search).skip();
+        }
+    };
+
+    /**
+     * Returns how long the last search of a source took, to see which ones take too long.
+     * @param source SOURCE_USER or SOURCE_MAIN
+     * @return the time in microseconds, or -1 if the search missed the deadline
+     */
+    public long getSearchTime(int source) {
+        return mSearchTimes[source];
+    }
+
+    /**
+     * Returns how many searches of a source missed the deadline.
+     * @param source SOURCE_USER or SOURCE_MAIN
+     */
+    public int getLateCount(int source) {
+        return mLateCounts[source];
+    }
+
+    /**
+     * Stops the threads of the parallel searches. Searches that are still going finish on
+     * their own.
+     */
+    public void close() {
+        setSearchDeadline(0);
+    }
+
     /**
      * Sets an optional user dictionary resource to be loaded. The user dictionary is consulted
      * before the main dictionary, if set.
      */
-    public void setUserDictionary(Dictionary userDictionary) {
+    public void setUserDictionary(ExpandableDictionary userDictionary) {
         mUserDictionary = userDictionary;
+        updateExpandableDictionaries();
     }
 
     /**
      * Sets an optional contacts dictionary resource to be loaded.
      */
-    public void setContactsDictionary(Dictionary userDictionary) {
+    public void setContactsDictionary(ExpandableDictionary userDictionary) {
         mContactsDictionary = userDictionary;
+        updateExpandableDictionaries();
     }
     
-    public void setAutoDictionary(Dictionary autoDictionary) {
+    /**
+     * Sets an optional dictionary of words learned from what was typed.
+     */
+    public void setAutoDictionary(ExpandableDictionary autoDictionary) {
         mAutoDictionary = autoDictionary;
+        updateExpandableDictionaries();
+    }
+
+    private void updateExpandableDictionaries() {
+        int count = 0;
+        if (mUserDictionary != null) mExpandableDictionaries[count++] = mUserDictionary;
+        if (mContactsDictionary != null) mExpandableDictionaries[count++] = mContactsDictionary;
+        if (mAutoDictionary != null) mExpandableDictionaries[count++] = mAutoDictionary;
+        mExpandableCount = count;
     }
 
     /**
@@ -105,18 +263,22 @@ public class Suggest implements Dictionary.WordCallback {
         if (maxSuggestions < 1 || maxSuggestions > 100) {
             throw new IllegalArgumentException("maxSuggestions must be between 1 and 100");
         }
+        mCache.clear();
         mPrefMaxSuggestions = maxSuggestions;
+        // Searches keep as many words as there are suggestions
+        mSourceSearches = new SourceSearch[SOURCE_COUNT];
+        mHeap = new int[mPrefMaxSuggestions];
         mPriorities = new int[mPrefMaxSuggestions];
-        collectGarbage();
-        while (mStringPool.size() < mPrefMaxSuggestions) {
-            StringBuilder sb = new StringBuilder(32);
-            mStringPool.add(sb);
-        }
+        mOrders = new int[mPrefMaxSuggestions];
+        mPinned = new boolean[mPrefMaxSuggestions];
+        mSlotWords = new StringBuilder[mPrefMaxSuggestions];
+        mWordIndex = new WordIndex(mPrefMaxSuggestions);
+        createSlotWords();
     }
 
-    private boolean haveSufficientCommonality(String original, CharSequence suggestion) {
+    private boolean haveSufficientCommonality(CharSequence original, char[] suggestion,
+            int offset, int suggestionLength) {
         final int originalLength = original.length();
-        final int suggestionLength = suggestion.length();
         final int minLength = Math.min(originalLength, suggestionLength);
         if (minLength <= 2) return true;
         int matching = 0;
@@ -124,11 +286,11 @@ public class Suggest implements Dictionary.WordCallback {
         int i;
         for (i = 0; i < minLength; i++) {
             final char origChar = ExpandableDictionary.toLowerCase(original.charAt(i));
-            if (origChar == ExpandableDictionary.toLowerCase(suggestion.charAt(i))) {
+            if (origChar == ExpandableDictionary.toLowerCase(suggestion[offset + i])) {
                 matching++;
                 lessMatching++;
             } else if (i + 1 < suggestionLength
-                    && origChar == ExpandableDictionary.toLowerCase(suggestion.charAt(i + 1))) {
+                    && origChar == ExpandableDictionary.toLowerCase(suggestion[offset + i + 1])) {
                 lessMatching++;
             }
         }
@@ -148,49 +310,79 @@ public class Suggest implements Dictionary.WordCallback {
      * @param codes the list of codes. Each list item contains an array of character codes
      * in order of probability where the character at index 0 in the array has the highest 
      * probability. 
-     * @return list of suggestions.
+     * @return list of suggestions, with the priority each word was ranked with as its score,
+     * or 0 for the typed word and the AutoText corrections
      */
-    public List<CharSequence> getSuggestions(View view, WordComposer wordComposer, 
+    public CandidateBuffer getSuggestions(View view, WordComposer wordComposer, 
             boolean includeTypedWordIfValid) {
         mHaveCorrection = false;
-        collectGarbage();
-        Arrays.fill(mPriorities, 0);
+        mSuggestions.clear();
         mIncludeTypedWordIfValid = includeTypedWordIfValid;
         
-        // Save a lowercase version of the original word
+        // Save a lowercase version of the original word. The composer isn't changed while
+        // the suggestions are made, so the typed word is used as it is.
         mOriginalWord = wordComposer.getTypedWord();
+        final StringBuilder lowerOriginalWord = mLowerOriginalWord;
+        lowerOriginalWord.setLength(0);
         if (mOriginalWord != null) {
-            mOriginalWord = mOriginalWord.toString();
-            mLowerOriginalWord = mOriginalWord.toString().toLowerCase();
-        } else {
-            mLowerOriginalWord = "";
+            final int length = mOriginalWord.length();
+            for (int i = 0; i < length; i++) {
+                lowerOriginalWord.append(Character.toLowerCase(mOriginalWord.charAt(i)));
+            }
+        }
+
+        // AutoText gives other corrections in another locale
+        final Locale locale = Locale.getDefault();
+        if (!locale.equals(mLocale)) {
+            mLocale = locale;
+            mAutoTextCache.clear();
+            mCache.clear();
         }
+        // The typed word is the primary codes, so the codes tell the suggestions apart
+        updateWordsGeneration();
+        final int cacheMode = mCorrectionMode * 2 + (includeTypedWordIfValid ? 1 : 0);
+        final SuggestionCache.Entry cached =
+                mCache.get(wordComposer, cacheMode, mWordsGeneration);
+        if (cached != null) {
+            mSuggestions.set(cached.mSuggestions);
+            mHaveCorrection = cached.mHaveCorrection;
+            return mSuggestions;
+        }
+        boolean late = false;
         // Search the dictionary only if there are at least 2 characters
         if (wordComposer.size() > 1) {
-            if (mUserDictionary != null || mContactsDictionary != null) {
-                if (mUserDictionary != null) {
-                    mUserDictionary.getWords(wordComposer, this);
-                }
-                if (mContactsDictionary != null) {
-                    mContactsDictionary.getWords(wordComposer, this);
+            mFoundSources = 0;
+            if (mSearchDeadline > 0) {
+                late = !searchInParallel(wordComposer);
+            } else {
+                long start = System.nanoTime();
+                if (mExpandableCount > 0) {
+                    // The user, contacts and auto dictionaries, one after the other
+                    ExpandableDictionary.getWords(mExpandableDictionaries, mExpandableCount,
+                            wordComposer, this);
                 }
-
-                if (mSuggestions.size() > 0 && isValidWord(mOriginalWord)) {
-                    mHaveCorrection = true;
+                mSearchTimes[SOURCE_USER] = (System.nanoTime() - start) / 1000;
+                checkUserWords();
+                start = System.nanoTime();
+                if (mMainDict != null) {
+                    mMainDict.getWords(wordComposer, this);
                 }
+                mSearchTimes[SOURCE_MAIN] = (System.nanoTime() - start) / 1000;
             }
-            mMainDict.getWords(wordComposer, this);
+            flushWords();
             if (mCorrectionMode == CORRECTION_FULL && mSuggestions.size() > 0) {
                 mHaveCorrection = true;
             }
         }
+        final CandidateBuffer suggestions = mSuggestions;
         if (mOriginalWord != null) {
-            mSuggestions.add(0, mOriginalWord.toString());
+            suggestions.insert(0, mOriginalWord, 0);
         }
         
         // Check if the first suggestion has a minimum number of characters in common
-        if (mCorrectionMode == CORRECTION_FULL && mSuggestions.size() > 1) {
-            if (!haveSufficientCommonality(mLowerOriginalWord, mSuggestions.get(1))) {
+        if (mCorrectionMode == CORRECTION_FULL && suggestions.size() > 1) {
+            if (!haveSufficientCommonality(mLowerOriginalWord, suggestions.getChars(),
+                    suggestions.getStart(1), suggestions.getLength(1))) {
                 mHaveCorrection = false;
             }
         }
@@ -199,62 +391,154 @@ public class Suggest implements Dictionary.WordCallback {
         int max = 6;
         // Don't autotext the suggestions from the dictionaries
         if (mCorrectionMode == CORRECTION_BASIC) max = 1;
-        while (i < mSuggestions.size() && i < max) {
-            String suggestedWord = mSuggestions.get(i).toString().toLowerCase();
-            CharSequence autoText =
-                    AutoText.get(suggestedWord, 0, suggestedWord.length(), view);
+        while (i < suggestions.size() && i < max) {
+            CharSequence autoText = mAutoTextCache.get(suggestions.getChars(),
+                    suggestions.getStart(i), suggestions.getLength(i), view);
             // Is there an AutoText correction?
             boolean canAdd = autoText != null;
             // Is that correction already the current prediction (or original word)?
-            canAdd &= !TextUtils.equals(autoText, mSuggestions.get(i));
+            canAdd &= !suggestions.equals(i, autoText);
             // Is that correction already the next predicted word?
-            if (canAdd && i + 1 < mSuggestions.size() && mCorrectionMode != CORRECTION_BASIC) {
-                canAdd &= !TextUtils.equals(autoText, mSuggestions.get(i + 1));
+            if (canAdd && i + 1 < suggestions.size() && mCorrectionMode != CORRECTION_BASIC) {
+                canAdd &= !suggestions.equals(i + 1, autoText);
             }
             if (canAdd) {
                 mHaveCorrection = true;
-                mSuggestions.add(i + 1, autoText);
-                i++;
+                // A word is only shown once, where it comes first
+                final int shown = suggestions.indexOf(autoText);
+                if (shown < 0 || shown > i) {
+                    if (shown > i) suggestions.remove(shown);
+                    suggestions.insert(i + 1, autoText, 0);
+                    i++;
+                }
             }
             i++;
         }
 
-        removeDupes();
+        // Suggestions that are missing the words of a late search aren't kept
+        if (!late) {
+            mCache.put(mSuggestions, mHaveCorrection);
+        }
         return mSuggestions;
     }
 
-    private void removeDupes() {
-        final ArrayList<CharSequence> suggestions = mSuggestions;
-        if (suggestions.size() < 2) return;
-        int i = 1;
-        // Don't cache suggestions.size(), since we may be removing items
-        while (i < suggestions.size()) {
-            final CharSequence cur = suggestions.get(i);
-            // Compare each candidate with each previous candidate
-            for (int j = 0; j < i; j++) {
-                CharSequence previous = suggestions.get(j);
-                if (TextUtils.equals(cur, previous)) {
-                    removeFromSuggestions(i);
-                    i--;
-                    break;
-                }
-            }
-            i++;
+    /**
+     * Returns the words most likely to follow a word, for when nothing of the next word has
+     * been typed. The list is the same one getSuggestions() returns and is overwritten the same
+     * way.
+     * @param previousWord the word before the cursor
+     * @return list of suggestions, with the frequency of each word following the previous
+     * word as its score, empty if there is no bigram dictionary or it doesn't have the word
+     */
+    public CandidateBuffer getNextWords(CharSequence previousWord) {
+        mHaveCorrection = false;
+        mSuggestions.clear();
+        final BigramDictionary bigramDict = mBigramDict;
+        if (bigramDict != null) {
+            bigramDict.getNextWords(previousWord, mSuggestions, mPrefMaxSuggestions);
+        }
+        return mSuggestions;
+    }
+
+    /**
+     * Starts a new generation of the cached suggestions if any of the dictionaries has other
+     * words than it had. The words stamps of the expandable dictionaries change on every
+     * change, so comparing them tells if they changed.
+     */
+    private void updateWordsGeneration() {
+        final long[] stamps = mGenerationStamps;
+        final long userStamp = getWordsStamp(mUserDictionary);
+        final long contactsStamp = getWordsStamp(mContactsDictionary);
+        final long autoStamp = getWordsStamp(mAutoDictionary);
+        final Object mainDict = mMainDict;
+        if (stamps[0] != userStamp || stamps[1] != contactsStamp || stamps[2] != autoStamp
+                || mGenerationMainDict != mainDict) {
+            stamps[0] = userStamp;
+            stamps[1] = contactsStamp;
+            stamps[2] = autoStamp;
+            mGenerationMainDict = mainDict;
+            mWordsGeneration++;
+            mCache.clear();
+        }
+    }
+
+    private static long getWordsStamp(ExpandableDictionary dictionary) {
+        return dictionary != null ? dictionary.getWordsStamp() : -1;
+    }
+
+    /**
+     * Returns how many times the suggestions for the input were found in the cache.
+     */
+    public int getCacheHitCount() {
+        return mCache.getHitCount();
+    }
+
+    /**
+     * Returns how many times the suggestions for the input had to be searched for.
+     */
+    public int getCacheMissCount() {
+        return mCache.getMissCount();
+    }
+
+    /**
+     * The typed word is a correction if the user, contacts or auto dictionaries have it and
+     * came up with words good enough for the suggestions.
+     */
+    private void checkUserWords() {
+        if (mFoundSources != 0 && isValidWord(mOriginalWord)) {
+            mHaveCorrection = true;
         }
     }
 
-    private void removeFromSuggestions(int index) {
-        CharSequence garbage = mSuggestions.remove(index);
-        if (garbage != null && garbage instanceof StringBuilder) {
-            mStringPool.add(garbage);
+    /**
+     * Searches the sources on the executor and waits for them until the deadline. Their words
+     * are then added in the order of the sources, as if they had been searched here.
+     * @return false if any of the searches missed the deadline
+     */
+    private boolean searchInParallel(WordComposer wordComposer) {
+        final SourceSearch[] searches = mSourceSearches;
+        for (int source = 0; source < SOURCE_COUNT; source++) {
+            if (searches[source] == null) {
+                searches[source] = new SourceSearch(source, mPrefMaxSuggestions);
+            }
+        }
+        // Any reloads are started once, here rather than by the searches
+        ExpandableDictionary.startSearches(mExpandableDictionaries, mExpandableCount);
+        searches[SOURCE_USER].start(wordComposer, mLowerOriginalWord, null,
+                mExpandableDictionaries, mExpandableCount);
+        searches[SOURCE_MAIN].start(wordComposer, mLowerOriginalWord, mMainDict, null, 0);
+        final long deadline = System.nanoTime() + mSearchDeadline * 1000000L;
+        for (int source = 0; source < SOURCE_COUNT; source++) {
+            // A source without dictionaries, such as the main dictionary before it is
+            // loaded, has nothing to wait for
+            if (searches[source].isEmpty()) {
+                searches[source].skip();
+            } else {
+                mSearchExecutor.execute(searches[source]);
+            }
         }
+        boolean done = true;
+        for (int source = 0; source < SOURCE_COUNT; source++) {
+            final SourceSearch search = searches[source];
+            final boolean sourceDone = search.finish(deadline);
+            mSearchTimes[source] = sourceDone ? search.mTime : -1;
+            search.addWordsTo(this);
+            if (!sourceDone && !search.isEmpty()) {
+                done = false;
+                mLateCounts[source]++;
+                // It goes on until it notices it was cancelled, the next one starts anew
+                if (search.isRunning()) searches[source] = null;
+            }
+            if (source == SOURCE_USER) checkUserWords();
+        }
+        return done;
     }
 
     public boolean hasMinimalCorrection() {
         return mHaveCorrection;
     }
 
-    private boolean compareCaseInsensitive(final String mLowerOriginalWord, 
+    private boolean compareCaseInsensitive(final CharSequence mLowerOriginalWord, 
             final char[] word, final int offset, final int length) {
         final int originalLength = mLowerOriginalWord.length();
         if (originalLength == length && Character.isUpperCase(word[offset])) {
@@ -268,72 +552,404 @@ public class Suggest implements Dictionary.WordCallback {
         return false;
     }
 
-    public boolean addWord(final char[] word, final int offset, final int length, final int freq) {
-        int pos = 0;
-        final int[] priorities = mPriorities;
+    public boolean addWord(final char[] word, final int offset, final int length, int freq) {
+        return addWord(word, offset, length, freq, 0);
+    }
+
+    public boolean addWord(final char[] word, final int offset, final int length, int freq,
+            int sources) {
+        return addWord(word, offset, length, freq, sources, mNextOrder++);
+    }
+
+    /**
+     * Adds a word like addWord(), with the order it was found in among the words of this
+     * input, for breaking ties with words of the same priority and length. A word at the
+     * threshold is left out whatever its order, as if it had come last.
+     */
+    private boolean addWord(final char[] word, final int offset, final int length, int freq,
+            int sources, int order) {
+        final int[] heap = mHeap;
         final int prefMaxSuggestions = mPrefMaxSuggestions;
-        // Check if it's the same word, only caps are different
-        if (compareCaseInsensitive(mLowerOriginalWord, word, offset, length)) {
-            pos = 0;
-        } else {
-            // Check the last one's priority and bail
-            if (priorities[prefMaxSuggestions - 1] >= freq) return true;
-            while (pos < prefMaxSuggestions) {
-                if (priorities[pos] < freq
-                        || (priorities[pos] == freq && length < mSuggestions
-                                .get(pos).length())) {
-                    break;
-                }
-                pos++;
-            }
+        // Check if it's the same word, only caps are different. It is kept ahead of the
+        // dictionary words, with its own frequency.
+        final boolean pinned = compareCaseInsensitive(mLowerOriginalWord, word, offset, length);
+        if (!pinned) {
+            // Check the weakest one's priority and bail
+            if (getFrequencyThreshold() >= freq) return true;
+            if (mHeapSize == prefMaxSuggestions && mPinned[heap[0]]) return true;
         }
-        
-        if (pos >= prefMaxSuggestions) {
+
+        mFoundSources |= sources;
+        // The typed word comes first in the suggestions anyway
+        if (sameWord(mOriginalWord, word, offset, length)) return true;
+        final int hash = WordIndex.hash(word, offset, length);
+        int slot = mWordIndex.find(hash, word, offset, length, mSlotWords);
+        if (slot >= 0) {
+            // Found again, by another dictionary or another path: it keeps the higher priority
+            if (freq > mPriorities[slot]) {
+                mPriorities[slot] = freq;
+                siftDown(heapIndexOf(slot), mHeapSize);
+            }
             return true;
         }
-        System.arraycopy(priorities, pos, priorities, pos + 1,
-                prefMaxSuggestions - pos - 1);
-        priorities[pos] = freq;
-        int poolSize = mStringPool.size();
-        StringBuilder sb = poolSize > 0 ? (StringBuilder) mStringPool.remove(poolSize - 1) 
-                : new StringBuilder(32);
+        if (mHeapSize < prefMaxSuggestions) {
+            slot = mHeapSize;
+        } else {
+            // Reuse the slot of the weakest word
+            slot = heap[0];
+            mWordIndex.remove(slot);
+        }
+        StringBuilder sb = mSlotWords[slot];
         sb.setLength(0);
         sb.append(word, offset, length);
-        mSuggestions.add(pos, sb);
-        if (mSuggestions.size() > prefMaxSuggestions) {
-            CharSequence garbage = mSuggestions.remove(prefMaxSuggestions);
-            if (garbage instanceof StringBuilder) {
-                mStringPool.add(garbage);
-            }
+        mWordIndex.put(slot, hash);
+        mPriorities[slot] = freq;
+        mOrders[slot] = order;
+        mPinned[slot] = pinned;
+        if (mHeapSize < prefMaxSuggestions) {
+            heap[mHeapSize] = slot;
+            siftUp(mHeapSize++);
+        } else {
+            siftDown(0, mHeapSize);
+        }
+        return true;
+    }
+
+    private static boolean sameWord(CharSequence original, char[] word, int offset,
+            int length) {
+        if (original == null || original.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (original.charAt(i) != word[offset + i]) return false;
         }
         return true;
     }
 
+    private int heapIndexOf(int slot) {
+        final int[] heap = mHeap;
+        int index = 0;
+        while (heap[index] != slot) {
+            index++;
+        }
+        return index;
+    }
+
+    public int getFrequencyThreshold() {
+        return mHeapSize < mPrefMaxSuggestions ? 0 : mPriorities[mHeap[0]];
+    }
+
+    /**
+     * Returns true if the word in slot1 ranks below the word in slot2: it isn't pinned while
+     * the other is, or it has a lower priority, or is longer at the same priority, or was
+     * added later.
+     */
+    private boolean isWorse(int slot1, int slot2) {
+        if (mPinned[slot1] != mPinned[slot2]) {
+            return mPinned[slot2];
+        }
+        final int[] priorities = mPriorities;
+        if (priorities[slot1] != priorities[slot2]) {
+            return priorities[slot1] < priorities[slot2];
+        }
+        final int length1 = mSlotWords[slot1].length();
+        final int length2 = mSlotWords[slot2].length();
+        if (length1 != length2) {
+            return length1 > length2;
+        }
+        return mOrders[slot1] > mOrders[slot2];
+    }
+
+    private void siftUp(int index) {
+        final int[] heap = mHeap;
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!isWorse(heap[index], heap[parent])) break;
+            int slot = heap[index];
+            heap[index] = heap[parent];
+            heap[parent] = slot;
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int size) {
+        final int[] heap = mHeap;
+        while (true) {
+            int weakest = index;
+            int left = index * 2 + 1;
+            int right = left + 1;
+            if (left < size && isWorse(heap[left], heap[weakest])) weakest = left;
+            if (right < size && isWorse(heap[right], heap[weakest])) weakest = right;
+            if (weakest == index) break;
+            int slot = heap[index];
+            heap[index] = heap[weakest];
+            heap[weakest] = slot;
+            index = weakest;
+        }
+    }
+
+    /**
+     * Sorts the heap in place, best word first, and copies the words to the suggestions.
+     */
+    private void flushWords() {
+        final int[] heap = mHeap;
+        final int count = mHeapSize;
+        for (int end = count - 1; end > 0; end--) {
+            int weakest = heap[0];
+            heap[0] = heap[end];
+            heap[end] = weakest;
+            siftDown(0, end);
+        }
+        for (int i = 0; i < count; i++) {
+            mSuggestions.add(mSlotWords[heap[i]], mPriorities[heap[i]]);
+        }
+        mWordIndex.clear();
+        mHeapSize = 0;
+        mNextOrder = 0;
+    }
+
     public boolean isValidWord(final CharSequence word) {
         if (word == null || word.length() == 0) {
             return false;
         }
-        return (mCorrectionMode == CORRECTION_FULL && mMainDict.isValidWord(word)) 
+        return (mCorrectionMode == CORRECTION_FULL && mMainDict != null
+                    && mMainDict.isValidWord(word))
                 || (mCorrectionMode > CORRECTION_NONE && 
                     ((mUserDictionary != null && mUserDictionary.isValidWord(word)))
                      || (mAutoDictionary != null && mAutoDictionary.isValidWord(word))
                      || (mContactsDictionary != null && mContactsDictionary.isValidWord(word)));
     }
     
-    private void collectGarbage() {
-        int poolSize = mStringPool.size();
-        int garbageSize = mSuggestions.size();
-        while (poolSize < mPrefMaxSuggestions && garbageSize > 0) {
-            CharSequence garbage = mSuggestions.get(garbageSize - 1);
-            if (garbage != null && garbage instanceof StringBuilder) {
-                mStringPool.add(garbage);
-                poolSize++;
+    /**
+     * The search of one source on the executor, and the best words it found. The words are
+     * kept and ranked the way the suggestions are, so that adding them to the suggestions
+     * afterwards gives what searching the source on the calling thread would have given.
+     */
+    private class SourceSearch implements Runnable, Dictionary.SourcedWordCallback {
+        private final int mSource;
+        // A copy of the composer, which changes with the next keystroke
+        private final WordComposer mComposer = new WordComposer();
+        private final StringBuilder mLowerOriginalWord = new StringBuilder(32);
+        private Dictionary mDictionary;
+        private final ExpandableDictionary[] mDictionaries = new ExpandableDictionary[3];
+        private int mDictionaryCount;
+
+        private final int mCapacity;
+        private final StringBuilder[] mWords;
+        private final int[] mFrequencies;
+        private final int[] mSources;
+        private final int[] mOrders;
+        private final boolean[] mPinned;
+        private final WordIndex mWordIndex;
+        private int mCount;
+        private int mNextOrder;
+        private int mWeakest;
+        // The sources that found the typed word, which isn't kept with the others
+        private int mTypedWordSources;
+        // The lowest frequency a word needs, the highest frequency once cancelled so that the
+        // search stops looking
+        private volatile int mThreshold;
+        private volatile boolean mCancelled;
+        private boolean mDone;
+        private long mTime;
+        // For handing the words over
+        private char[] mChars = new char[32];
+
+        SourceSearch(int source, int capacity) {
+            mSource = source;
+            mCapacity = capacity;
+            mWords = new StringBuilder[capacity];
+            for (int i = 0; i < capacity; i++) {
+                mWords[i] = new StringBuilder(32);
             }
-            garbageSize--;
+            mFrequencies = new int[capacity];
+            mSources = new int[capacity];
+            mOrders = new int[capacity];
+            mPinned = new boolean[capacity];
+            mWordIndex = new WordIndex(capacity);
         }
-        if (poolSize == mPrefMaxSuggestions + 1) {
-            Log.w("Suggest", "String pool got too big: " + poolSize);
+
+        synchronized void start(WordComposer composer, CharSequence lowerOriginalWord,
+                Dictionary dictionary, ExpandableDictionary[] dictionaries, int count) {
+            mComposer.set(composer);
+            mLowerOriginalWord.setLength(0);
+            mLowerOriginalWord.append(lowerOriginalWord);
+            mDictionary = dictionary;
+            for (int i = 0; i < count; i++) {
+                mDictionaries[i] = dictionaries[i];
+            }
+            mDictionaryCount = count;
+            mWordIndex.clear();
+            mCount = 0;
+            mNextOrder = 0;
+            mTypedWordSources = 0;
+            mThreshold = 0;
+            mCancelled = false;
+            mDone = false;
+        }
+
+        /**
+         * Returns true if the search has no dictionaries to search.
+         */
+        boolean isEmpty() {
+            return mSource == SOURCE_USER ? mDictionaryCount == 0 : mDictionary == null;
+        }
+
+        /**
+         * Finishes the search without running it, cancelled unless it has nothing to search.
+         */
+        synchronized void skip() {
+            if (!isEmpty()) {
+                mCancelled = true;
+                mThreshold = Dictionary.NO_MORE_WORDS;
+            }
+            mTime = 0;
+            mDone = true;
+            notifyAll();
+        }
+
+        synchronized boolean isRunning() {
+            return !mDone;
+        }
+
+        public void run() {
+            // Cancelled while it was queued
+            if (mCancelled) {
+                synchronized (this) {
+                    mDone = true;
+                    notifyAll();
+                }
+                return;
+            }
+            final long start = System.nanoTime();
+            try {
+                if (mSource == SOURCE_USER) {
+                    ExpandableDictionary.getStartedWords(mDictionaries, mDictionaryCount,
+                            mComposer, this);
+                } else if (mDictionary != null) {
+                    mDictionary.getWords(mComposer, this);
+                }
+            } finally {
+                synchronized (this) {
+                    mTime = (System.nanoTime() - start) / 1000;
+                    mDone = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the search until the deadline, and cancels it if it isn't done by then.
+         * @param deadline the time to stop waiting, as of System.nanoTime()
+         * @return true if the search is done and wasn't cancelled
+         */
+        synchronized boolean finish(long deadline) {
+            long remaining = deadline - System.nanoTime();
+            while (!mDone && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            if (!mDone) {
+                mCancelled = true;
+                mThreshold = Dictionary.NO_MORE_WORDS;
+            }
+            return !mCancelled;
+        }
+
+        /**
+         * Adds the words found to the suggestions, ranked as if they had been added in the
+         * order they were found, after the words already there.
+         */
+        synchronized void addWordsTo(Suggest suggest) {
+            suggest.mFoundSources |= mTypedWordSources;
+            final int firstOrder = suggest.mNextOrder;
+            for (int slot = 0; slot < mCount; slot++) {
+                final StringBuilder word = mWords[slot];
+                final int length = word.length();
+                word.getChars(0, length, mChars, 0);
+                suggest.addWord(mChars, 0, length, mFrequencies[slot], mSources[slot],
+                        firstOrder + mOrders[slot]);
+            }
+            suggest.mNextOrder = firstOrder + mNextOrder;
+        }
+
+        public boolean addWord(char[] word, int offset, int length, int freq) {
+            return addWord(word, offset, length, freq, 0);
+        }
+
+        public synchronized boolean addWord(char[] word, int offset, int length, int freq,
+                int sources) {
+            if (mCancelled) return false;
+            // The same as Suggest.addWord()
+            final boolean pinned = compareCaseInsensitive(mLowerOriginalWord, word, offset,
+                    length);
+            if (!pinned) {
+                if (mThreshold >= freq) return true;
+                if (mCount == mCapacity && mPinned[mWeakest]) return true;
+            }
+            if (sameWord(mComposer.getTypedWord(), word, offset, length)) {
+                mTypedWordSources |= sources;
+                return true;
+            }
+            final int hash = WordIndex.hash(word, offset, length);
+            int slot = mWordIndex.find(hash, word, offset, length, mWords);
+            if (slot >= 0) {
+                mSources[slot] |= sources;
+                if (freq > mFrequencies[slot]) {
+                    mFrequencies[slot] = freq;
+                    if (mCount == mCapacity) findWeakest();
+                }
+                return true;
+            }
+            if (mCount < mCapacity) {
+                slot = mCount++;
+            } else {
+                slot = mWeakest;
+                mWordIndex.remove(slot);
+            }
+            mWords[slot].setLength(0);
+            mWords[slot].append(word, offset, length);
+            mWordIndex.put(slot, hash);
+            mFrequencies[slot] = freq;
+            mSources[slot] = sources;
+            mOrders[slot] = mNextOrder++;
+            mPinned[slot] = pinned;
+            if (length > mChars.length) mChars = new char[length];
+            if (mCount == mCapacity) findWeakest();
+            return true;
+        }
+
+        private void findWeakest() {
+            mWeakest = 0;
+            for (int i = 1; i < mCount; i++) {
+                if (isWorse(i, mWeakest)) mWeakest = i;
+            }
+            mThreshold = mFrequencies[mWeakest];
+        }
+
+        public int getFrequencyThreshold() {
+            return mThreshold;
+        }
+
+        /**
+         * The same ranking as Suggest.isWorse().
+         */
+        private boolean isWorse(int slot1, int slot2) {
+            if (mPinned[slot1] != mPinned[slot2]) {
+                return mPinned[slot2];
+            }
+            if (mFrequencies[slot1] != mFrequencies[slot2]) {
+                return mFrequencies[slot1] < mFrequencies[slot2];
+            }
+            final int length1 = mWords[slot1].length();
+            final int length2 = mWords[slot2].length();
+            if (length1 != length2) {
+                return length1 > length2;
+            }
+            return mOrders[slot1] > mOrders[slot2];
         }
-        mSuggestions.clear();
     }
 }
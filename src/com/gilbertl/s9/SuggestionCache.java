@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+/**
+ * The suggestions most recently found for the inputs typed, so that typing an input again, as
+ * when backspacing and retyping, doesn't search the dictionaries again. An input is told apart
+ * by the codes at each of its positions, the search mode and the generation of the words that
+ * were searched, which goes up whenever the dictionaries change. The entries are made up front
+ * and filled again in place, so that keeping suggestions doesn't allocate.
+ */
+class SuggestionCache {
+
+    /**
+     * The suggestions found for an input, in order, and whether they made a correction.
+     */
+    static class Entry {
+        final CandidateBuffer mSuggestions = new CandidateBuffer(16);
+        boolean mHaveCorrection;
+        // The input it is for, and when it was last used
+        final Key mKey = new Key(16);
+        long mLastUse;
+    }
+
+    private static class Key {
+        // The arrays of codes of a WordComposer, which aren't changed once added
+        int[][] mCodes;
+        int mSize;
+        int mMode;
+        int mGeneration;
+        int mHash;
+
+        Key(int capacity) {
+            mCodes = new int[capacity][];
+        }
+
+        void set(WordComposer codes, int mode, int generation) {
+            final int size = codes.size();
+            if (mCodes.length < size) mCodes = new int[size * 2][];
+            int hash = mode * 31 + generation;
+            for (int i = 0; i < size; i++) {
+                final int[] alternatives = codes.getCodesAt(i);
+                mCodes[i] = alternatives;
+                for (int j = 0; j < alternatives.length; j++) {
+                    hash = hash * 31 + alternatives[j];
+                }
+                hash = hash * 31 + alternatives.length;
+            }
+            mSize = size;
+            mMode = mode;
+            mGeneration = generation;
+            mHash = hash;
+        }
+
+        void set(Key other) {
+            if (mCodes.length < other.mSize) mCodes = new int[other.mCodes.length][];
+            System.arraycopy(other.mCodes, 0, mCodes, 0, other.mSize);
+            mSize = other.mSize;
+            mMode = other.mMode;
+            mGeneration = other.mGeneration;
+            mHash = other.mHash;
+        }
+
+        boolean same(Key other) {
+            if (mHash != other.mHash || mSize != other.mSize || mMode != other.mMode
+                    || mGeneration != other.mGeneration) {
+                return false;
+            }
+            for (int i = 0; i < mSize; i++) {
+                final int[] codes = mCodes[i];
+                final int[] otherCodes = other.mCodes[i];
+                if (codes == otherCodes) continue;
+                if (codes.length != otherCodes.length) return false;
+                for (int j = 0; j < codes.length; j++) {
+                    if (codes[j] != otherCodes[j]) return false;
+                }
+            }
+            return true;
+        }
+
+        void clear() {
+            for (int i = 0; i < mSize; i++) {
+                mCodes[i] = null;
+            }
+            mSize = 0;
+        }
+    }
+
+    // Few enough to look through them all, and the least recently used one makes way
+    private final Entry[] mEntries;
+    private int mSize;
+    private long mUses;
+    // Looks up an input without making a key for it
+    private final Key mProbe = new Key(16);
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * @param capacity the number of inputs to keep the suggestions of, the least recently used
+     * ones going first
+     */
+    SuggestionCache(int capacity) {
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+        }
+    }
+
+    /**
+     * Returns the suggestions found for the input, or null if they aren't kept. The entry is
+     * only good until the next call to put().
+     */
+    Entry get(WordComposer codes, int mode, int generation) {
+        final Key probe = mProbe;
+        probe.set(codes, mode, generation);
+        final Entry[] entries = mEntries;
+        for (int i = 0; i < mSize; i++) {
+            final Entry entry = entries[i];
+            if (entry.mKey.same(probe)) {
+                entry.mLastUse = ++mUses;
+                mHits++;
+                return entry;
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Keeps the suggestions found for the input. It has to be the input last passed to get(),
+     * which didn't find it.
+     */
+    void put(CandidateBuffer suggestions, boolean haveCorrection) {
+        final Entry[] entries = mEntries;
+        Entry entry;
+        if (mSize < entries.length) {
+            entry = entries[mSize++];
+        } else {
+            entry = entries[0];
+            for (int i = 1; i < entries.length; i++) {
+                if (entries[i].mLastUse < entry.mLastUse) entry = entries[i];
+            }
+        }
+        entry.mKey.set(mProbe);
+        entry.mSuggestions.set(suggestions);
+        entry.mHaveCorrection = haveCorrection;
+        entry.mLastUse = ++mUses;
+    }
+
+    void clear() {
+        final Entry[] entries = mEntries;
+        for (int i = 0; i < mSize; i++) {
+            // Let go of the codes it kept
+            entries[i].mKey.clear();
+        }
+        mSize = 0;
+    }
+
+    int getHitCount() {
+        return mHits;
+    }
+
+    int getMissCount() {
+        return mMisses;
+    }
+}
@@ -16,12 +16,22 @@
 
 package com.gilbertl.s9;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.UserDictionary.Words;
 
 public class UserDictionary extends ExpandableDictionary {
@@ -34,11 +44,60 @@ public class UserDictionary extends ExpandableDictionary {
     
     private static final int INDEX_WORD = 1;
     private static final int INDEX_FREQUENCY = 2;
+
+    private static final String SNAPSHOT_NAME = "user_dict.snapshot";
     
     private ContentObserver mObserver;
     
-    private boolean mRequiresReload;
+    private volatile boolean mRequiresReload;
+
+    // Set while a LoadWordsTask is under way, so that only one runs at a time
+    private final AtomicBoolean mUpdatingWords = new AtomicBoolean();
+
+    // Searches ask for a reload on the thread they run on, and the task starts on the UI thread
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mStartLoading = new Runnable() {
+        public void run() {
+            new LoadWordsTask().execute();
+        }
+    };
+
+    // The words in the trie with their frequencies, as last read or written. A reload applies
+    // the difference to the provider's words, rather than building the trie again. Guarded by
+    // the dictionary, like changes to the trie.
+    private Map<String, Integer> mWordFrequencies;
+
+    // The words added here that a reload may not have read from the provider yet, since their
+    // insert hadn't returned when its query started. A reload keeps them, rather than taking
+    // them for removed. Guarded by the dictionary.
+    private final Map<String, PendingWord> mPendingWords = new HashMap<String, PendingWord>();
+    // The number of inserts of added words that have returned. Guarded by the dictionary.
+    private long mInsertCount;
+
+    private static class PendingWord {
+        // The frequency written to the provider
+        final int mFrequency;
+        // The insert count once its insert returned, or -1 before
+        long mInsertedAs = -1;
+
+        PendingWord(int frequency) {
+            mFrequency = frequency;
+        }
+    }
+
+    // Whether the words came from the snapshot and haven't been compared with the provider's,
+    // and whether they were loaded from the provider yet. Only the load task uses these, and
+    // one runs at a time.
+    private boolean mFromSnapshot;
+    private boolean mLoaded;
+
+    // Whether the words changed since the snapshot was saved. Guarded by the dictionary.
+    private boolean mSnapshotStale;
     
+    /**
+     * Create the dictionary, then load the words as they were last saved and the words from
+     * the provider in the background.
+     */
     public UserDictionary(Context context) {
         super(context);
         // Perform a managed query. The Activity will handle closing and requerying the cursor
@@ -52,7 +111,7 @@ public class UserDictionary extends ExpandableDictionary {
             }
         });
 
-        loadDictionary();
+        loadDictionaryAsync();
     }
     
     public synchronized void close() {
@@ -62,12 +121,26 @@ public class UserDictionary extends ExpandableDictionary {
         }
     }
     
-    private synchronized void loadDictionary() {
+    /**
+     * Reads the words and publishes a trie with them. Searches go on with the old words until
+     * then.
+     */
+    private void loadDictionary() {
+        mRequiresReload = false;
+        final long insertCount;
+        synchronized (this) {
+            insertCount = mInsertCount;
+        }
         Cursor cursor = getContext().getContentResolver()
                 .query(Words.CONTENT_URI, PROJECTION, "(locale IS NULL) or (locale=?)", 
                         new String[] { Locale.getDefault().toString() }, null);
-        addWords(cursor);
-        mRequiresReload = false;
+        addWords(cursor, insertCount);
+    }
+
+    private void loadDictionaryAsync() {
+        if (mUpdatingWords.compareAndSet(false, true)) {
+            mUiHandler.post(mStartLoading);
+        }
     }
 
     /**
@@ -79,16 +152,32 @@ public class UserDictionary extends ExpandableDictionary {
      * @TODO use a higher or float range for frequency
      */
     @Override
-    public synchronized void addWord(String word, int frequency) {
-        if (mRequiresReload) loadDictionary();
+    public void addWord(String word, int frequency) {
         // Safeguard against adding long words. Can cause stack overflow.
         if (word.length() >= getMaxWordLength()) return;
 
-        super.addWord(word, frequency);
+        final PendingWord pending = new PendingWord(frequency);
+        synchronized (this) {
+            super.addWord(word, frequency);
+            // As the provider will have it, so that a reload doesn't take it for changed
+            if (mWordFrequencies != null) {
+                mWordFrequencies.put(word, frequency);
+            }
+            mPendingWords.put(word, pending);
+            mSnapshotStale = true;
+        }
 
+        // The provider writes to storage, so searches and reloads don't wait for it
         Words.addWord(getContext(), word, frequency, Words.LOCALE_TYPE_CURRENT);
-        // In case the above does a synchronous callback of the change observer
-        mRequiresReload = false;
+        synchronized (this) {
+            pending.mInsertedAs = ++mInsertCount;
+        }
+        // A reload that is under way may have read the words before this one, so let it
+        // reload again. The flag is never cleared here, so that a change the observer
+        // reported in the meantime isn't lost.
+        if (mUpdatingWords.get()) {
+            mRequiresReload = true;
+        }
     }
      
     /**
@@ -96,50 +185,152 @@ public class UserDictionary extends ExpandableDictionary {
      * @param word
      * @return true if word given was in the dictionary
      */
-    public synchronized boolean deleteWord(String word) {
-    	if (mRequiresReload) {
-    		loadDictionary();
-    		mRequiresReload = false;
-    	}
-    	if (isValidWord(word)) {
-        	getContext().getContentResolver().delete(
-        			Words.CONTENT_URI, Words.WORD + "=?", new String[] { word });
-        	// this should trigger content observer above and reload dictionary
-        	// next time we do something
-        	return true;
-    	} else {
-    		return false;
+    public boolean deleteWord(String word) {
+    	// this triggers the content observer above, but the reload will find the word gone
+    	// already and leave the trie alone
+    	final boolean deleted = getContext().getContentResolver().delete(
+    			Words.CONTENT_URI, Words.WORD + "=?", new String[] { word }) > 0;
+    	synchronized (this) {
+    		mPendingWords.remove(word);
+    		if (removeWord(word)) {
+    			if (mWordFrequencies != null) {
+    				mWordFrequencies.remove(word);
+    			}
+    			mSnapshotStale = true;
+    		}
     	}
+    	return deleted;
     }
 
     @Override
-    public synchronized void getWords(final WordComposer codes, final WordCallback callback) {
-        if (mRequiresReload) loadDictionary();
-        super.getWords(codes, callback);
+    void startSearch() {
+        // If we need to update, start off a background task
+        if (mRequiresReload) loadDictionaryAsync();
     }
 
     @Override
-    public synchronized boolean isValidWord(CharSequence word) {
-        if (mRequiresReload) loadDictionary();
+    public boolean isValidWord(CharSequence word) {
+        // If we need to update, start off a background task
+        if (mRequiresReload) loadDictionaryAsync();
         return super.isValidWord(word);
     }
 
-    private void addWords(Cursor cursor) {
-        clearDictionary();
-
+    /**
+     * Brings the trie up to date with the words read from the provider.
+     * @param insertCount the insert count when the query started
+     */
+    private void addWords(Cursor cursor, long insertCount) {
+        Map<String, Integer> words = new LinkedHashMap<String, Integer>();
         final int maxWordLength = getMaxWordLength();
         if (cursor.moveToFirst()) {
             while (!cursor.isAfterLast()) {
                 String word = cursor.getString(INDEX_WORD);
-                int frequency = cursor.getInt(INDEX_FREQUENCY);
+                int frequency = Math.max(0, Math.min(cursor.getInt(INDEX_FREQUENCY), 255));
                 // Safeguard against adding really long words. Stack may overflow due
                 // to recursion
                 if (word.length() < maxWordLength) {
-                    super.addWord(word, frequency);
+                    // The same word can be there for more than one locale
+                    Integer known = words.get(word);
+                    if (known == null || known < frequency) {
+                        words.put(word, frequency);
+                    }
                 }
                 cursor.moveToNext();
             }
         }
         cursor.close();
+
+        synchronized (this) {
+            // Keep the words whose insert hadn't returned when the query started. The others
+            // were read, if they are still there.
+            Iterator<Map.Entry<String, PendingWord>> pendingWords =
+                    mPendingWords.entrySet().iterator();
+            while (pendingWords.hasNext()) {
+                final Map.Entry<String, PendingWord> entry = pendingWords.next();
+                final PendingWord pending = entry.getValue();
+                if (pending.mInsertedAs >= 0 && pending.mInsertedAs <= insertCount) {
+                    pendingWords.remove();
+                } else if (!words.containsKey(entry.getKey())) {
+                    words.put(entry.getKey(), pending.mFrequency);
+                }
+            }
+            if (mWordFrequencies == null && mFromSnapshot) {
+                mWordFrequencies = new HashMap<String, Integer>();
+                getTrie().getWordFrequencies(mWordFrequencies);
+            }
+            if (mWordFrequencies == null) {
+                // Nothing to compare with yet
+                setTrie(buildTrie(words));
+                mWordFrequencies = words;
+                mSnapshotStale = true;
+                return;
+            }
+            List<String> removed = new ArrayList<String>();
+            for (String word : mWordFrequencies.keySet()) {
+                if (!words.containsKey(word)) removed.add(word);
+            }
+            List<String> changed = new ArrayList<String>();
+            for (Map.Entry<String, Integer> entry : words.entrySet()) {
+                if (!entry.getValue().equals(mWordFrequencies.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+            mWordFrequencies = words;
+            if (removed.size() + changed.size() > 0) {
+                mSnapshotStale = true;
+            }
+            if (removed.size() + changed.size() > words.size() / 2) {
+                // Building it again is cheaper than this many changes
+                setTrie(buildTrie(words));
+            } else if (removed.size() + changed.size() > 0) {
+                Trie trie = getTrie().edit();
+                for (String word : removed) {
+                    trie.removeWord(word);
+                }
+                for (String word : changed) {
+                    trie.setWordFrequency(word, words.get(word));
+                }
+                setTrie(trie);
+            }
+        }
+    }
+
+    private Trie buildTrie(Map<String, Integer> words) {
+        Trie trie = new Trie(getTrie().getNodeCount());
+        for (Map.Entry<String, Integer> entry : words.entrySet()) {
+            trie.addWord(entry.getKey(), entry.getValue());
+        }
+        return trie;
+    }
+
+    private class LoadWordsTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected Void doInBackground(Void... v) {
+            if (!mLoaded) {
+                // The saved words can be searched while the provider is queried
+                mFromSnapshot = loadSnapshot(SNAPSHOT_NAME);
+                if (mFromSnapshot) logReady("snapshot");
+            }
+            loadDictionary();
+            if (!mLoaded) {
+                mLoaded = true;
+                logReady("provider");
+            }
+            boolean stale;
+            synchronized (UserDictionary.this) {
+                stale = mSnapshotStale;
+                mSnapshotStale = false;
+            }
+            if (stale) {
+                saveSnapshot(SNAPSHOT_NAME);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mUpdatingWords.set(false);
+            super.onPostExecute(result);
+        }
     }
 }
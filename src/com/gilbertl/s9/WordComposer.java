@@ -46,6 +46,24 @@ public class WordComposer {
         mTypedWord = new StringBuilder(20);
     }
 
+    /**
+     * Makes this a copy of another composer, for searching it on another thread while the
+     * other one changes. The arrays of codes are shared, since they aren't changed once added.
+     */
+    void set(WordComposer source) {
+        mCodes.clear();
+        // Added one by one, since addAll() makes an array of them first
+        final int size = source.mCodes.size();
+        for (int i = 0; i < size; i++) {
+            mCodes.add(source.mCodes.get(i));
+        }
+        mPreferredWord = source.mPreferredWord;
+        mTypedWord.setLength(0);
+        mTypedWord.append(source.mTypedWord);
+        mCapsCount = source.mCapsCount;
+        mIsCapitalized = source.mIsCapitalized;
+    }
+
     /**
      * Clear out the keys registered so far.
      */
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+/**
+ * Finds which of a fixed number of slots holds a word, so that a word found again, by another
+ * dictionary or another path through the same one, is told apart from a new word without
+ * comparing it to all of them. The words themselves stay in the slots of the caller.
+ */
+class WordIndex {
+
+    // Slot + 1 of each word, 0 for a free entry, with open addressing. Kept at most half full.
+    private final int[] mTable;
+    // The hash of the word in each slot
+    private final int[] mSlotHashes;
+
+    /**
+     * @param slotCount the number of slots the words are in
+     */
+    WordIndex(int slotCount) {
+        int size = 4;
+        while (size < slotCount * 2) {
+            size <<= 1;
+        }
+        mTable = new int[size];
+        mSlotHashes = new int[slotCount];
+    }
+
+    static int hash(char[] word, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + word[offset + i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the slot holding the word, or -1 if none does.
+     * @param hash the hash of the word, from hash()
+     * @param slotWords the words of the slots
+     */
+    int find(int hash, char[] word, int offset, int length, StringBuilder[] slotWords) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int index = hash & mask;
+        int entry;
+        while ((entry = table[index]) != 0) {
+            final int slot = entry - 1;
+            if (mSlotHashes[slot] == hash && same(slotWords[slot], word, offset, length)) {
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Records that the slot holds the word with the hash. It mustn't hold another word.
+     */
+    void put(int slot, int hash) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int index = hash & mask;
+        while (table[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        table[index] = slot + 1;
+        mSlotHashes[slot] = hash;
+    }
+
+    /**
+     * Forgets the word of the slot, before the slot is given another word.
+     */
+    void remove(int slot) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int index = mSlotHashes[slot] & mask;
+        while (table[index] != slot + 1) {
+            index = (index + 1) & mask;
+        }
+        // Move up the entries after it that would no longer be found past the hole
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            final int entry = table[next];
+            if (entry == 0) break;
+            final int home = mSlotHashes[entry - 1] & mask;
+            final boolean movable = index <= next
+                    ? home <= index || home > next
+                    : home <= index && home > next;
+            if (movable) {
+                table[index] = entry;
+                index = next;
+            }
+        }
+        table[index] = 0;
+    }
+
+    void clear() {
+        final int[] table = mTable;
+        for (int i = 0; i < table.length; i++) {
+            table[i] = 0;
+        }
+    }
+
+    private static boolean same(StringBuilder slotWord, char[] word, int offset, int length) {
+        if (slotWord.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (slotWord.charAt(i) != word[offset + i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks when the words committed to the auto dictionary become valid words.
+ */
+public class AutoDictionaryTests extends InstrumentationTestCase {
+
+    private AutoDictionary mDictionary;
+    private String mWord;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The test package's own database, so that the keyboard's words are left alone
+        mDictionary = new AutoDictionary(getInstrumentation().getContext());
+        // A word the database can't have counts for from an earlier run
+        mWord = "qx" + Long.toString(System.currentTimeMillis(), 36);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDictionary.close();
+        super.tearDown();
+    }
+
+    public void testTypedOnceIsNotValid() {
+        mDictionary.addWord(mWord, AutoDictionary.FREQUENCY_FOR_TYPED);
+        assertTrue(mDictionary.getWordFrequency(mWord) > 0);
+        assertFalse(mDictionary.isValidWord(mWord));
+    }
+
+    public void testValidOnceCommittedOftenEnough() {
+        for (int count = 0; count < AutoDictionary.VALID_THRESHOLD; ) {
+            assertFalse("count " + count, mDictionary.isValidWord(mWord));
+            mDictionary.addWord(mWord, AutoDictionary.FREQUENCY_FOR_TYPED);
+            count += AutoDictionary.FREQUENCY_FOR_TYPED;
+        }
+        assertTrue(mDictionary.isValidWord(mWord));
+    }
+
+    public void testPickedIsValid() {
+        mDictionary.addWord(mWord, AutoDictionary.FREQUENCY_FOR_PICKED);
+        assertTrue(mDictionary.isValidWord(mWord));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.text.AutoText;
+import android.util.Log;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the allocations per keystroke of looking up the AutoText corrections of the
+ * suggestions directly, as getSuggestions did before AutoTextCache, and through the cache.
+ * The counts are logged, and the cache has to look them up without allocating once it has
+ * seen them.
+ */
+public class AutoTextCachePerformanceTests extends InstrumentationTestCase {
+
+    private static final String TAG = "AutoTextCachePerformanceTests";
+
+    private static final int DICTIONARY_WORD_COUNT = 3000;
+    private static final int TYPED_WORD_COUNT = 30;
+    // The number of suggestions getSuggestions looks up
+    private static final int MAX_LOOKUPS = 6;
+
+    private View mView;
+    // The suggestions of each keystroke, up to MAX_LOOKUPS of them
+    private List<StringBuilder[]> mSuggestions;
+    private List<char[][]> mSuggestionChars;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getInstrumentation().getTargetContext();
+        mView = new View(context);
+        Suggest suggest = new Suggest(context, R.raw.en_dict);
+        suggest.setCorrectionMode(Suggest.CORRECTION_FULL);
+        List<String> words = TestInput.makeWords(DICTIONARY_WORD_COUNT, 22);
+        ExpandableDictionary userDictionary = new ExpandableDictionary(context);
+        for (String word : words) {
+            userDictionary.addWord(word, word.hashCode() & 0xFF);
+        }
+        suggest.setUserDictionary(userDictionary);
+
+        TestInput input = new TestInput(context);
+        mSuggestions = new ArrayList<StringBuilder[]>();
+        mSuggestionChars = new ArrayList<char[][]>();
+        for (int i = 0; i < TYPED_WORD_COUNT; i++) {
+            for (WordComposer typed : input.type(words.get(i * 7))) {
+                CandidateBuffer candidates = suggest.getSuggestions(mView, typed, false);
+                final int count = Math.min(candidates.size(), MAX_LOOKUPS);
+                StringBuilder[] suggestions = new StringBuilder[count];
+                char[][] suggestionChars = new char[count][];
+                for (int j = 0; j < count; j++) {
+                    suggestions[j] = new StringBuilder(candidates.getString(j));
+                    suggestionChars[j] = candidates.getString(j).toCharArray();
+                }
+                mSuggestions.add(suggestions);
+                mSuggestionChars.add(suggestionChars);
+            }
+        }
+        suggest.close();
+    }
+
+    public void testAllocationsPerKeystroke() {
+        final int keystrokes = mSuggestions.size();
+        // Warms up both
+        lookUpDirectly();
+        AutoTextCache cache = new AutoTextCache(1024);
+        lookUpCached(cache);
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            lookUpDirectly();
+            final int direct = Debug.getThreadAllocCount();
+            Debug.resetThreadAllocCount();
+            lookUpCached(cache);
+            final int cached = Debug.getThreadAllocCount();
+
+            Log.i(TAG, "allocations per keystroke: " + (float) direct / keystrokes
+                    + " directly, " + (float) cached / keystrokes + " cached");
+            assertEquals("allocations of the cache in " + keystrokes + " keystrokes", 0, cached);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    /**
+     * Looks up the suggestions of each keystroke the way getSuggestions used to.
+     */
+    private int lookUpDirectly() {
+        int found = 0;
+        final int keystrokes = mSuggestions.size();
+        for (int i = 0; i < keystrokes; i++) {
+            final StringBuilder[] suggestions = mSuggestions.get(i);
+            for (int j = 0; j < suggestions.length; j++) {
+                final String lowerCase = suggestions[j].toString().toLowerCase();
+                if (AutoText.get(lowerCase, 0, lowerCase.length(), mView) != null) found++;
+            }
+        }
+        return found;
+    }
+
+    private int lookUpCached(AutoTextCache cache) {
+        int found = 0;
+        final int keystrokes = mSuggestionChars.size();
+        for (int i = 0; i < keystrokes; i++) {
+            final char[][] suggestions = mSuggestionChars.get(i);
+            for (int j = 0; j < suggestions.length; j++) {
+                final char[] word = suggestions[j];
+                if (cache.get(word, 0, word.length, mView) != null) found++;
+            }
+        }
+        return found;
+    }
+}
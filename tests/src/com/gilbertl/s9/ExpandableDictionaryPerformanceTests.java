@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long a keystroke's search of an expandable dictionary takes, by the length of
+ * the input, for dictionaries the size of a large user dictionary and of a large contacts
+ * dictionary. The times are logged, as in
+ * "2000 words: 1:10.8us 2:16.2us ...", the mean time of a search for each input length.
+ */
+public class ExpandableDictionaryPerformanceTests extends InstrumentationTestCase {
+
+    private static final String TAG = "ExpandableDictionaryPerformanceTests";
+
+    private static final int USER_WORD_COUNT = 2000;
+    private static final int CONTACTS_WORD_COUNT = 8000;
+    private static final int MAX_INPUT_LENGTH = 12;
+    // The inputs of each length, typed from this many words
+    private static final int TYPED_WORD_COUNT = 200;
+    // The best of this many passes is taken, leaving out the ones the garbage collector took
+    private static final int PASSES = 5;
+
+    private TestInput mInput;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mInput = new TestInput(getInstrumentation().getTargetContext());
+    }
+
+    public void testUserDictionaryLatency() {
+        measureLatency(USER_WORD_COUNT);
+    }
+
+    public void testContactsDictionaryLatency() {
+        measureLatency(CONTACTS_WORD_COUNT);
+    }
+
+    private void measureLatency(int wordCount) {
+        final Context context = getInstrumentation().getTargetContext();
+        List<String> words = TestInput.makeWords(wordCount, wordCount);
+        ExpandableDictionary dictionary = new ExpandableDictionary(context);
+        for (String word : words) {
+            dictionary.addWord(word, word.hashCode() & 0xFF);
+        }
+
+        // The inputs by length, from typing words of the dictionary and a few that aren't
+        List<List<WordComposer>> inputs = new ArrayList<List<WordComposer>>();
+        for (int length = 0; length <= MAX_INPUT_LENGTH; length++) {
+            inputs.add(new ArrayList<WordComposer>());
+        }
+        List<String> typed = new ArrayList<String>(words.subList(0, TYPED_WORD_COUNT));
+        typed.addAll(TestInput.makeWords(TYPED_WORD_COUNT / 10, -wordCount));
+        for (String word : typed) {
+            for (WordComposer input : mInput.type(word)) {
+                if (input.size() <= MAX_INPUT_LENGTH) inputs.get(input.size()).add(input);
+            }
+        }
+
+        final int[] found = new int[1];
+        Dictionary.WordCallback callback = new Dictionary.WordCallback() {
+            public int getFrequencyThreshold() {
+                return 0;
+            }
+
+            public boolean addWord(char[] word, int offset, int length, int freq) {
+                found[0]++;
+                return true;
+            }
+        };
+        // Warms up the searches
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (List<WordComposer> sameLength : inputs) {
+                for (WordComposer input : sameLength) {
+                    dictionary.getWords(input, callback);
+                }
+            }
+        }
+
+        StringBuilder times = new StringBuilder();
+        times.append(wordCount).append(" words:");
+        for (int length = 1; length <= MAX_INPUT_LENGTH; length++) {
+            final List<WordComposer> sameLength = inputs.get(length);
+            if (sameLength.isEmpty()) continue;
+            long best = Long.MAX_VALUE;
+            for (int pass = 0; pass < PASSES; pass++) {
+                final long start = System.nanoTime();
+                for (WordComposer input : sameLength) {
+                    dictionary.getWords(input, callback);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            times.append(String.format(" %d:%.1fus", length,
+                    best / 1000f / sameLength.size()));
+        }
+        Log.i(TAG, times.toString());
+        assertTrue("no words found", found[0] > 0);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Searches a dictionary on several threads while other threads keep adding and removing
+ * words. The words that are never changed have to be found the same way throughout.
+ */
+public class ExpandableDictionaryStressTests extends InstrumentationTestCase {
+
+    private static final int STABLE_WORD_COUNT = 3000;
+    private static final int CHANGING_WORD_COUNT = 3000;
+    private static final int INPUT_WORD_COUNT = 50;
+    private static final int SEARCH_THREADS = 4;
+    private static final int WRITE_THREADS = 2;
+    private static final long RUN_MILLIS = 20000;
+
+    private ExpandableDictionary mDictionary;
+    private Set<String> mStableWords;
+    private List<String> mChangingWords;
+    private List<WordComposer> mInputs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getInstrumentation().getTargetContext();
+        List<String> words = TestInput.makeWords(STABLE_WORD_COUNT + CHANGING_WORD_COUNT, 15);
+        mStableWords = new HashSet<String>(words.subList(0, STABLE_WORD_COUNT));
+        mChangingWords = words.subList(STABLE_WORD_COUNT, words.size());
+        mDictionary = new ExpandableDictionary(context);
+        for (String word : mStableWords) {
+            mDictionary.addWord(word, word.length() * 7 % 250 + 1);
+        }
+        TestInput input = new TestInput(context);
+        mInputs = new ArrayList<WordComposer>();
+        for (String word : words.subList(0, INPUT_WORD_COUNT)) {
+            mInputs.addAll(input.type(word));
+        }
+    }
+
+    public void testSearchWhileWordsChange() throws Exception {
+        final List<List<String>> expected = new ArrayList<List<String>>();
+        for (WordComposer input : mInputs) {
+            expected.add(findStableWords(input));
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < SEARCH_THREADS; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            for (int j = 0; j < mInputs.size(); j++) {
+                                assertEquals("input " + j, expected.get(j),
+                                        findStableWords(mInputs.get(j)));
+                            }
+                            for (String word : mStableWords) {
+                                assertTrue(word, mDictionary.isValidWord(word));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < WRITE_THREADS; i++) {
+            final Random random = new Random(i);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            String word = mChangingWords.get(random.nextInt(
+                                    mChangingWords.size()));
+                            if (random.nextBoolean()) {
+                                mDictionary.addWord(word, random.nextInt(255) + 1);
+                            } else {
+                                mDictionary.removeWord(word);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    /**
+     * Returns the words that the dictionary finds for the input and that are never changed,
+     * with their frequencies, in the order they were found.
+     */
+    private List<String> findStableWords(WordComposer input) {
+        final List<String> found = new ArrayList<String>();
+        mDictionary.getWords(input, new Dictionary.WordCallback() {
+            public int getFrequencyThreshold() {
+                return 0;
+            }
+
+            public boolean addWord(char[] word, int offset, int length, int freq) {
+                String w = new String(word, offset, length);
+                if (mStableWords.contains(w)) found.add(w + ":" + freq);
+                return true;
+            }
+        });
+        return found;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts what getSuggestions allocates once the caches and the candidate buffers have seen the
+ * input. Searched on the thread typing, as without a search deadline, it should allocate
+ * nothing. Searched on the executor, as S9IME does, the executor's queue and locks allocate a
+ * little on the search threads, so that is held to a budget instead.
+ */
+public class SuggestAllocationTests extends InstrumentationTestCase {
+
+    private static final int DICTIONARY_WORD_COUNT = 3000;
+    // More keystrokes than the suggestion cache holds, so that the dictionaries are searched
+    private static final int TYPED_WORD_COUNT = 30;
+    // The deadline S9IME searches with
+    private static final int SEARCH_DEADLINE_MS = 16;
+    // About 25 bytes a keystroke were measured, the other threads of the process allocate some
+    private static final int PARALLEL_BYTES_PER_KEYSTROKE = 64;
+
+    private Suggest mSuggest;
+    private View mView;
+    private List<WordComposer> mInputs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getInstrumentation().getTargetContext();
+        mSuggest = new Suggest(context, R.raw.en_dict);
+        mSuggest.setCorrectionMode(Suggest.CORRECTION_FULL);
+        List<String> words = TestInput.makeWords(DICTIONARY_WORD_COUNT * 3, 23);
+        mSuggest.setUserDictionary(makeDictionary(context, words, 0));
+        mSuggest.setContactsDictionary(makeDictionary(context, words, 1));
+        mSuggest.setAutoDictionary(makeDictionary(context, words, 2));
+        mView = new View(context);
+
+        TestInput input = new TestInput(context);
+        mInputs = new ArrayList<WordComposer>();
+        for (int i = 0; i < TYPED_WORD_COUNT; i++) {
+            // Words of each of the dictionaries, in turn
+            mInputs.addAll(input.type(words.get(i * DICTIONARY_WORD_COUNT / 10)));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSuggest.close();
+        super.tearDown();
+    }
+
+    private static ExpandableDictionary makeDictionary(Context context, List<String> words,
+            int part) {
+        ExpandableDictionary dictionary = new ExpandableDictionary(context);
+        for (int i = part * DICTIONARY_WORD_COUNT; i < (part + 1) * DICTIONARY_WORD_COUNT; i++) {
+            final String word = words.get(i);
+            dictionary.addWord(word, word.hashCode() & 0xFF);
+        }
+        return dictionary;
+    }
+
+    public void testNoAllocationsPerKeystroke() {
+        // Without a search deadline, the sources are searched on this thread
+        // Fills the caches and grows the buffers to the longest lists
+        typeAll();
+        typeAll();
+
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocCount();
+            typeAll();
+            // Read before the message is made
+            final int allocations = Debug.getThreadAllocCount();
+            assertEquals("allocations in " + mInputs.size() + " keystrokes", 0, allocations);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public void testFewAllocationsPerKeystrokeInParallel() {
+        mSuggest.setSearchDeadline(SEARCH_DEADLINE_MS);
+        typeAll();
+        typeAll();
+        final int lateCount = getLateCount();
+
+        Debug.startAllocCounting();
+        try {
+            // The searches allocate on the executor threads, which the thread counts leave out
+            Debug.resetGlobalAllocSize();
+            typeAll();
+            final int size = Debug.getGlobalAllocSize();
+            // A search that misses the deadline is replaced by a new one, which is not what this
+            // measures
+            assertEquals("late searches", lateCount, getLateCount());
+            final int keystrokes = mInputs.size();
+            assertTrue(size + " bytes allocated in " + keystrokes + " keystrokes",
+                    size <= keystrokes * PARALLEL_BYTES_PER_KEYSTROKE);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private int getLateCount() {
+        return mSuggest.getLateCount(Suggest.SOURCE_USER)
+                + mSuggest.getLateCount(Suggest.SOURCE_MAIN);
+    }
+
+    /**
+     * Gets the suggestions for each input, and reads them the way CandidateView does.
+     */
+    private int typeAll() {
+        int length = 0;
+        // Not with an iterator, which would be counted
+        final int count = mInputs.size();
+        for (int j = 0; j < count; j++) {
+            CandidateBuffer suggestions = mSuggest.getSuggestions(mView, mInputs.get(j), false);
+            for (int i = 0; i < suggestions.size(); i++) {
+                length += suggestions.getLength(i);
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2008-2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.gilbertl.s9;
+
+import android.content.Context;
+import android.inputmethodservice.Keyboard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Words and the keystrokes of typing them on the S9 keyboard, for the tests. The words are
+ * made up, the same ones on every run, so that the tests don't depend on a word list.
+ */
+class TestInput {
+
+    // The codes of the key with each letter, by the lower case letter
+    private final int[][] mKeyCodes = new int[128][];
+
+    TestInput(Context context) {
+        Keyboard keyboard = new Keyboard(context, R.xml.s9);
+        for (Keyboard.Key key : keyboard.getKeys()) {
+            for (int code : key.codes) {
+                if (code >= 'a' && code <= 'z' && mKeyCodes[code] == null) {
+                    mKeyCodes[code] = key.codes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns count different words of 2 to 12 letters, with the common letters more often,
+     * the same ones for the same seed.
+     */
+    static List<String> makeWords(int count, long seed) {
+        final char[] letters = LetterFrequencyComp.FREQ_ORDER;
+        Random random = new Random(seed);
+        Set<String> words = new LinkedHashSet<String>();
+        StringBuilder word = new StringBuilder();
+        while (words.size() < count) {
+            word.setLength(0);
+            final int length = 2 + random.nextInt(6) + random.nextInt(6);
+            for (int i = 0; i < length; i++) {
+                // Squaring favors the letters at the front
+                final float r = random.nextFloat();
+                word.append(letters[(int) (r * r * letters.length)]);
+            }
+            words.add(word.toString());
+        }
+        return new ArrayList<String>(words);
+    }
+
+    /**
+     * Returns the input after each keystroke of typing the word, one per letter.
+     */
+    List<WordComposer> type(String word) {
+        List<WordComposer> inputs = new ArrayList<WordComposer>(word.length());
+        WordComposer composer = new WordComposer();
+        for (int i = 0; i < word.length(); i++) {
+            final char c = word.charAt(i);
+            composer.add(c, getCodes(c));
+            WordComposer input = new WordComposer();
+            input.set(composer);
+            inputs.add(input);
+        }
+        return inputs;
+    }
+
+    /**
+     * Returns the codes of pressing the key with the lower case letter c, in the order
+     * S9IME gives them: the letter, its upper case, then the others on the key.
+     */
+    int[] getCodes(char c) {
+        final int[] keyCodes = mKeyCodes[c];
+        final char upper = Character.toUpperCase(c);
+        int[] codes = new int[keyCodes.length + 1];
+        int count = 0;
+        codes[count++] = c;
+        codes[count++] = upper;
+        for (int code : keyCodes) {
+            if (code != c && code != upper) codes[count++] = code;
+        }
+        return codes;
+    }
+}